@@ -40,6 +40,32 @@ public class PowerShellCommandLineProvider {
     if (mod == null) {
       throw new RunBuildException("'" + RUNNER_EXECUTION_MODE + "' runner parameter is not defined");
     }
+    addOptions(result, info, runnerParams, useExecutionPolicy, sharedConfigParams);
+    addScriptBody(result, mod, scriptFile, runnerParams, sharedConfigParams);
+    return result;
+  }
+
+  /**
+   * Provides arguments to run inline script passed with {@code -EncodedCommand}, instead of script file
+   */
+  @NotNull
+  public List<String> provideEncodedCommandLine(@NotNull final PowerShellInfo info,
+                                                @NotNull final Map<String, String> runnerParams,
+                                                @NotNull final String encodedCommand,
+                                                final boolean useExecutionPolicy,
+                                                @NotNull final Map<String, String> sharedConfigParams) {
+    final List<String> result = new ArrayList<>();
+    addOptions(result, info, runnerParams, useExecutionPolicy, sharedConfigParams);
+    result.add("-EncodedCommand");
+    result.add(encodedCommand);
+    return result;
+  }
+
+  private void addOptions(@NotNull final List<String> result,
+                          @NotNull final PowerShellInfo info,
+                          @NotNull final Map<String, String> runnerParams,
+                          final boolean useExecutionPolicy,
+                          @NotNull final Map<String, String> sharedConfigParams) {
     addVersion(result, runnerParams, info); // version must be the 1st arg after executable path
     if (!StringUtil.isEmptyOrSpaces(runnerParams.get(RUNNER_NO_PROFILE))) {
       result.add("-NoProfile");
@@ -50,9 +76,6 @@ public class PowerShellCommandLineProvider {
     if (useExecutionPolicy) {
       addExecutionPolicyPreference(result);
     }
-
-    addScriptBody(result, mod, scriptFile, runnerParams, sharedConfigParams);
-    return result;
   }
 
   private void addVersion(@NotNull final List<String> list,
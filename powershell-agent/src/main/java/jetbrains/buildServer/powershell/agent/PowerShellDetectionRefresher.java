@@ -0,0 +1,86 @@
+package jetbrains.buildServer.powershell.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically re-detects PowerShell in background, so PowerShells installed or upgraded
+ * after agent start become available without agent restart.
+ *
+ * Re-detection is enabled by setting positive interval with {@code teamcity.powershell.detector.refresh.interval.sec} property,
+ * it is disabled by default
+ */
+public class PowerShellDetectionRefresher {
+
+  @NotNull
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  private static final String PARAM_REFRESH_INTERVAL = "teamcity.powershell.detector.refresh.interval.sec";
+
+  @NotNull
+  private final PowerShellInfoProvider myInfoProvider;
+
+  @Nullable
+  private ScheduledExecutorService myExecutor;
+
+  public PowerShellDetectionRefresher(@NotNull final PowerShellInfoProvider infoProvider,
+                                      @NotNull final EventDispatcher<AgentLifeCycleListener> eventDispatcher) {
+    myInfoProvider = infoProvider;
+    eventDispatcher.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void agentStarted(@NotNull BuildAgent agent) {
+        start();
+      }
+
+      @Override
+      public void agentShutdown() {
+        stop();
+      }
+    });
+  }
+
+  private synchronized void start() {
+    final long interval = TeamCityProperties.getInteger(PARAM_REFRESH_INTERVAL, 0);
+    final boolean pending = myInfoProvider.isRefreshPending();
+    if (interval <= 0 && !pending) {
+      return;
+    }
+    myExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "PowerShell re-detection");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      return t;
+    });
+    final long initialDelay = pending ? 0 : interval;
+    if (interval > 0) {
+      myExecutor.scheduleWithFixedDelay(this::refresh, initialDelay, interval, TimeUnit.SECONDS);
+    } else {
+      myExecutor.schedule(this::refresh, initialDelay, TimeUnit.SECONDS);
+    }
+  }
+
+  private synchronized void stop() {
+    if (myExecutor != null) {
+      myExecutor.shutdownNow();
+      myExecutor = null;
+    }
+  }
+
+  private void refresh() {
+    try {
+      myInfoProvider.refresh();
+    } catch (Throwable t) {
+      LOG.warnAndDebugDetails("Failed to re-detect PowerShell", t);
+    }
+  }
+}
@@ -0,0 +1,180 @@
+package jetbrains.buildServer.powershell.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionPaths;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.EventDispatcher;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches PowerShell detection paths for changes and re-detects PowerShell only in directories that have changed.
+ *
+ * Watching is disabled by default and is enabled by {@code teamcity.powershell.detector.watch.enabled} property.
+ * Changes are collected until file system is quiet for {@code teamcity.powershell.detector.watch.delay.msec},
+ * so an install that writes many files triggers single re-detection
+ */
+public class PowerShellDirectoryWatcher {
+
+  @NotNull
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  private static final String PARAM_WATCH_ENABLED = "teamcity.powershell.detector.watch.enabled";
+
+  private static final String PARAM_WATCH_DELAY = "teamcity.powershell.detector.watch.delay.msec";
+
+  @NotNull
+  private final PowerShellInfoProvider myInfoProvider;
+
+  @NotNull
+  private final DetectionPaths myDetectionPaths;
+
+  @NotNull
+  private final Map<WatchKey, Path> myWatchedDirs = new HashMap<>();
+
+  @Nullable
+  private WatchService myWatchService;
+
+  @Nullable
+  private Thread myThread;
+
+  public PowerShellDirectoryWatcher(@NotNull final PowerShellInfoProvider infoProvider,
+                                    @NotNull final DetectionPaths detectionPaths,
+                                    @NotNull final EventDispatcher<AgentLifeCycleListener> eventDispatcher) {
+    myInfoProvider = infoProvider;
+    myDetectionPaths = detectionPaths;
+    eventDispatcher.addListener(new AgentLifeCycleAdapter() {
+      @Override
+      public void agentStarted(@NotNull BuildAgent agent) {
+        if (TeamCityProperties.getBoolean(PARAM_WATCH_ENABLED)) {
+          start();
+        }
+      }
+
+      @Override
+      public void agentShutdown() {
+        stop();
+      }
+    });
+  }
+
+  private synchronized void start() {
+    final WatchService watchService;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+    } catch (IOException | UnsupportedOperationException e) {
+      LOG.warnAndDebugDetails("Failed to start watching PowerShell detection paths", e);
+      return;
+    }
+    myWatchService = watchService;
+    for (String path : myDetectionPaths.getPaths()) {
+      register(watchService, Paths.get(path));
+    }
+    myThread = new Thread(() -> watch(watchService), "PowerShell detection paths watcher");
+    myThread.setDaemon(true);
+    myThread.setPriority(Thread.MIN_PRIORITY);
+    myThread.start();
+  }
+
+  private synchronized void stop() {
+    if (myThread != null) {
+      myThread.interrupt();
+      myThread = null;
+    }
+    if (myWatchService != null) {
+      try {
+        myWatchService.close();
+      } catch (IOException ignored) {
+      }
+      myWatchService = null;
+    }
+  }
+
+  private void register(@NotNull final WatchService watchService, @NotNull final Path dir) {
+    if (!Files.isDirectory(dir)) {
+      return;
+    }
+    try {
+      final WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      synchronized (myWatchedDirs) {
+        myWatchedDirs.put(key, dir);
+      }
+    } catch (IOException e) {
+      LOG.debug("Failed to watch PowerShell detection path " + dir, e);
+    }
+  }
+
+  private void watch(@NotNull final WatchService watchService) {
+    final long delay = TeamCityProperties.getInteger(PARAM_WATCH_DELAY, 5000);
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        final Set<String> changed = new LinkedHashSet<>();
+        boolean overflow = collectChanges(watchService, watchService.take(), changed);
+        WatchKey key;
+        while ((key = watchService.poll(delay, TimeUnit.MILLISECONDS)) != null) {
+          overflow |= collectChanges(watchService, key, changed);
+        }
+        try {
+          if (overflow) {
+            LOG.info("Too many changes in PowerShell detection paths, re-detecting PowerShell");
+            myInfoProvider.refresh();
+          } else if (!changed.isEmpty()) {
+            LOG.info("PowerShell detection paths have changed, re-detecting PowerShell in: " + changed);
+            myInfoProvider.refresh(changed);
+          }
+        } catch (Exception e) {
+          LOG.warnAndDebugDetails("Failed to re-detect PowerShell", e);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException ignored) {
+      // watcher is stopped
+    }
+  }
+
+  /**
+   * @return {@code true} if some events were lost
+   */
+  private boolean collectChanges(@NotNull final WatchService watchService,
+                                 @NotNull final WatchKey key,
+                                 @NotNull final Set<String> changed) {
+    final Path dir;
+    synchronized (myWatchedDirs) {
+      dir = myWatchedDirs.get(key);
+    }
+    boolean overflow = false;
+    if (dir != null) {
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          overflow = true;
+          continue;
+        }
+        final Path child = dir.resolve((Path) event.context());
+        if (Files.isDirectory(child)) {
+          // new version installed under one of the roots
+          if (event.kind() == ENTRY_CREATE) {
+            register(watchService, child);
+          }
+          changed.add(child.toString());
+        } else {
+          changed.add(dir.toString());
+        }
+      }
+    }
+    if (!key.reset()) {
+      synchronized (myWatchedDirs) {
+        myWatchedDirs.remove(key);
+      }
+    }
+    return overflow;
+  }
+}
@@ -1,8 +1,13 @@
 package jetbrains.buildServer.powershell.agent;
 
 import com.intellij.openapi.diagnostic.Logger;
-import java.io.File;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
 
 import com.intellij.openapi.util.SystemInfo;
 import jetbrains.buildServer.ExtensionHolder;
@@ -11,15 +16,20 @@ import jetbrains.buildServer.agent.AgentLifeCycleListener;
 import jetbrains.buildServer.agent.BuildAgent;
 import jetbrains.buildServer.agent.BuildAgentConfiguration;
 import jetbrains.buildServer.agent.config.AgentParametersSupplier;
+import jetbrains.buildServer.powershell.agent.detect.DetectionManifest;
+import jetbrains.buildServer.powershell.agent.detect.DetectionReport;
 import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.ShellRecord;
+import jetbrains.buildServer.powershell.agent.detect.cache.FileFingerprint;
 import jetbrains.buildServer.powershell.agent.detect.cmd.CommandLinePowerShellDetector;
+import jetbrains.buildServer.powershell.agent.detect.metadata.MetadataPowerShellDetector;
 import jetbrains.buildServer.powershell.agent.detect.registry.RegistryPowerShellDetector;
 import jetbrains.buildServer.powershell.common.PowerShellBitness;
 import jetbrains.buildServer.powershell.common.PowerShellConstants;
 import jetbrains.buildServer.powershell.common.PowerShellEdition;
-import jetbrains.buildServer.util.CollectionsUtil;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.EventDispatcher;
-import jetbrains.buildServer.util.VersionComparatorUtil;
+import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -32,21 +42,107 @@ public class PowerShellInfoProvider {
   @NotNull
   private static final Logger LOG = Loggers.DETECTION_LOGGER;
 
+  /**
+   * If set, agent is registered with PowerShells detected during previous run,
+   * detection itself is performed in background right after agent start
+   */
+  private static final String PARAM_ASYNC_STARTUP = "teamcity.powershell.detector.startup.async";
+
+  private static final String LAST_DETECTED_FILE_NAME = "detected.properties";
+
+  /**
+   * Time limit for detection performed when build can not select PowerShell
+   */
+  private static final String PARAM_ON_DEMAND_TIMEOUT = "teamcity.powershell.detector.ondemand.timeout.msec";
+
   @NotNull
   private final ShellInfoHolder myHolder;
 
+  @NotNull
+  private final BuildAgentConfiguration myConfiguration;
+
+  @NotNull
+  private final RegistryPowerShellDetector myRegistryDetector;
+
+  @NotNull
+  private final MetadataPowerShellDetector myMetadataDetector;
+
+  @NotNull
+  private final CommandLinePowerShellDetector myCommandLineDetector;
+
+  @NotNull
+  private final StartupLatencies myLatencies;
+
+  /**
+   * Parameters, that were last published to agent configuration
+   */
+  @NotNull
+  private volatile Map<String, String> myPublished = Collections.emptyMap();
+
+  /**
+   * Published parameters come from previous agent run and must be refreshed
+   */
+  private volatile boolean myRefreshPending = false;
+
+  /**
+   * Last search for newly installed shells found nothing.
+   * Builds do not search again until the next refresh or change in watched paths
+   */
+  private volatile boolean myNoNewShells = false;
+
+  /**
+   * Runs on-demand detections and startup measurements, builds only wait for detections for a limited time
+   */
+  @NotNull
+  private final ExecutorService myOnDemandExecutor = Executors.newSingleThreadExecutor(r -> {
+    final Thread t = new Thread(r, "PowerShell on-demand detection");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Executable path -> fingerprint stamp of registered shells, recorded at registration or first use
+   */
+  @NotNull
+  private final Map<String, String> myStamps = new ConcurrentHashMap<>();
+
   public PowerShellInfoProvider(@NotNull final ExtensionHolder extensionHolder,
+                                @NotNull final BuildAgentConfiguration configuration,
                                 @NotNull final RegistryPowerShellDetector registryPowerShellDetector,
                                 @NotNull final CommandLinePowerShellDetector commandLinePowerShellDetector,
+                                @NotNull final MetadataPowerShellDetector metadataPowerShellDetector,
                                 @NotNull final EventDispatcher<AgentLifeCycleListener> eventDispatcher,
-                                @NotNull final ShellInfoHolder holder) {
+                                @NotNull final ShellInfoHolder holder,
+                                @NotNull final StartupLatencies latencies) {
     myHolder = holder;
+    myLatencies = latencies;
+    myConfiguration = configuration;
+    myRegistryDetector = registryPowerShellDetector;
+    myMetadataDetector = metadataPowerShellDetector;
+    myCommandLineDetector = commandLinePowerShellDetector;
     extensionHolder.registerExtension(AgentParametersSupplier.class, getClass().getName(), new AgentParametersSupplier() {
       @Override
       public Map<String, String> getParameters() {
-        final Map<String, String> parameters = new HashMap<>();
-        registerDetectedPowerShells(registryPowerShellDetector, commandLinePowerShellDetector, parameters);
-        return parameters;
+        if (TeamCityProperties.getBoolean(PARAM_ASYNC_STARTUP)) {
+          final Map<String, String> lastDetected = loadLastDetected();
+          if (!lastDetected.isEmpty()) {
+            LOG.info("Registering PowerShells detected during previous agent run, detection will be performed in background");
+            addRegisteredPowershellsToState(lastDetected);
+            myPublished = lastDetected;
+            myRefreshPending = true;
+            final Map<String, String> result = new HashMap<>(lastDetected);
+            result.putAll(myLatencies.toParameters(myHolder.getShells().values()));
+            return result;
+          }
+        }
+        final DetectionReport report = new DetectionReport();
+        final Map<String, String> parameters = registerDetectedPowerShells(report);
+        myPublished = parameters;
+        saveLastDetected(parameters);
+        final Map<String, String> result = new HashMap<>(parameters);
+        result.putAll(report.toParameters());
+        result.putAll(myLatencies.toParameters(myHolder.getShells().values()));
+        return result;
       }
     });
 
@@ -55,17 +151,237 @@ public class PowerShellInfoProvider {
       public void agentStarted(@NotNull BuildAgent agent) {
         if (myHolder.getShells().isEmpty()) {
           LOG.info("Agent has been initialized from cache, registering powershells from configuration");
-          addRegisteredPowershellsToState(agent.getConfiguration());
+          addRegisteredPowershellsToState(agent.getConfiguration().getConfigurationParameters());
         }
       }
+
+      @Override
+      public void agentShutdown() {
+        myOnDemandExecutor.shutdownNow();
+      }
     });
   }
 
-  private void addRegisteredPowershellsToState(BuildAgentConfiguration configuration) {
-    final Map<String, String> configurationParameters = configuration.getConfigurationParameters();
+  /**
+   * Runs detection again and publishes changed parameters to agent configuration
+   *
+   * @return {@code true} if set of detected PowerShells has changed
+   */
+  public synchronized boolean refresh() {
+    final DetectionReport report = new DetectionReport();
+    return publish(registerDetectedPowerShells(report), report);
+  }
+
+  /**
+   * Re-detects PowerShell in given paths only. Shells detected elsewhere are kept as long as their executables exist
+   *
+   * @param changedPaths paths to detect PowerShell in
+   * @return {@code true} if set of detected PowerShells has changed
+   */
+  public synchronized boolean refresh(@NotNull final Collection<String> changedPaths) {
+    final DetectionReport report = new DetectionReport();
+    final Map<String, PowerShellInfo> shells = new HashMap<>();
+    for (Map.Entry<String, PowerShellInfo> entry : myHolder.getShells().entrySet()) {
+      final PowerShellInfo info = entry.getValue();
+      if (new File(info.getHome(), info.getExecutable()).isFile()) {
+        shells.put(entry.getKey(), info);
+      }
+    }
+    long started = System.nanoTime();
+    final Map<String, PowerShellInfo> fromMetadata = myMetadataDetector.findShells(changedPaths, Collections.emptySet(), report);
+    report.stageFinished("metadata", started);
+    shells.putAll(fromMetadata);
+    started = System.nanoTime();
+    shells.putAll(myCommandLineDetector.findShells(changedPaths, fromMetadata.keySet(), report));
+    report.stageFinished("cmd", started);
+    finishReport(report);
+    return publish(registerShells(shells), report);
+  }
+
+  /**
+   * Selects PowerShell for a build.
+   * If no shell matches, search paths are inspected for shells installed after the last detection,
+   * unless previous search found nothing and no detection happened since then.
+   * If selected shell has changed on disk since detection, it is detected again
+   *
+   * @return selected shell or {@code null} if no shell satisfies requirements
+   */
+  @Nullable
+  public PowerShellInfo selectToolForBuild(@Nullable final PowerShellBitness bit,
+                                           @Nullable final String version,
+                                           @Nullable final PowerShellEdition edition) {
+    final PowerShellInfo selected = selectTool(bit, version, edition);
+    if (selected != null) {
+      if (isUnchanged(selected)) {
+        return selected;
+      }
+      LOG.info(selected + " has changed since detection, detecting it again");
+      runBounded(() -> redetect(selected));
+    } else if (myNoNewShells) {
+      LOG.debug("No detected PowerShell matches build requirements, previous search for newly installed ones found nothing");
+      return null;
+    } else {
+      LOG.info("No detected PowerShell matches build requirements, looking for newly installed ones");
+      runBounded(this::detectNewShells);
+    }
+    final PowerShellInfo result = selectTool(bit, version, edition);
+    if (result != null && !result.isVirtual() && !new File(result.getHome(), result.getExecutable()).isFile()) {
+      return null;
+    }
+    return result;
+  }
+
+  /**
+   * Inspects search paths, skipping homes of already known shells
+   *
+   * @return {@code true} if set of detected PowerShells has changed
+   */
+  synchronized boolean detectNewShells() {
+    final DetectionReport report = new DetectionReport();
+    final Map<String, PowerShellInfo> shells = new HashMap<>(myHolder.getShells());
+    final Set<String> known = new HashSet<>(shells.keySet());
+    for (PowerShellInfo info : shells.values()) {
+      known.add(FileUtil.getCanonicalFile(info.getHome()).getPath());
+    }
+    long started = System.nanoTime();
+    final Map<String, PowerShellInfo> fromMetadata = myMetadataDetector.findShells(known, report);
+    report.stageFinished("metadata", started);
+    shells.putAll(fromMetadata);
+    known.addAll(fromMetadata.keySet());
+    started = System.nanoTime();
+    shells.putAll(myCommandLineDetector.findShells(known, report));
+    report.stageFinished("cmd", started);
+    finishReport(report);
+    final boolean changed = publish(registerShells(shells), report);
+    myNoNewShells = !changed;
+    return changed;
+  }
+
+  /**
+   * Detects given shell again, in its home only
+   *
+   * @return {@code true} if set of detected PowerShells has changed
+   */
+  private synchronized boolean redetect(@NotNull final PowerShellInfo changed) {
+    final Map<String, PowerShellInfo> shells = new HashMap<>(myHolder.getShells());
+    shells.values().removeIf(info -> info.getExecutablePath().equals(changed.getExecutablePath()));
+    final Collection<String> paths = Collections.singletonList(changed.getHome().getAbsolutePath());
+    final DetectionReport report = new DetectionReport();
+    final Map<String, PowerShellInfo> fromMetadata = myMetadataDetector.findShells(paths, Collections.emptySet(), report);
+    shells.putAll(fromMetadata);
+    shells.putAll(myCommandLineDetector.findShells(paths, fromMetadata.keySet(), report));
+    finishReport(report);
+    return publish(registerShells(shells), report);
+  }
+
+  /**
+   * Runs detection, waiting for it no longer than {@link #PARAM_ON_DEMAND_TIMEOUT}.
+   * If detection takes longer, it completes in background. Non-positive timeout disables on-demand detection
+   */
+  private void runBounded(@NotNull final Callable<Boolean> detection) {
+    final int timeout = TeamCityProperties.getInteger(PARAM_ON_DEMAND_TIMEOUT, 15000);
+    if (timeout <= 0) {
+      return;
+    }
+    final Future<Boolean> task;
+    try {
+      task = myOnDemandExecutor.submit(detection);
+    } catch (RejectedExecutionException e) {
+      // agent is shutting down
+      return;
+    }
+    try {
+      task.get(timeout, TimeUnit.MILLISECONDS);
+    } catch (TimeoutException e) {
+      LOG.warn("On-demand PowerShell detection did not finish in " + timeout + " msec, it will be completed in background");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      LOG.warnAndDebugDetails("On-demand PowerShell detection failed", e.getCause());
+    }
+  }
+
+  /**
+   * @return {@code true} if executable of the shell is the same file it was during detection
+   */
+  private boolean isUnchanged(@NotNull final PowerShellInfo info) {
+    if (info.isVirtual()) {
+      return true;
+    }
+    final FileFingerprint fingerprint = FileFingerprint.of(new File(info.getHome(), info.getExecutable()));
+    if (fingerprint == null) {
+      return false;
+    }
+    // shells restored from previous run are trusted on first use
+    final String recorded = myStamps.putIfAbsent(info.getExecutablePath(), fingerprint.getStamp());
+    return recorded == null || recorded.equals(fingerprint.getStamp());
+  }
+
+  private void recordStamps(@NotNull final Collection<PowerShellInfo> shells) {
+    myStamps.clear();
+    for (PowerShellInfo info : shells) {
+      if (!info.isVirtual()) {
+        final FileFingerprint fingerprint = FileFingerprint.of(new File(info.getHome(), info.getExecutable()));
+        if (fingerprint != null) {
+          myStamps.put(info.getExecutablePath(), fingerprint.getStamp());
+        }
+      }
+    }
+  }
+
+  /**
+   * Publishes parameters, if they differ from previously published ones.
+   * Detection report is published along with changed parameters only, timings alone do not update agent configuration
+   */
+  private boolean publish(@NotNull final Map<String, String> parameters, @NotNull final DetectionReport report) {
+    final Map<String, String> previous = myPublished;
+    myRefreshPending = false;
+    myNoNewShells = false;
+    if (parameters.equals(previous)) {
+      LOG.debug("PowerShell re-detection found no changes");
+      return false;
+    }
+    LOG.info("Detected PowerShells have changed, updating agent configuration parameters");
+    for (Map.Entry<String, String> entry : parameters.entrySet()) {
+      if (!entry.getValue().equals(previous.get(entry.getKey()))) {
+        myConfiguration.addConfigurationParameter(entry.getKey(), entry.getValue());
+      }
+    }
+    for (Map.Entry<String, String> entry : report.toParameters().entrySet()) {
+      myConfiguration.addConfigurationParameter(entry.getKey(), entry.getValue());
+    }
+    for (String key : previous.keySet()) {
+      if (!parameters.containsKey(key)) {
+        LOG.info("PowerShell parameter " + key + " is no longer provided, it will be removed after agent restart");
+      }
+    }
+    myPublished = parameters;
+    saveLastDetected(parameters);
+    return true;
+  }
+
+  /**
+   * @return {@code true} if agent was registered with results of previous run and they are not refreshed yet
+   */
+  boolean isRefreshPending() {
+    return myRefreshPending;
+  }
+
+  private void addRegisteredPowershellsToState(@NotNull final Map<String, String> configurationParameters) {
+    final Map<String, PowerShellInfo> recorded = ShellRecord.decode(configurationParameters.get(ShellRecord.PARAM_NAME));
+    if (recorded != null) {
+      myHolder.replaceShells(recorded);
+      return;
+    }
+    // parameters were published by previous version of the plugin
     configurationParameters.entrySet()
                            .stream()
                            .filter(entry -> entry.getKey().startsWith(PowerShellConstants.POWERSHELL_PREFIX) && !entry.getKey().endsWith(PowerShellConstants.PATH_SUFFIX))
+                           // capabilities of the shells
+                           .filter(entry -> PowerShellConstants.CAPABILITY_SUFFIXES.stream().noneMatch(entry.getKey()::endsWith))
+                           // aggregate max versions
+                           .filter(entry -> !entry.getKey().startsWith(PowerShellConstants.POWERSHELL_PREFIX + PowerShellConstants.ANY + "_")
+                                            && !entry.getKey().endsWith("_" + PowerShellConstants.ANY))
                            .forEach(entry -> {
                              final String[] powerShellParts = entry.getKey().split("_");
 
@@ -106,23 +422,67 @@ public class PowerShellInfoProvider {
     }
   }
 
-  private void registerDetectedPowerShells(RegistryPowerShellDetector registryPowerShellDetector,
-                                           CommandLinePowerShellDetector commandLinePowerShellDetector,
-                                           Map<String, String> parameters) {
+  @NotNull
+  private synchronized Map<String, String> registerDetectedPowerShells(@NotNull final DetectionReport report) {
+    long started = System.nanoTime();
+    final Map<String, PowerShellInfo> fromManifest = loadManifest();
+    report.stageFinished("manifest", started);
+    if (fromManifest != null) {
+      finishReport(report);
+      return registerShells(fromManifest);
+    }
+    started = System.nanoTime();
     Map<String, PowerShellInfo> shellsFromReg = SystemInfo.isWindows
-      ? registryPowerShellDetector.findShells()
+      ? myRegistryDetector.findShells()
       : Collections.emptyMap();
-    Map<String, PowerShellInfo> shellsFromCmd = commandLinePowerShellDetector.findShells(shellsFromReg.keySet());
+    report.stageFinished("registry", started);
     Map<String, PowerShellInfo> shells = new HashMap<>(shellsFromReg);
-    shells.putAll(shellsFromCmd);
-    for (Map.Entry<String, PowerShellInfo> entry : shells.entrySet()) {
-      if (!myHolder.getShells().containsKey(entry.getKey())) {
-        entry.getValue().saveInfo(parameters);
-        myHolder.addShellInfo(entry.getKey(), entry.getValue());
-      }
+    // metadata detection does not start any processes, command line detection is used for what is left
+    started = System.nanoTime();
+    shells.putAll(myMetadataDetector.findShells(shells.keySet(), report));
+    report.stageFinished("metadata", started);
+    started = System.nanoTime();
+    shells.putAll(myCommandLineDetector.findShells(shells.keySet(), report));
+    report.stageFinished("cmd", started);
+    finishReport(report);
+    return registerShells(shells);
+  }
+
+  /**
+   * @return shells from precomputed manifest, {@code null} if it is not configured or can not be used
+   */
+  @Nullable
+  private Map<String, PowerShellInfo> loadManifest() {
+    final String path = myConfiguration.getConfigurationParameters().get(DetectionManifest.PARAM_MANIFEST_PATH);
+    if (path == null || path.trim().isEmpty()) {
+      return null;
+    }
+    final Map<String, PowerShellInfo> result = DetectionManifest.load(new File(path.trim()));
+    if (result == null) {
+      LOG.info("PowerShell detection manifest can not be used, falling back to detection");
+    } else {
+      LOG.info("Using " + result.size() + " PowerShell(s) from detection manifest [" + path.trim() + "]");
+    }
+    return result;
+  }
+
+  private static void finishReport(@NotNull final DetectionReport report) {
+    report.finish();
+    LOG.info(report.toLogLine());
+  }
+
+  @NotNull
+  private Map<String, String> registerShells(@NotNull final Map<String, PowerShellInfo> shells) {
+    myHolder.replaceShells(shells);
+    recordStamps(shells.values());
+    myLatencies.measureInBackground(shells.values(), myOnDemandExecutor);
+    final Map<String, String> parameters = new HashMap<>();
+    for (PowerShellInfo info : shells.values()) {
+      info.saveInfo(parameters);
     }
     // provide parameters for agent compatibility filters
     if (!myHolder.getShells().isEmpty()) {
+      parameters.put(ShellRecord.PARAM_NAME, ShellRecord.encode(shells));
       provideMaxVersions(parameters);
       provideCompatibilityParams(parameters);
     } else {
@@ -130,27 +490,82 @@ public class PowerShellInfoProvider {
                "please provide install locations in teamcity.powershell.detector.search.paths " +
                "agent property (with ';' as a separator)");
     }
+    return parameters;
+  }
+
+  @NotNull
+  private Map<String, String> loadLastDetected() {
+    final File file = getLastDetectedFile();
+    final Map<String, String> result = new HashMap<>();
+    if (file.isFile()) {
+      final Properties props = new Properties();
+      try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+        props.load(reader);
+        for (String key : props.stringPropertyNames()) {
+          result.put(key, props.getProperty(key));
+        }
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to read previously detected PowerShells from [" + file.getAbsolutePath() + "]", e);
+        result.clear();
+      }
+    }
+    return result;
+  }
+
+  private void saveLastDetected(@NotNull final Map<String, String> parameters) {
+    final File file = getLastDetectedFile();
+    final Properties props = new Properties();
+    props.putAll(parameters);
+    // written via temporary file, so interrupted write never leaves truncated file for the next agent start
+    final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+        props.store(writer, "Detected PowerShells");
+      }
+      moveAtomically(tmp, file);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to save detected PowerShells to [" + file.getAbsolutePath() + "]", e);
+    }
+  }
+
+  private static void moveAtomically(@NotNull final File source, @NotNull final File target) throws IOException {
+    try {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  @NotNull
+  private File getLastDetectedFile() {
+    return new File(myConfiguration.getCacheDirectory(PowerShellConstants.PLUGIN_NAME), LAST_DETECTED_FILE_NAME);
   }
 
   /**
-   * Provides max version of all {@code edition x bitness} combinations.
-   * Helps with agent requirements
+   * Provides max version of all {@code edition x bitness} combinations, including aggregates for any edition and/or bitness.
+   * Helps with agent requirements: each runner requirement is matched against single parameter
    */
   private void provideMaxVersions(Map<String, String> parameters) {
-    for (PowerShellBitness bitness : PowerShellBitness.values()) {
-      for (PowerShellEdition edition : PowerShellEdition.values()) {
-        PowerShellInfo info = selectTool(bitness, null, edition);
+    final ShellIndex index = myHolder.getIndex();
+    final List<PowerShellBitness> bitnesses = new ArrayList<>(Arrays.asList(PowerShellBitness.values()));
+    bitnesses.add(null);
+    final List<PowerShellEdition> editions = new ArrayList<>(Arrays.asList(PowerShellEdition.values()));
+    editions.add(null);
+    for (PowerShellBitness bitness : bitnesses) {
+      for (PowerShellEdition edition : editions) {
+        PowerShellInfo info = index.selectMaxVersion(bitness, edition);
         if (info != null) {
-          parameters.put(PowerShellConstants.generateGeneralKey(edition, bitness), info.getVersion());
+          parameters.put(PowerShellConstants.generateAggregateKey(edition, bitness), info.getVersion());
         }
       }
     }
   }
 
   private void provideCompatibilityParams(Map<String, String> parameters) {
+    final ShellIndex index = myHolder.getIndex();
     for (PowerShellBitness bitness : PowerShellBitness.values()) {
       // select shell info of max version of each bitness and provide legacy parameters
-      PowerShellInfo info = selectTool(bitness, null, null);
+      PowerShellInfo info = index.select(bitness, null, null);
       if (info != null) {
         LegacyKeys.fillLegacyKeys(parameters, bitness, info);
       }
@@ -165,64 +580,14 @@ public class PowerShellInfoProvider {
   public PowerShellInfo selectTool(@Nullable final PowerShellBitness bit,
                                    @Nullable final String version,
                                    @Nullable final PowerShellEdition edition) {
-    // filter by edition
-    List<PowerShellInfo> availableShells = new ArrayList<>(myHolder.getShells().values());
-    if (edition != null) {
-      availableShells = CollectionsUtil.filterCollection(availableShells, data -> edition.equals(data.getEdition()));
-    }
-    // filter by version
-    if (version != null) {
-      availableShells = CollectionsUtil.filterCollection(availableShells, data -> VersionComparatorUtil.compare(data.getVersion(), version) >= 0);
-    }
-    // filter by bitness
-    if (bit != null) {
-      availableShells = CollectionsUtil.filterCollection(availableShells, data -> data.getBitness().equals(bit));
-    }
-    if (availableShells.isEmpty()) {
-      return null;
-    }
-    if (availableShells.size() == 1) {
-      return availableShells.get(0);
-    }
-    // prefer desktop over core
-    if (edition == null) {
-      Map<PowerShellEdition, List<PowerShellInfo>> byEdition = new HashMap<>();
-      for (PowerShellInfo info : availableShells) {
-        if (!byEdition.containsKey(info.getEdition())) {
-          byEdition.put(info.getEdition(), new ArrayList<>());
-        }
-        byEdition.get(info.getEdition()).add(info);
+    final ShellIndex index = myHolder.getIndex();
+    final String minVersion = version == null || version.trim().isEmpty() ? null : version.trim();
+    if (edition == null && myLatencies.isPolicyEnabled()) {
+      final PowerShellInfo fastest = index.selectFastest(bit, minVersion, null, myLatencies::getMillis);
+      if (fastest != null) {
+        return fastest;
       }
-      if (byEdition.get(PowerShellEdition.DESKTOP) != null) {
-        availableShells = byEdition.get(PowerShellEdition.DESKTOP);
-      } else {
-        availableShells = byEdition.get(PowerShellEdition.CORE);
-      }
-    }
-    if (availableShells.size() == 1) {
-      return availableShells.get(0);
-    }
-    // prefer 64bit over 32bit
-    if (bit == null) {
-      Map<PowerShellBitness, List<PowerShellInfo>> byBits = new HashMap<>();
-      for (PowerShellInfo info : availableShells) {
-        if (!byBits.containsKey(info.getBitness())) {
-          byBits.put(info.getBitness(), new ArrayList<>());
-        }
-        byBits.get(info.getBitness()).add(info);
-      }
-      if (byBits.containsKey(PowerShellBitness.x64)) {
-        availableShells = byBits.get(PowerShellBitness.x64);
-      } else {
-        availableShells = byBits.get(PowerShellBitness.x86);
-      }
-    }
-    if (availableShells.isEmpty()) {
-      return null;
-    }
-    if (availableShells.size() == 1) {
-      return availableShells.get(0);
     }
-    return Collections.max(availableShells, (info1, info2) -> VersionComparatorUtil.compare(info1.getVersion(), info2.getVersion()));
+    return index.select(bit, minVersion, edition);
   }
 }
\ No newline at end of file
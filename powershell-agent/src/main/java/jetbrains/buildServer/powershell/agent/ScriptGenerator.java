@@ -9,9 +9,16 @@ import jetbrains.buildServer.powershell.common.PowerShellExecutionMode;
 import jetbrains.buildServer.powershell.common.PowerShellScriptMode;
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
-import java.io.*;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Base64;
 import java.util.Map;
 
 import static com.intellij.openapi.util.text.StringUtil.convertLineSeparators;
@@ -26,7 +33,18 @@ import static jetbrains.buildServer.powershell.common.PowerShellConstants.*;
 public class ScriptGenerator {
 
   private static final Logger LOG = Logger.getInstance(ScriptGenerator.class.getName());
-  private static final char BOM = '\ufeff';
+
+  /**
+   * Max length of {@code -EncodedCommand} value, keeps command line well below 32767 characters limit of Windows
+   */
+  static final int MAX_ENCODED_COMMAND_LENGTH = 16384;
+
+  @NotNull
+  private final ScriptStore myStore;
+
+  public ScriptGenerator(@NotNull final ScriptStore store) {
+    myStore = store;
+  }
 
   /**
    * Gets script source file either from parameter by dumping it to temp file
@@ -35,6 +53,7 @@ public class ScriptGenerator {
    * @param runnerParameters runner parameters
    * @param buildCheckoutDir checkout directory
    * @param buildTempDir     temp directory
+   * @param allowStore       if {@code false}, inline script is never kept in {@link ScriptStore}, e.g. because it contains secure values
    * @return if {@code PowerShellScriptMode.FILE} is used - file, that corresponds to {@code RUNNER_SCRIPT_FILE} param,
    * if {@code PowerShellScriptMode.CODE} is used - temp file, containing code from {@code RUNNER_SCRIPT_CODE} param
    * @throws RunBuildException if value if {@code RUNNER_SCRIPT_CODE} param is empty, or file handling error occurred
@@ -43,7 +62,8 @@ public class ScriptGenerator {
   public File generateScript(@NotNull final Map<String, String> runnerParameters,
                              @NotNull final File buildCheckoutDir,
                              @NotNull final File buildTempDir,
-                             @NotNull final File workingDir) throws RunBuildException {
+                             @NotNull final File workingDir,
+                             final boolean allowStore) throws RunBuildException {
     final PowerShellScriptMode scriptMode = PowerShellScriptMode.fromString(runnerParameters.get(RUNNER_SCRIPT_MODE));
     File scriptFile;
     if (PowerShellScriptMode.FILE == scriptMode) {
@@ -60,12 +80,11 @@ public class ScriptGenerator {
       if (isEmptyOrSpaces(sourceScript)) {
         throw new RunBuildException("Empty build script");
       }
-      sourceScript = convertLineSeparators(sourceScript, "\r\n");
       /*if (PowerShellExecutionMode.STDIN.equals(PowerShellExecutionMode.fromString(runnerParameters.get(RUNNER_EXECUTION_MODE)))) {
         //some newlines are necessary to workaround -Command - issues, like TW-19771
         sourceScript = "  \r\n  \r\n  \r\n" + sourceScript + "\r\n  \r\n   \r\n   ";
       }*/
-      scriptFile = writeToTempFile(buildTempDir, sourceScript, runnerParameters);
+      scriptFile = writeToTempFile(buildTempDir, sourceScript, runnerParameters, allowStore);
     }
     if (!scriptFile.isFile()) {
       throw new RunBuildException("Cannot find PowerShell script by path specified in build configuration settings: "
@@ -74,30 +93,109 @@ public class ScriptGenerator {
     return scriptFile;
   }
 
-  public static boolean shouldRemoveGeneratedScript(@NotNull final Map<String, String> runnerParameters) {
-    return PowerShellScriptMode.CODE == PowerShellScriptMode.fromString(runnerParameters.get(PowerShellConstants.RUNNER_SCRIPT_MODE));
+  /**
+   * Encodes inline script for {@code -EncodedCommand}, so it runs without temp file
+   *
+   * @param runnerParameters runner parameters
+   * @return Base64 of UTF-16LE script text, {@code null} if script is not inline or is too long for command line
+   * @throws RunBuildException if value of {@code RUNNER_SCRIPT_CODE} param is empty
+   */
+  @Nullable
+  public String generateEncodedCommand(@NotNull final Map<String, String> runnerParameters) throws RunBuildException {
+    if (PowerShellScriptMode.CODE != PowerShellScriptMode.fromString(runnerParameters.get(RUNNER_SCRIPT_MODE))) {
+      return null;
+    }
+    final String sourceScript = runnerParameters.get(RUNNER_SCRIPT_CODE);
+    if (isEmptyOrSpaces(sourceScript)) {
+      throw new RunBuildException("Empty build script");
+    }
+    // 2 bytes per char, 4 Base64 chars per 3 bytes; line separators conversion only makes script longer
+    if ((long) sourceScript.length() * 8 / 3 > MAX_ENCODED_COMMAND_LENGTH) {
+      return null;
+    }
+    final String text = convertLineSeparators(sourceScript, "\r\n");
+    final String result = Base64.getEncoder().encodeToString(text.getBytes(StandardCharsets.UTF_16LE));
+    return result.length() <= MAX_ENCODED_COMMAND_LENGTH ? result : null;
+  }
+
+  /**
+   * @param runnerParameters runner parameters
+   * @param scriptFile       script returned by {@link #generateScript}
+   * @return {@code true} if script was generated for the step and must be removed after it finishes.
+   * Scripts kept in {@link ScriptStore} are shared between steps and are removed by the store itself
+   */
+  public boolean shouldRemoveGeneratedScript(@NotNull final Map<String, String> runnerParameters, @NotNull final File scriptFile) {
+    return PowerShellScriptMode.CODE == PowerShellScriptMode.fromString(runnerParameters.get(PowerShellConstants.RUNNER_SCRIPT_MODE))
+            && !myStore.contains(scriptFile);
+  }
+
+  /**
+   * Writes {@code .bat} file, that runs given command. If {@link ScriptStore} is enabled, the file is kept there,
+   * so steps running the same command reuse it
+   *
+   * @param buildTempDir temp directory
+   * @param command      command to run
+   * @param allowStore   if {@code false}, file is never kept in {@link ScriptStore}, e.g. because command contains secure values
+   * @return {@code .bat} file, it must be removed after the step unless {@link #isStored} is {@code true}
+   * @throws RunBuildException if file could not be written
+   */
+  @NotNull
+  public File generateBatchFile(@NotNull final File buildTempDir,
+                                @NotNull final String command,
+                                final boolean allowStore) throws RunBuildException {
+    final String text = "@" + command;
+    if (allowStore && myStore.isEnabled()) {
+      final byte[] bytes = text.getBytes(Charset.defaultCharset());
+      try {
+        return myStore.store(channel -> {
+          final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }, ".bat");
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to store generated .bat file, temp file will be used", e);
+      }
+    }
+    try {
+      final File bat = FileUtil.createTempFile(buildTempDir, "powershell", ".bat", true);
+      FileUtil.writeFileAndReportErrors(bat, text);
+      return bat;
+    } catch (IOException e) {
+      throw new RunBuildException("Failed to generate .bat file");
+    }
+  }
+
+  /**
+   * @return {@code true} if file is kept in {@link ScriptStore}, so it is shared between steps and must not be removed
+   */
+  public boolean isStored(@NotNull final File file) {
+    return myStore.contains(file);
   }
 
   @NotNull
   private File writeToTempFile(@NotNull final File buildTempDir,
                                @NotNull final String text,
-                               @NotNull final Map<String, String> runnerParameters) throws RunBuildException {
-    Closeable handle = null;
-    File file;
+                               @NotNull final Map<String, String> runnerParameters,
+                               final boolean allowStore) throws RunBuildException {
+    final boolean addBom = PowerShellExecutionMode.PS1 == PowerShellExecutionMode.fromString(runnerParameters.get(RUNNER_EXECUTION_MODE));
+    final ScriptStore.Content content = channel -> ScriptWriter.write(text, addBom, channel);
+    if (allowStore && myStore.isEnabled()) {
+      try {
+        return myStore.store(content);
+      } catch (IOException e) {
+        LOG.warnAndDebugDetails("Failed to store generated PowerShell script, temp file will be used", e);
+      }
+    }
     try {
-      file = FileUtil.createTempFile(buildTempDir, "powershell", ".ps1", true);
-      OutputStreamWriter w = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
-      handle = w;
-      if (PowerShellExecutionMode.PS1 == PowerShellExecutionMode.fromString(runnerParameters.get(RUNNER_EXECUTION_MODE))) {
-        w.write(BOM);
+      final File file = FileUtil.createTempFile(buildTempDir, "powershell", ".ps1", true);
+      try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        content.writeTo(channel);
       }
-      w.write(text);
       return file;
     } catch (IOException e) {
       LOG.error("Error occurred while processing file for PowerShell script", e);
       throw new RunBuildException("Failed to generate temporary resulting PowerShell script due to exception", e);
-    } finally {
-      FileUtil.close(handle);
     }
   }
 }
\ No newline at end of file
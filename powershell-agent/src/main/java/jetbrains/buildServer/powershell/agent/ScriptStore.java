@@ -0,0 +1,252 @@
+package jetbrains.buildServer.powershell.agent;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Agent-level store of generated scripts, keyed by hash of their content.
+ *
+ * Identical scripts are written once and then reused by all builds, files keep their paths between runs.
+ * Enabled with {@code teamcity.powershell.script.store.enabled} agent configuration parameter, scripts are kept in plugin cache directory
+ * or in directory set with {@code teamcity.powershell.script.store.dir} parameter (e.g. on tmpfs).
+ * Least recently used scripts are evicted once store exceeds size or age limit.
+ *
+ * Scripts contain parameter values resolved for the build, so the directory and the scripts are made accessible
+ * to the agent user only (where POSIX permissions are supported). Scripts with secure values must not be stored
+ */
+public class ScriptStore {
+
+  private static final Logger LOG = Logger.getInstance(ScriptStore.class.getName());
+
+  private static final String PARAM_ENABLED = "teamcity.powershell.script.store.enabled";
+
+  private static final String PARAM_DIR = "teamcity.powershell.script.store.dir";
+
+  private static final String PARAM_MAX_SIZE_MB = "teamcity.powershell.script.store.max.size.mb";
+
+  private static final String PARAM_MAX_AGE_HOURS = "teamcity.powershell.script.store.max.age.hours";
+
+  /**
+   * Scripts used recently may still be read by running steps, they are never evicted.
+   * Stored scripts are not locked while used, so this should exceed duration of the longest step reading its script
+   */
+  private static final String PARAM_MIN_AGE_MINUTES = "teamcity.powershell.script.store.min.age.minutes";
+
+  private static final Set<PosixFilePermission> DIR_PERMISSIONS = PosixFilePermissions.fromString("rwx------");
+
+  private static final Set<PosixFilePermission> FILE_PERMISSIONS = PosixFilePermissions.fromString("rw-------");
+
+  private static final String EXTENSION = ".ps1";
+
+  private static final List<String> EXTENSIONS = Arrays.asList(EXTENSION, ".bat");
+
+  /**
+   * Writes script content
+   */
+  public interface Content {
+    void writeTo(@NotNull WritableByteChannel channel) throws IOException;
+  }
+
+  @NotNull
+  private final BuildAgentConfiguration myConfiguration;
+
+  public ScriptStore(@NotNull final BuildAgentConfiguration configuration) {
+    myConfiguration = configuration;
+  }
+
+  public boolean isEnabled() {
+    return StringUtil.isTrue(getParameters().get(PARAM_ENABLED));
+  }
+
+  /**
+   * @return {@code true} if the file belongs to the store, so it must not be removed after the step
+   */
+  public boolean contains(@NotNull final File file) {
+    return isEnabled() && getDir().equals(file.getParentFile());
+  }
+
+  /**
+   * Returns stored script with given content, writing it only if there is no such script yet
+   *
+   * @param content script content, may be written several times
+   * @return stored script file
+   * @throws IOException if script could not be stored
+   */
+  @NotNull
+  public File store(@NotNull final Content content) throws IOException {
+    return store(content, EXTENSION);
+  }
+
+  /**
+   * Returns stored file with given content and extension, writing it only if there is no such file yet
+   *
+   * @param content   file content, may be written several times
+   * @param extension file extension, either {@code .ps1} or {@code .bat}
+   * @return stored file
+   * @throws IOException if file could not be stored
+   */
+  @NotNull
+  public File store(@NotNull final Content content, @NotNull final String extension) throws IOException {
+    if (!EXTENSIONS.contains(extension)) {
+      throw new IllegalArgumentException("Unsupported extension of stored script: " + extension);
+    }
+    final File dir = getDir();
+    final File file = new File(dir, hash(content) + extension);
+    if (file.isFile()) {
+      // keeps the script from eviction
+      if (!file.setLastModified(System.currentTimeMillis())) {
+        LOG.debug("Failed to update last modified time of " + file);
+      }
+      return file;
+    }
+    if (!dir.isDirectory()) {
+      if (!dir.mkdirs()) {
+        throw new IOException("Failed to create script store directory " + dir.getAbsolutePath());
+      }
+      restrictAccess(dir.toPath(), DIR_PERMISSIONS);
+    }
+    final File tmp = FileUtil.createTempFile(dir, "powershell", ".tmp", true);
+    try {
+      restrictAccess(tmp.toPath(), FILE_PERMISSIONS);
+      try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        content.writeTo(channel);
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      FileUtil.delete(tmp);
+    }
+    evict(dir, file);
+    return file;
+  }
+
+  private void evict(@NotNull final File dir, @NotNull final File keep) {
+    final File[] files = dir.listFiles((d, name) -> EXTENSIONS.stream().anyMatch(name::endsWith));
+    if (files == null) {
+      return;
+    }
+    final long now = System.currentTimeMillis();
+    final long maxAge = getInteger(PARAM_MAX_AGE_HOURS, 7 * 24) * 60 * 60 * 1000L;
+    final long maxSize = getInteger(PARAM_MAX_SIZE_MB, 64) * 1024L * 1024L;
+    final long minAge = getInteger(PARAM_MIN_AGE_MINUTES, 60) * 60 * 1000L;
+    final List<File> sorted = new ArrayList<>(Arrays.asList(files));
+    sorted.sort(Comparator.comparingLong(File::lastModified));
+    long size = 0;
+    for (File file : sorted) {
+      size += file.length();
+    }
+    for (File file : sorted) {
+      final long age = now - file.lastModified();
+      if (file.equals(keep) || age < minAge || (age <= maxAge && size <= maxSize)) {
+        continue;
+      }
+      final long length = file.length();
+      if (FileUtil.delete(file)) {
+        size -= length;
+      }
+    }
+  }
+
+  private static void restrictAccess(@NotNull final Path path, @NotNull final Set<PosixFilePermission> permissions) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, permissions);
+    } catch (UnsupportedOperationException e) {
+      // not a POSIX file system, the directory inherits access rules of the agent cache directory
+      LOG.debug("Failed to restrict access to " + path + ": " + e.getMessage());
+    }
+  }
+
+  @NotNull
+  private File getDir() {
+    final String path = getParameters().get(PARAM_DIR);
+    if (path != null && !path.trim().isEmpty()) {
+      return new File(path.trim());
+    }
+    return new File(myConfiguration.getCacheDirectory(PowerShellConstants.PLUGIN_NAME), "scripts");
+  }
+
+  private int getInteger(@NotNull final String name, final int defaultValue) {
+    final String value = getParameters().get(name);
+    if (value != null && !value.trim().isEmpty()) {
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        LOG.warn("Invalid value of " + name + " parameter: " + value);
+      }
+    }
+    return defaultValue;
+  }
+
+  @NotNull
+  private Map<String, String> getParameters() {
+    return myConfiguration.getConfigurationParameters();
+  }
+
+  @NotNull
+  private static String hash(@NotNull final Content content) throws IOException {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    content.writeTo(new DigestChannel(digest));
+    final StringBuilder sb = new StringBuilder();
+    for (byte b : digest.digest()) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Only feeds written bytes to the digest
+   */
+  private static class DigestChannel implements WritableByteChannel {
+
+    @NotNull
+    private final MessageDigest myDigest;
+
+    DigestChannel(@NotNull final MessageDigest digest) {
+      myDigest = digest;
+    }
+
+    @Override
+    public int write(@NotNull final ByteBuffer src) {
+      final int count = src.remaining();
+      myDigest.update(src);
+      return count;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
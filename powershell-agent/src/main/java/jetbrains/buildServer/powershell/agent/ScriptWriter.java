@@ -0,0 +1,86 @@
+package jetbrains.buildServer.powershell.agent;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes script text as UTF-8 with {@code \r\n} line separators.
+ *
+ * Separators are converted and text is encoded chunk by chunk, so memory used does not depend on script size
+ * and the channel is always written with full buffers
+ */
+final class ScriptWriter {
+
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private static final char BOM = '\ufeff';
+
+  private ScriptWriter() {
+  }
+
+  static void write(@NotNull final CharSequence text,
+                    final boolean addBom,
+                    @NotNull final WritableByteChannel channel) throws IOException {
+    final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE / 4);
+    final ByteBuffer bytes = ByteBuffer.allocate(CHUNK_SIZE);
+    if (addBom) {
+      chars.put(BOM);
+    }
+    final int length = text.length();
+    for (int i = 0; i < length; i++) {
+      if (chars.remaining() < 2) {
+        encode(encoder, chars, bytes, channel, false);
+      }
+      final char c = text.charAt(i);
+      if (c == '\r' || c == '\n') {
+        chars.put('\r').put('\n');
+        if (c == '\r' && i + 1 < length && text.charAt(i + 1) == '\n') {
+          i++;
+        }
+      } else {
+        chars.put(c);
+      }
+    }
+    encode(encoder, chars, bytes, channel, true);
+    while (encoder.flush(bytes).isOverflow()) {
+      flush(bytes, channel);
+    }
+    flush(bytes, channel);
+  }
+
+  private static void encode(@NotNull final CharsetEncoder encoder,
+                             @NotNull final CharBuffer chars,
+                             @NotNull final ByteBuffer bytes,
+                             @NotNull final WritableByteChannel channel,
+                             final boolean endOfInput) throws IOException {
+    chars.flip();
+    CoderResult result;
+    while ((result = encoder.encode(chars, bytes, endOfInput)).isOverflow()) {
+      flush(bytes, channel);
+    }
+    if (result.isError()) {
+      result.throwException();
+    }
+    // unpaired high surrogate at the end of the chunk stays in the buffer until its pair arrives
+    chars.compact();
+  }
+
+  private static void flush(@NotNull final ByteBuffer bytes, @NotNull final WritableByteChannel channel) throws IOException {
+    bytes.flip();
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+    bytes.clear();
+  }
+}
@@ -0,0 +1,195 @@
+package jetbrains.buildServer.powershell.agent;
+
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.util.VersionComparatorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.ToLongFunction;
+
+/**
+ * Immutable snapshot of detected shells, indexed by {@code edition x bitness}.
+ * Shells of each cell are sorted by version, so selection does not iterate over all the shells.
+ *
+ * Min required version is checked with {@link VersionComparatorUtil}, the same way server matches agent requirements
+ * against published max versions, so agent never rejects a build the server has assigned to it (and vice versa).
+ * Among suitable shells the newest one is preferred according to {@link jetbrains.buildServer.powershell.common.PowerShellVersion}
+ */
+final class ShellIndex {
+
+  @NotNull
+  static final ShellIndex EMPTY = new ShellIndex(Collections.emptyMap());
+
+  private static final PowerShellInfo[] NO_SHELLS = new PowerShellInfo[0];
+
+  /**
+   * Editions in order of preference, when edition is not required. Shells with unknown edition come last
+   */
+  private static final PowerShellEdition[] EDITION_PREFERENCE = {PowerShellEdition.DESKTOP, PowerShellEdition.CORE, null};
+
+  /**
+   * Bitness in order of preference, when bitness is not required
+   */
+  private static final PowerShellBitness[] BITNESS_PREFERENCE = {PowerShellBitness.x64, PowerShellBitness.x86};
+
+  @NotNull
+  private final Map<String, PowerShellInfo> myShells;
+
+  /**
+   * {@code [edition][bitness]} -> shells sorted by version in ascending order.
+   * Last edition slot is for shells with unknown edition
+   */
+  @NotNull
+  private final PowerShellInfo[][][] myIndex;
+
+  private ShellIndex(@NotNull final Map<String, PowerShellInfo> shells) {
+    myShells = shells;
+    final int editions = PowerShellEdition.values().length + 1;
+    final int bitnesses = PowerShellBitness.values().length;
+    final List<List<List<PowerShellInfo>>> cells = new ArrayList<>(editions);
+    for (int i = 0; i < editions; i++) {
+      final List<List<PowerShellInfo>> row = new ArrayList<>(bitnesses);
+      for (int j = 0; j < bitnesses; j++) {
+        row.add(new ArrayList<>());
+      }
+      cells.add(row);
+    }
+    for (PowerShellInfo info : shells.values()) {
+      cells.get(editionSlot(info.getEdition())).get(info.getBitness().ordinal()).add(info);
+    }
+    myIndex = new PowerShellInfo[editions][bitnesses][];
+    for (int i = 0; i < editions; i++) {
+      for (int j = 0; j < bitnesses; j++) {
+        final List<PowerShellInfo> cell = cells.get(i).get(j);
+        // sort is stable, shells of the same version stay in detection order
+        cell.sort(Comparator.comparing(PowerShellInfo::getParsedVersion));
+        myIndex[i][j] = cell.isEmpty() ? NO_SHELLS : cell.toArray(NO_SHELLS);
+      }
+    }
+  }
+
+  @NotNull
+  static ShellIndex of(@NotNull final Map<String, PowerShellInfo> shells) {
+    return shells.isEmpty() ? EMPTY : new ShellIndex(Collections.unmodifiableMap(new LinkedHashMap<>(shells)));
+  }
+
+  @NotNull
+  Map<String, PowerShellInfo> getShells() {
+    return myShells;
+  }
+
+  /**
+   * Selects shell of max version among the ones satisfying requirements.
+   * If edition is not required, Desktop edition is preferred over Core.
+   * If bitness is not required, 64bit shell is preferred over 32bit one
+   *
+   * @param bit required bitness, if any
+   * @param version min required version, if any
+   * @param edition required edition, if any
+   * @return selected shell or {@code null} if no shell satisfies requirements
+   */
+  @Nullable
+  PowerShellInfo select(@Nullable final PowerShellBitness bit,
+                        @Nullable final String version,
+                        @Nullable final PowerShellEdition edition) {
+    final int editions = edition != null ? 1 : EDITION_PREFERENCE.length;
+    final int bitnesses = bit != null ? 1 : BITNESS_PREFERENCE.length;
+    for (int e = 0; e < editions; e++) {
+      final PowerShellInfo[][] row = myIndex[editionSlot(edition != null ? edition : EDITION_PREFERENCE[e])];
+      for (int b = 0; b < bitnesses; b++) {
+        final PowerShellInfo[] cell = row[(bit != null ? bit : BITNESS_PREFERENCE[b]).ordinal()];
+        for (int i = cell.length - 1; i >= 0; i--) {
+          if (satisfies(cell[i], version)) {
+            return firstOfSameVersion(cell, i);
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Selects shell with the lowest startup time among the ones satisfying requirements.
+   * Shells with unknown startup time are not considered, ties are resolved as in {@link #select}
+   *
+   * @param bit required bitness, if any
+   * @param version min required version, if any
+   * @param edition required edition, if any
+   * @param latency startup time of a shell, negative if unknown
+   * @return selected shell or {@code null} if startup time of no suitable shell is known
+   */
+  @Nullable
+  PowerShellInfo selectFastest(@Nullable final PowerShellBitness bit,
+                               @Nullable final String version,
+                               @Nullable final PowerShellEdition edition,
+                               @NotNull final ToLongFunction<PowerShellInfo> latency) {
+    PowerShellInfo result = null;
+    long best = Long.MAX_VALUE;
+    final int editions = edition != null ? 1 : EDITION_PREFERENCE.length;
+    final int bitnesses = bit != null ? 1 : BITNESS_PREFERENCE.length;
+    for (int e = 0; e < editions; e++) {
+      final PowerShellInfo[][] row = myIndex[editionSlot(edition != null ? edition : EDITION_PREFERENCE[e])];
+      for (int b = 0; b < bitnesses; b++) {
+        final PowerShellInfo[] cell = row[(bit != null ? bit : BITNESS_PREFERENCE[b]).ordinal()];
+        for (int i = cell.length - 1; i >= 0; i--) {
+          if (!satisfies(cell[i], version)) {
+            continue;
+          }
+          final long millis = latency.applyAsLong(cell[i]);
+          if (millis >= 0 && millis < best) {
+            best = millis;
+            result = cell[i];
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Max version is compared as server compares versions in agent requirements,
+   * so requirement on the version is met if and only if some shell satisfies it
+   *
+   * @param bit bitness, {@code null} for any
+   * @param edition edition, {@code null} for any known edition
+   * @return shell of max version among the ones of given edition and bitness
+   */
+  @Nullable
+  PowerShellInfo selectMaxVersion(@Nullable final PowerShellBitness bit, @Nullable final PowerShellEdition edition) {
+    PowerShellInfo result = null;
+    for (PowerShellEdition e : PowerShellEdition.values()) {
+      if (edition != null && edition != e) continue;
+      for (PowerShellBitness b : PowerShellBitness.values()) {
+        if (bit != null && bit != b) continue;
+        for (PowerShellInfo info : myIndex[editionSlot(e)][b.ordinal()]) {
+          if (result == null || VersionComparatorUtil.compare(info.getVersion(), result.getVersion()) > 0) {
+            result = info;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static boolean satisfies(@NotNull final PowerShellInfo info, @Nullable final String version) {
+    return version == null || VersionComparatorUtil.compare(info.getVersion(), version) >= 0;
+  }
+
+  /**
+   * @return first detected shell among the ones of the same version as {@code cell[i]}
+   */
+  @NotNull
+  private static PowerShellInfo firstOfSameVersion(@NotNull final PowerShellInfo[] cell, int i) {
+    while (i > 0 && cell[i - 1].getParsedVersion().compareTo(cell[i].getParsedVersion()) == 0) {
+      i--;
+    }
+    return cell[i];
+  }
+
+  private static int editionSlot(@Nullable final PowerShellEdition edition) {
+    return edition == null ? PowerShellEdition.values().length : edition.ordinal();
+  }
+}
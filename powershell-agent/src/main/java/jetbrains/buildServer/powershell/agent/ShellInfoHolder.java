@@ -2,7 +2,6 @@
 
 package jetbrains.buildServer.powershell.agent;
 
-import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
@@ -15,13 +14,28 @@ import org.jetbrains.annotations.NotNull;
  */
 public class ShellInfoHolder {
 
-  private final Map<String, PowerShellInfo> myShells = new LinkedHashMap<>();
+  /**
+   * Detection may update shells in background, so the index is replaced on every change.
+   * Readers never lock and always see consistent set of shells
+   */
+  private volatile ShellIndex myIndex = ShellIndex.EMPTY;
 
-  public void addShellInfo(@NotNull String key, @NotNull final PowerShellInfo info) {
-    myShells.put(key, info);
+  public synchronized void addShellInfo(@NotNull String key, @NotNull final PowerShellInfo info) {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>(myIndex.getShells());
+    shells.put(key, info);
+    myIndex = ShellIndex.of(shells);
+  }
+
+  public synchronized void replaceShells(@NotNull final Map<String, PowerShellInfo> shells) {
+    myIndex = ShellIndex.of(shells);
   }
 
   public Map<String, PowerShellInfo> getShells() {
-    return Collections.unmodifiableMap(myShells);
+    return myIndex.getShells();
+  }
+
+  @NotNull
+  ShellIndex getIndex() {
+    return myIndex;
   }
 }
\ No newline at end of file
@@ -0,0 +1,229 @@
+package jetbrains.buildServer.powershell.agent;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.agent.detect.DetectionReport;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionRunner;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Running estimates of PowerShell startup time, per executable.
+ *
+ * Startup is measured in background after detection, if latency-aware selection is enabled with
+ * {@link #PARAM_SELECTION_POLICY} agent property. The property is read once per detection.
+ * Estimate is exponentially weighted moving average of measurements,
+ * it is kept between agent restarts and published as {@code powershell.detection.startup.<key>} parameters
+ */
+public class StartupLatencies {
+
+  @NotNull
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  /**
+   * Set to {@link #POLICY_LATENCY} to select PowerShell with the lowest startup time, if build does not require edition
+   */
+  static final String PARAM_SELECTION_POLICY = "teamcity.powershell.selection.policy";
+
+  static final String POLICY_LATENCY = "latency";
+
+  static final String PARAM_STARTUP_PREFIX = DetectionReport.PARAM_PREFIX + "startup.";
+
+  /**
+   * Weight of new measurement in the estimate
+   */
+  private static final double WEIGHT = 0.3;
+
+  private static final String FILE_NAME = "startup-latency.properties";
+
+  @NotNull
+  private final BuildAgentConfiguration myConfiguration;
+
+  @NotNull
+  private final DetectionRunner myRunner;
+
+  /**
+   * Executable path -> estimated startup time, msec
+   */
+  @NotNull
+  private final Map<String, Long> myEstimates = new ConcurrentHashMap<>();
+
+  @NotNull
+  private final AtomicBoolean myLoaded = new AtomicBoolean();
+
+  @NotNull
+  private final AtomicBoolean myMeasuring = new AtomicBoolean();
+
+  /**
+   * Value of {@link #PARAM_SELECTION_POLICY} at the last detection, {@code null} if it was not read yet
+   */
+  @Nullable
+  private volatile Boolean myPolicyEnabled;
+
+  public StartupLatencies(@NotNull final BuildAgentConfiguration configuration,
+                          @NotNull final DetectionRunner runner) {
+    myConfiguration = configuration;
+    myRunner = runner;
+  }
+
+  public boolean isPolicyEnabled() {
+    final Boolean result = myPolicyEnabled;
+    return result == null ? readPolicy() : result;
+  }
+
+  /**
+   * Reads {@link #PARAM_SELECTION_POLICY} from agent configuration
+   *
+   * @return {@code true} if latency-aware selection is enabled
+   */
+  boolean readPolicy() {
+    final boolean result = POLICY_LATENCY.equalsIgnoreCase(myConfiguration.getConfigurationParameters().get(PARAM_SELECTION_POLICY));
+    myPolicyEnabled = result;
+    return result;
+  }
+
+  /**
+   * @return estimated startup time of the shell in milliseconds, {@code -1} if it was not measured
+   */
+  public long getMillis(@NotNull final PowerShellInfo info) {
+    load();
+    final Long result = myEstimates.get(info.getExecutablePath());
+    return result == null ? -1 : result;
+  }
+
+  /**
+   * Adds measurement to the estimate of the shell
+   */
+  void record(@NotNull final PowerShellInfo info, long millis) {
+    load();
+    myEstimates.merge(info.getExecutablePath(), millis, (prev, sample) -> Math.round(prev + WEIGHT * (sample - prev)));
+  }
+
+  /**
+   * @return estimates of given shells as agent parameters
+   */
+  @NotNull
+  public Map<String, String> toParameters(@NotNull final Collection<PowerShellInfo> shells) {
+    final Map<String, String> result = new HashMap<>();
+    for (PowerShellInfo info : shells) {
+      final long millis = getMillis(info);
+      if (millis >= 0) {
+        result.put(getParameterName(info), Long.toString(millis));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Measures startup time of given shells in background, if latency-aware selection is enabled.
+   * Selection policy is read again, as this is called after every detection.
+   * Measured estimates are published to agent configuration
+   *
+   * @param executor executor to run measurement in
+   */
+  public void measureInBackground(@NotNull final Collection<PowerShellInfo> shells, @NotNull final Executor executor) {
+    if (!readPolicy() || shells.isEmpty() || !myMeasuring.compareAndSet(false, true)) {
+      return;
+    }
+    final List<PowerShellInfo> toMeasure = new ArrayList<>();
+    for (PowerShellInfo info : shells) {
+      if (!info.isVirtual()) {
+        toMeasure.add(info);
+      }
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          measure(toMeasure);
+        } finally {
+          myMeasuring.set(false);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // agent is shutting down
+      myMeasuring.set(false);
+    }
+  }
+
+  private void measure(@NotNull final List<PowerShellInfo> shells) {
+    for (PowerShellInfo info : shells) {
+      try {
+        final long millis = myRunner.measureStartup(new File(info.getHome(), info.getExecutable()).getAbsolutePath());
+        record(info, millis);
+        LOG.debug("Startup of " + info + " took " + millis + " msec, estimate is " + getMillis(info) + " msec");
+      } catch (ExecutionException e) {
+        LOG.warnAndDebugDetails("Failed to measure startup time of " + info, e);
+      }
+    }
+    save();
+    for (Map.Entry<String, String> entry : toParameters(shells).entrySet()) {
+      myConfiguration.addConfigurationParameter(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @NotNull
+  private static String getParameterName(@NotNull final PowerShellInfo info) {
+    return PARAM_STARTUP_PREFIX + PowerShellConstants.generateFullKey(info.getEdition(), info.getBitness(), info.getVersion());
+  }
+
+  private void load() {
+    if (!myLoaded.compareAndSet(false, true)) {
+      return;
+    }
+    final File file = getFile();
+    if (!file.isFile()) {
+      return;
+    }
+    final Properties props = new Properties();
+    try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to read PowerShell startup estimates from [" + file.getAbsolutePath() + "]", e);
+      return;
+    }
+    for (String path : props.stringPropertyNames()) {
+      final Long millis = parseMillis(props.getProperty(path));
+      if (millis != null) {
+        myEstimates.putIfAbsent(path, millis);
+      }
+    }
+  }
+
+  private void save() {
+    final File file = getFile();
+    final Properties props = new Properties();
+    for (Map.Entry<String, Long> entry : myEstimates.entrySet()) {
+      props.setProperty(entry.getKey(), Long.toString(entry.getValue()));
+    }
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      props.store(writer, "PowerShell startup estimates, msec");
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to save PowerShell startup estimates to [" + file.getAbsolutePath() + "]", e);
+    }
+  }
+
+  @Nullable
+  private static Long parseMillis(@Nullable final String value) {
+    try {
+      return value == null ? null : Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private File getFile() {
+    return new File(myConfiguration.getCacheDirectory(PowerShellConstants.PLUGIN_NAME), FILE_NAME);
+  }
+}
@@ -0,0 +1,133 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import jetbrains.buildServer.powershell.agent.detect.cache.FileFingerprint;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PowerShell executable found in one of detection paths.
+ *
+ * Search paths often contain symlinks to the same install (i.e. {@code /usr/bin/pwsh -> /opt/microsoft/powershell/7/pwsh}).
+ * Candidates are resolved to physical files before any detection is performed, so each install is inspected once
+ */
+public final class DetectionCandidate {
+
+  @NotNull
+  private final File myExecutable;
+
+  @NotNull
+  private final FileFingerprint myFingerprint;
+
+  private final long myStatMillis;
+
+  private DetectionCandidate(@NotNull final File executable, @NotNull final FileFingerprint fingerprint, long statMillis) {
+    myExecutable = executable;
+    myFingerprint = fingerprint;
+    myStatMillis = statMillis;
+  }
+
+  /**
+   * @return executable as it was found in search path
+   */
+  @NotNull
+  public File getExecutable() {
+    return myExecutable;
+  }
+
+  /**
+   * @return physical file of the executable, detected shells are registered with it
+   */
+  @NotNull
+  public File getRealExecutable() {
+    return new File(myFingerprint.getPath());
+  }
+
+  @NotNull
+  public FileFingerprint getFingerprint() {
+    return myFingerprint;
+  }
+
+  /**
+   * @return time it took to resolve the executable to physical file
+   */
+  public long getStatMillis() {
+    return myStatMillis;
+  }
+
+  /**
+   * @return canonical path of the install home, used as a key of detected shells and as their home
+   */
+  @NotNull
+  public String getHomeKey() {
+    return getRealExecutable().getParent();
+  }
+
+  /**
+   * Collects existing executables from given paths.
+   *
+   * @param paths paths to search executables in
+   * @param executables names of executables
+   * @param skipHomes canonical homes of already detected shells
+   * @param seen identities of physical files, that were already collected. Updated with identities of returned candidates
+   * @return candidates in order of paths and executables, each physical file is returned once
+   */
+  @NotNull
+  public static List<DetectionCandidate> collect(@NotNull final Collection<String> paths,
+                                                 @NotNull final Collection<String> executables,
+                                                 @NotNull final Set<String> skipHomes,
+                                                 @NotNull final Set<String> seen) {
+    return collect(paths, executables, skipHomes, seen, new DirectoryListings());
+  }
+
+  /**
+   * Collects existing executables from given paths.
+   *
+   * @param paths paths to search executables in
+   * @param executables names of executables
+   * @param skipHomes canonical homes of already detected shells
+   * @param seen identities of physical files, that were already collected. Updated with identities of returned candidates
+   * @param listings listings of paths, only executables present in listings are inspected
+   * @return candidates in order of paths and executables, each physical file is returned once
+   */
+  @NotNull
+  public static List<DetectionCandidate> collect(@NotNull final Collection<String> paths,
+                                                 @NotNull final Collection<String> executables,
+                                                 @NotNull final Set<String> skipHomes,
+                                                 @NotNull final Set<String> seen,
+                                                 @NotNull final DirectoryListings listings) {
+    final List<DetectionCandidate> result = new ArrayList<>();
+    for (String path : paths) {
+      for (String executable : executables) {
+        if (!listings.contains(path, executable)) {
+          continue;
+        }
+        final File exeFile = new File(path, executable);
+        final long statStarted = System.nanoTime();
+        final FileFingerprint fingerprint = FileFingerprint.of(exeFile);
+        if (fingerprint == null) {
+          continue;
+        }
+        final long statMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - statStarted);
+        final DetectionCandidate candidate = new DetectionCandidate(exeFile, fingerprint, statMillis);
+        if (skipHomes.contains(candidate.getHomeKey())) {
+          continue;
+        }
+        if (seen.add(fingerprint.getIdentity())) {
+          result.add(candidate);
+        }
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return myExecutable.getAbsolutePath() + " -> " + myFingerprint;
+  }
+}
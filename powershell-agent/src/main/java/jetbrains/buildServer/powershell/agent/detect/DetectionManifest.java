@@ -0,0 +1,114 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.powershell.agent.Loggers;
+import jetbrains.buildServer.powershell.agent.detect.cache.FileFingerprint;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Precomputed detection results, i.e. generated at agent image build time by {@link DetectionManifestGenerator}.
+ *
+ * Manifest keeps serialized shells along with size and modification time of their executables.
+ * It is used instead of detection only while all recorded executables are unchanged
+ */
+public final class DetectionManifest {
+
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  /**
+   * Agent property with path to detection manifest
+   */
+  public static final String PARAM_MANIFEST_PATH = "teamcity.powershell.detector.manifest";
+
+  private static final String FORMAT_KEY = "format.version";
+
+  private static final String FORMAT_VERSION = "1";
+
+  private static final String SHELLS_KEY = "shells";
+
+  private static final String STAMP_PREFIX = "stamp.";
+
+  private DetectionManifest() {
+  }
+
+  /**
+   * Loads shells from manifest
+   *
+   * @param file manifest file
+   * @return recorded shells, {@code null} if manifest is missing, malformed or any of recorded executables has changed
+   */
+  @Nullable
+  public static Map<String, PowerShellInfo> load(@NotNull final File file) {
+    if (!file.isFile()) {
+      LOG.warn("PowerShell detection manifest [" + file.getAbsolutePath() + "] does not exist");
+      return null;
+    }
+    final Properties props = new Properties();
+    try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to read PowerShell detection manifest [" + file.getAbsolutePath() + "]", e);
+      return null;
+    }
+    if (!FORMAT_VERSION.equals(props.getProperty(FORMAT_KEY))) {
+      LOG.warn("PowerShell detection manifest [" + file.getAbsolutePath() + "] has unsupported format");
+      return null;
+    }
+    final Map<String, PowerShellInfo> shells = ShellRecord.decode(props.getProperty(SHELLS_KEY));
+    if (shells == null) {
+      LOG.warn("PowerShell detection manifest [" + file.getAbsolutePath() + "] is malformed");
+      return null;
+    }
+    for (PowerShellInfo info : shells.values()) {
+      if (info.isVirtual()) {
+        continue;
+      }
+      final FileFingerprint fingerprint = FileFingerprint.of(new File(info.getHome(), info.getExecutable()));
+      final String recorded = props.getProperty(STAMP_PREFIX + info.getExecutablePath());
+      if (fingerprint == null || !fingerprint.getContentStamp().equals(recorded)) {
+        LOG.info("PowerShell detection manifest [" + file.getAbsolutePath() + "] is stale: " + info + " has changed");
+        return null;
+      }
+    }
+    return shells;
+  }
+
+  /**
+   * Writes manifest with given shells
+   *
+   * @param file manifest file
+   * @param shells detected shells
+   * @throws IOException if manifest could not be written
+   */
+  public static void write(@NotNull final File file, @NotNull final Map<String, PowerShellInfo> shells) throws IOException {
+    final Properties props = new Properties();
+    props.setProperty(FORMAT_KEY, FORMAT_VERSION);
+    props.setProperty(SHELLS_KEY, ShellRecord.encode(shells));
+    for (PowerShellInfo info : shells.values()) {
+      if (info.isVirtual()) {
+        continue;
+      }
+      final FileFingerprint fingerprint = FileFingerprint.of(new File(info.getHome(), info.getExecutable()));
+      if (fingerprint != null) {
+        props.setProperty(STAMP_PREFIX + info.getExecutablePath(), fingerprint.getContentStamp());
+      }
+    }
+    final File parent = file.getAbsoluteFile().getParentFile();
+    if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("Failed to create directory [" + parent.getAbsolutePath() + "]");
+    }
+    final File tmp = new File(parent, file.getName() + ".tmp");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+      props.store(writer, "PowerShell detection manifest");
+    }
+    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+}
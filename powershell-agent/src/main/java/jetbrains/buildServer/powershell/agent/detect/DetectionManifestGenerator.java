@@ -0,0 +1,77 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.powershell.agent.detect.cache.DetectionCache;
+import jetbrains.buildServer.powershell.agent.detect.cmd.CommandLinePowerShellDetector;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionPaths;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionRunner;
+import jetbrains.buildServer.powershell.agent.detect.metadata.MetadataPowerShellDetector;
+import jetbrains.buildServer.powershell.agent.detect.registry.RegExeTreeReader;
+import jetbrains.buildServer.powershell.agent.detect.registry.RegistryPowerShellDetector;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Generates {@link DetectionManifest} outside of running agent, i.e. when agent image is built.
+ *
+ * Usage: {@code DetectionManifestGenerator <manifest file> [<search paths, separated with ';'>]},
+ * with agent and plugin libraries in classpath. Resulting file is passed to agent with
+ * {@link DetectionManifest#PARAM_MANIFEST_PATH} agent property
+ */
+public final class DetectionManifestGenerator {
+
+  private static final String PARAM_SEARCH_PATHS = "teamcity.powershell.detector.search.paths";
+
+  private DetectionManifestGenerator() {
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: " + DetectionManifestGenerator.class.getName() + " <manifest file> [<search paths, separated with ';'>]");
+      System.exit(2);
+    }
+    final Map<String, String> parameters = new HashMap<>();
+    if (args.length == 2) {
+      parameters.put(PARAM_SEARCH_PATHS, args[1]);
+    }
+    final File cacheDir = Files.createTempDirectory("powershell-detection").toFile();
+    try {
+      final Map<String, PowerShellInfo> shells = detect(parameters, cacheDir);
+      DetectionManifest.write(new File(args[0]), shells);
+      for (PowerShellInfo info : shells.values()) {
+        System.out.println("Found: " + info);
+      }
+      System.out.println("PowerShell detection manifest with " + shells.size() + " shell(s) written to " + new File(args[0]).getAbsolutePath());
+    } finally {
+      FileUtil.delete(cacheDir);
+    }
+  }
+
+  /**
+   * Runs the same detectors, agent runs on startup
+   *
+   * @param parameters detection settings, that would be agent configuration parameters
+   * @param cacheDir   directory for detection script and cache, replaces plugin cache directory of the agent
+   */
+  @NotNull
+  static Map<String, PowerShellInfo> detect(@NotNull final Map<String, String> parameters, @NotNull final File cacheDir) {
+    final DetectionReport report = new DetectionReport();
+    final DetectionPaths paths = new DetectionPaths(() -> parameters);
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    if (SystemInfo.isWindows) {
+      // registry is read with reg.exe, agent registry accessor is not available here
+      shells.putAll(new RegistryPowerShellDetector(new RegExeTreeReader()).findShells());
+    }
+    shells.putAll(new MetadataPowerShellDetector(paths).findShells(shells.keySet(), report));
+    final CommandLinePowerShellDetector commandLineDetector = new CommandLinePowerShellDetector(
+            () -> cacheDir, new DetectionRunner(), paths, new DetectionCache(() -> cacheDir)
+    );
+    shells.putAll(commandLineDetector.findShells(new HashSet<>(shells.keySet()), report));
+    return shells;
+  }
+}
@@ -0,0 +1,270 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timings of single PowerShell detection run.
+ *
+ * Summary is published as agent configuration parameters and logged as a single line of {@code key=value} pairs,
+ * so slow detection can be found across agents
+ */
+public class DetectionReport {
+
+  public static final String PARAM_PREFIX = "powershell.detection.";
+  public static final String PARAM_TOTAL = PARAM_PREFIX + "time.total";
+  public static final String PARAM_CANDIDATES = PARAM_PREFIX + "candidates";
+  public static final String PARAM_PROCESSES = PARAM_PREFIX + "processes";
+  public static final String PARAM_INSTALL_TIME_PREFIX = PARAM_PREFIX + "time.";
+
+  private final long myStarted = System.nanoTime();
+
+  @NotNull
+  private final Map<String, Long> myStages = Collections.synchronizedMap(new LinkedHashMap<>());
+
+  @NotNull
+  private final Queue<ProbeTiming> myProbes = new ConcurrentLinkedQueue<>();
+
+  private volatile long myTotal = -1;
+
+  /**
+   * Records duration of detection stage, i.e. single detector
+   *
+   * @param stage name of the stage
+   * @param startedNanos {@link System#nanoTime()} at the start of the stage
+   */
+  public void stageFinished(@NotNull final String stage, long startedNanos) {
+    myStages.merge(stage, millisSince(startedNanos), Long::sum);
+  }
+
+  /**
+   * Starts timing of single candidate
+   *
+   * @param stage detection stage, that inspects the candidate
+   * @param candidate candidate to inspect
+   * @return timing to be filled during inspection
+   */
+  @NotNull
+  public ProbeTiming startProbe(@NotNull final String stage, @NotNull final DetectionCandidate candidate) {
+    final ProbeTiming result = new ProbeTiming(stage, candidate.getExecutable().getAbsolutePath(), candidate.getStatMillis());
+    myProbes.add(result);
+    return result;
+  }
+
+  public void finish() {
+    myTotal = millisSince(myStarted);
+  }
+
+  public long getTotalMillis() {
+    return myTotal >= 0 ? myTotal : millisSince(myStarted);
+  }
+
+  @NotNull
+  public List<ProbeTiming> getProbes() {
+    return new ArrayList<>(myProbes);
+  }
+
+  /**
+   * @return compact summary: total time, number of candidates and processes, time per detected install
+   */
+  @NotNull
+  public Map<String, String> toParameters() {
+    final Map<String, String> result = new HashMap<>();
+    result.put(PARAM_TOTAL, String.valueOf(getTotalMillis()));
+    int processes = 0;
+    for (ProbeTiming probe : myProbes) {
+      processes += probe.getAttempts();
+      final PowerShellInfo info = probe.getResult();
+      if (info != null) {
+        final String key = PowerShellConstants.generateFullKey(info.getEdition(), info.getBitness(), info.getVersion());
+        result.put(PARAM_INSTALL_TIME_PREFIX + key, String.valueOf(probe.getTotalMillis()));
+      }
+    }
+    result.put(PARAM_CANDIDATES, String.valueOf(countCandidates()));
+    result.put(PARAM_PROCESSES, String.valueOf(processes));
+    return result;
+  }
+
+  /**
+   * @return report as a single line of {@code key=value} pairs
+   */
+  @NotNull
+  public String toLogLine() {
+    int processes = 0, timeouts = 0, cached = 0;
+    final StringBuilder probes = new StringBuilder();
+    for (ProbeTiming probe : myProbes) {
+      processes += probe.getAttempts();
+      timeouts += probe.getTimeouts();
+      if (probe.isCached()) cached++;
+      if (probes.length() > 0) probes.append(", ");
+      probes.append(probe);
+    }
+    final StringBuilder stages = new StringBuilder();
+    synchronized (myStages) {
+      for (Map.Entry<String, Long> e : myStages.entrySet()) {
+        if (stages.length() > 0) stages.append(", ");
+        stages.append(e.getKey()).append('=').append(e.getValue());
+      }
+    }
+    return "PowerShell detection report: total=" + getTotalMillis()
+            + " candidates=" + countCandidates()
+            + " processes=" + processes
+            + " cached=" + cached
+            + " timeouts=" + timeouts
+            + " stages={" + stages + "}"
+            + " probes=[" + probes + "]";
+  }
+
+  /**
+   * @return number of distinct executables inspected, same executable may be inspected by several stages
+   */
+  private int countCandidates() {
+    final Set<String> paths = new HashSet<>();
+    for (ProbeTiming probe : myProbes) {
+      paths.add(probe.myPath);
+    }
+    return paths.size();
+  }
+
+  private static long millisSince(long startedNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+  }
+
+  /**
+   * Timing of single detection candidate. All the values are milliseconds since start of the inspection,
+   * {@code -1} if the phase was not reached
+   */
+  public static final class ProbeTiming {
+
+    @NotNull
+    private final String myStage;
+
+    @NotNull
+    private final String myPath;
+
+    private final long myStatMillis;
+
+    private volatile long myStarted = System.nanoTime();
+
+    private volatile long mySpawnMillis = 0;
+
+    private volatile long myFirstOutput = -1;
+
+    private volatile long myAnswer = -1;
+
+    private volatile long myExit = -1;
+
+    private volatile long myTotal = -1;
+
+    @NotNull
+    private final AtomicInteger myAttempts = new AtomicInteger();
+
+    @NotNull
+    private final AtomicInteger myTimeouts = new AtomicInteger();
+
+    private volatile boolean myCached = false;
+
+    @Nullable
+    private volatile PowerShellInfo myResult;
+
+    private ProbeTiming(@NotNull final String stage, @NotNull final String path, long statMillis) {
+      myStage = stage;
+      myPath = path;
+      myStatMillis = statMillis;
+    }
+
+    /**
+     * Inspection of the candidate has actually started, i.e. probe left executor queue
+     */
+    public void started() {
+      myStarted = System.nanoTime();
+    }
+
+    /**
+     * Process was started
+     *
+     * @param startedNanos {@link System#nanoTime()} before the process was created
+     */
+    public void spawned(long startedNanos) {
+      myAttempts.incrementAndGet();
+      mySpawnMillis += millisSince(startedNanos);
+    }
+
+    public void firstOutput() {
+      if (myFirstOutput < 0) {
+        myFirstOutput = millisSince(myStarted);
+      }
+    }
+
+    /**
+     * Process output contained complete answer, process may still be running
+     */
+    public void answered() {
+      myAnswer = millisSince(myStarted);
+    }
+
+    /**
+     * Process output was closed, i.e. process exited
+     */
+    public void exited() {
+      myExit = millisSince(myStarted);
+    }
+
+    public void timedOut() {
+      myTimeouts.incrementAndGet();
+    }
+
+    public void cached() {
+      myCached = true;
+    }
+
+    public void finished(@Nullable final PowerShellInfo result) {
+      myResult = result;
+      myTotal = millisSince(myStarted);
+    }
+
+    @Nullable
+    public PowerShellInfo getResult() {
+      return myResult;
+    }
+
+    public int getAttempts() {
+      return myAttempts.get();
+    }
+
+    public int getTimeouts() {
+      return myTimeouts.get();
+    }
+
+    public boolean isCached() {
+      return myCached;
+    }
+
+    public long getTotalMillis() {
+      return myTotal >= 0 ? myTotal : millisSince(myStarted);
+    }
+
+    @Override
+    public String toString() {
+      final PowerShellInfo result = myResult;
+      return "{path=" + myPath
+              + " stage=" + myStage
+              + " stat=" + myStatMillis
+              + " spawn=" + mySpawnMillis
+              + " firstOutput=" + myFirstOutput
+              + " answer=" + myAnswer
+              + " exit=" + myExit
+              + " attempts=" + myAttempts.get()
+              + " timeouts=" + myTimeouts.get()
+              + " cached=" + myCached
+              + " total=" + getTotalMillis()
+              + " result=" + (result == null ? "none" : result.getVersion()) + "}";
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import com.intellij.openapi.util.SystemInfo;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Directory listings memoized for a single detection run.
+ *
+ * Each directory is listed once, executables are then looked up in the listing
+ * instead of checking every {@code directory x executable} pair on disk
+ */
+public final class DirectoryListings {
+
+  @NotNull
+  private final Map<String, Set<String>> myListings = new ConcurrentHashMap<>();
+
+  /**
+   * @param dir directory
+   * @param name file name
+   * @return {@code true} if directory contains file or subdirectory with given name
+   */
+  public boolean contains(@NotNull final String dir, @NotNull final String name) {
+    return list(dir).contains(normalize(name));
+  }
+
+  @NotNull
+  private Set<String> list(@NotNull final String dir) {
+    return myListings.computeIfAbsent(dir, d -> {
+      final String[] names = new File(d).list();
+      if (names == null) {
+        return Collections.emptySet();
+      }
+      final Set<String> result = new HashSet<>(names.length);
+      for (String name : names) {
+        result.add(normalize(name));
+      }
+      return result;
+    });
+  }
+
+  @NotNull
+  private static String normalize(@NotNull final String name) {
+    return SystemInfo.isWindows ? name.toLowerCase(Locale.ENGLISH) : name;
+  }
+}
@@ -0,0 +1,221 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.*;
+
+import static jetbrains.buildServer.powershell.common.PowerShellConstants.*;
+
+/**
+ * Details of PowerShell install, that builds may require in addition to edition, version and bitness.
+ * Every detail is optional: it is only known if detector was able to find it out
+ */
+public final class PowerShellCapabilities {
+
+  public static final PowerShellCapabilities EMPTY = new PowerShellCapabilities(null, null, null, null, Collections.emptyList());
+
+  private static final String UTF_8 = "UTF-8";
+
+  @Nullable
+  private final String myDotNetVersion;
+
+  @Nullable
+  private final String myOs;
+
+  @Nullable
+  private final String myArchitecture;
+
+  @Nullable
+  private final String myPsHome;
+
+  @NotNull
+  private final List<String> myExperimentalFeatures;
+
+  public PowerShellCapabilities(@Nullable final String dotNetVersion,
+                                @Nullable final String os,
+                                @Nullable final String architecture,
+                                @Nullable final String psHome,
+                                @NotNull final Collection<String> experimentalFeatures) {
+    myDotNetVersion = emptyToNull(dotNetVersion);
+    myOs = emptyToNull(os);
+    myArchitecture = emptyToNull(architecture);
+    myPsHome = emptyToNull(psHome);
+    final List<String> features = new ArrayList<>(new TreeSet<>(experimentalFeatures));
+    features.remove("");
+    myExperimentalFeatures = Collections.unmodifiableList(features);
+  }
+
+  /**
+   * @return version of .NET runtime PowerShell runs on
+   */
+  @Nullable
+  public String getDotNetVersion() {
+    return myDotNetVersion;
+  }
+
+  /**
+   * @return description of operating system, as reported by PowerShell
+   */
+  @Nullable
+  public String getOs() {
+    return myOs;
+  }
+
+  /**
+   * @return family of operating system, i.e. {@code Windows}, {@code Linux} or {@code macOS}.
+   * Unlike description, it does not change with OS updates. {@code null} if it is not known
+   */
+  @Nullable
+  public String getOsFamily() {
+    if (myOs == null) {
+      return null;
+    }
+    final String os = myOs.toLowerCase(Locale.ENGLISH);
+    if (os.contains("windows")) {
+      return "Windows";
+    }
+    if (os.startsWith("darwin") || os.contains("macos")) {
+      return "macOS";
+    }
+    if (os.contains("linux")) {
+      return "Linux";
+    }
+    return null;
+  }
+
+  /**
+   * @return process architecture, i.e. {@code X64} or {@code Arm64}
+   */
+  @Nullable
+  public String getArchitecture() {
+    return myArchitecture;
+  }
+
+  /**
+   * @return value of {@code $PSHOME}
+   */
+  @Nullable
+  public String getPsHome() {
+    return myPsHome;
+  }
+
+  /**
+   * @return names of enabled experimental features, sorted
+   */
+  @NotNull
+  public List<String> getExperimentalFeatures() {
+    return myExperimentalFeatures;
+  }
+
+  /**
+   * Publishes known details as parameters, named after the key of the shell.
+   * Operating system is published as family only, so parameters do not change with every OS update
+   *
+   * @param key full key of the shell
+   * @param parameters parameters to add to
+   */
+  void saveInfo(@NotNull final String key, @NotNull final Map<String, String> parameters) {
+    putIfKnown(parameters, key + DOTNET_SUFFIX, myDotNetVersion);
+    putIfKnown(parameters, key + OS_SUFFIX, getOsFamily());
+    putIfKnown(parameters, key + ARCH_SUFFIX, myArchitecture);
+    putIfKnown(parameters, key + PSHOME_SUFFIX, myPsHome);
+    if (!myExperimentalFeatures.isEmpty()) {
+      parameters.put(key + EXPERIMENTAL_FEATURES_SUFFIX, String.join(",", myExperimentalFeatures));
+    }
+  }
+
+  /**
+   * @return compact form, that contains no {@code ,}, {@code ;} or tab characters
+   */
+  @NotNull
+  public String encode() {
+    final StringJoiner features = new StringJoiner("|");
+    for (String feature : myExperimentalFeatures) {
+      features.add(encodeField(feature));
+    }
+    return String.join(",",
+            encodeField(myDotNetVersion), encodeField(myOs), encodeField(myArchitecture), encodeField(myPsHome), features.toString());
+  }
+
+  /**
+   * @param encoded result of {@link #encode()}
+   * @return decoded capabilities, {@link #EMPTY} if value is malformed
+   */
+  @NotNull
+  public static PowerShellCapabilities decode(@Nullable final String encoded) {
+    if (encoded == null || encoded.isEmpty()) {
+      return EMPTY;
+    }
+    final String[] fields = encoded.split(",", -1);
+    if (fields.length != 5) {
+      return EMPTY;
+    }
+    final List<String> features = new ArrayList<>();
+    if (!fields[4].isEmpty()) {
+      for (String feature : fields[4].split("\\|")) {
+        features.add(decodeField(feature));
+      }
+    }
+    return new PowerShellCapabilities(decodeField(fields[0]), decodeField(fields[1]), decodeField(fields[2]), decodeField(fields[3]), features);
+  }
+
+  public boolean isEmpty() {
+    return myDotNetVersion == null && myOs == null && myArchitecture == null && myPsHome == null && myExperimentalFeatures.isEmpty();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    final PowerShellCapabilities that = (PowerShellCapabilities) o;
+    return Objects.equals(myDotNetVersion, that.myDotNetVersion)
+            && Objects.equals(myOs, that.myOs)
+            && Objects.equals(myArchitecture, that.myArchitecture)
+            && Objects.equals(myPsHome, that.myPsHome)
+            && myExperimentalFeatures.equals(that.myExperimentalFeatures);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(myDotNetVersion, myOs, myArchitecture, myPsHome, myExperimentalFeatures);
+  }
+
+  @Override
+  public String toString() {
+    return "dotnet=" + myDotNetVersion + ", os=" + myOs + ", arch=" + myArchitecture + ", home=" + myPsHome
+            + ", experimental=" + myExperimentalFeatures;
+  }
+
+  private static void putIfKnown(@NotNull final Map<String, String> parameters, @NotNull final String key, @Nullable final String value) {
+    if (value != null) {
+      parameters.put(key, value);
+    }
+  }
+
+  @Nullable
+  private static String emptyToNull(@Nullable final String value) {
+    return value == null || value.trim().isEmpty() ? null : value.trim();
+  }
+
+  @NotNull
+  private static String encodeField(@Nullable final String value) {
+    try {
+      return value == null ? "" : URLEncoder.encode(value, UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String decodeField(@NotNull final String value) {
+    try {
+      return URLDecoder.decode(value, UTF_8);
+    } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+      return "";
+    }
+  }
+}
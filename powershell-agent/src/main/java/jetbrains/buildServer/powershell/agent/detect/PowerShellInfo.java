@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.Map;
 import jetbrains.buildServer.powershell.common.PowerShellBitness;
 import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.powershell.common.PowerShellVersion;
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -30,6 +31,9 @@ public class PowerShellInfo {
   @NotNull
   private final String myVersion;
 
+  @NotNull
+  private final PowerShellVersion myParsedVersion;
+
   @Nullable
   private final PowerShellEdition myEdition;
 
@@ -37,7 +41,10 @@ public class PowerShellInfo {
   private final String myExecutable;
 
   private final boolean myVirtual;
-  
+
+  @NotNull
+  private final PowerShellCapabilities myCapabilities;
+
   public PowerShellInfo(@NotNull final PowerShellBitness bitness,
                         @NotNull final File home,
                         @NotNull final String version,
@@ -52,12 +59,24 @@ public class PowerShellInfo {
                         @Nullable final PowerShellEdition edition,
                         @NotNull final String executable,
                         boolean isVirtual) {
+    this(bitness, home, version, edition, executable, isVirtual, PowerShellCapabilities.EMPTY);
+  }
+
+  public PowerShellInfo(@NotNull final PowerShellBitness bitness,
+                        @NotNull final File home,
+                        @NotNull final String version,
+                        @Nullable final PowerShellEdition edition,
+                        @NotNull final String executable,
+                        boolean isVirtual,
+                        @NotNull final PowerShellCapabilities capabilities) {
     myBitness = bitness;
     myHome = home;
     myVersion = version;
+    myParsedVersion = PowerShellVersion.parse(version);
     myEdition = edition;
     myExecutable = executable;
     myVirtual = isVirtual;
+    myCapabilities = capabilities;
   }
 
   @NotNull
@@ -75,6 +94,14 @@ public class PowerShellInfo {
     return myVersion;
   }
 
+  /**
+   * @return version parsed once, for comparison
+   */
+  @NotNull
+  public PowerShellVersion getParsedVersion() {
+    return myParsedVersion;
+  }
+
   @Override
   public String toString() {
     return (myVirtual ? "(virtual) " : "") + "PowerShell "
@@ -118,11 +145,20 @@ public class PowerShellInfo {
     return myVirtual;
   }
 
+  /**
+   * @return details of the install, known to detector
+   */
+  @NotNull
+  public PowerShellCapabilities getCapabilities() {
+    return myCapabilities;
+  }
+
   private Map<String, String> toConfigurationParameters() {
     final String key = generateFullKey(myEdition, myBitness, myVersion);
     final Map<String, String> result = new HashMap<>();
     result.put(key, myVersion);
     result.put(key + PATH_SUFFIX, myHome.toString());
+    myCapabilities.saveInfo(key, result);
     return result;
   }
 }
\ No newline at end of file
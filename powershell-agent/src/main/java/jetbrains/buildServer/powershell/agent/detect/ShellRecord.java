@@ -0,0 +1,114 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Serialized form of all detected shells, published as a single configuration parameter.
+ *
+ * Format is {@code <format version>:<shell>;<shell>...}, where each shell is a comma separated list of
+ * url-encoded key, bitness, edition, version, executable, virtual flag, home and capabilities.
+ * Records of format {@code 1} have no capabilities
+ */
+public final class ShellRecord {
+
+  public static final String PARAM_NAME = "powershell.detection.shells";
+
+  private static final String FORMAT_VERSION = "2";
+
+  private static final String FORMAT_VERSION_NO_CAPABILITIES = "1";
+
+  private static final String UTF_8 = "UTF-8";
+
+  private ShellRecord() {
+  }
+
+  @NotNull
+  public static String encode(@NotNull final Map<String, PowerShellInfo> shells) {
+    final StringBuilder sb = new StringBuilder(FORMAT_VERSION).append(':');
+    boolean first = true;
+    for (Map.Entry<String, PowerShellInfo> entry : shells.entrySet()) {
+      final PowerShellInfo info = entry.getValue();
+      if (!first) {
+        sb.append(';');
+      }
+      first = false;
+      sb.append(encodeField(entry.getKey())).append(',')
+        .append(info.getBitness().getValue()).append(',')
+        .append(info.getEdition() == null ? "" : info.getEdition().getValue()).append(',')
+        .append(encodeField(info.getVersion())).append(',')
+        .append(encodeField(info.getExecutable())).append(',')
+        .append(info.isVirtual() ? '1' : '0').append(',')
+        .append(encodeField(info.getHome().getPath())).append(',')
+        .append(encodeField(info.getCapabilities().encode()));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param record serialized shells
+   * @return shells keyed as they were detected, {@code null} if record is of unknown format or malformed
+   */
+  @Nullable
+  public static Map<String, PowerShellInfo> decode(@Nullable final String record) {
+    if (record == null) {
+      return null;
+    }
+    final int fieldCount;
+    if (record.startsWith(FORMAT_VERSION + ":")) {
+      fieldCount = 8;
+    } else if (record.startsWith(FORMAT_VERSION_NO_CAPABILITIES + ":")) {
+      fieldCount = 7;
+    } else {
+      return null;
+    }
+    final String body = record.substring(record.indexOf(':') + 1);
+    final Map<String, PowerShellInfo> result = new LinkedHashMap<>();
+    if (body.isEmpty()) {
+      return result;
+    }
+    for (String shell : body.split(";")) {
+      final String[] fields = shell.split(",", -1);
+      if (fields.length != fieldCount) {
+        return null;
+      }
+      final PowerShellBitness bitness = PowerShellBitness.fromString(fields[1]);
+      final PowerShellEdition edition = fields[2].isEmpty() ? null : PowerShellEdition.fromString(fields[2]);
+      if (bitness == null || (edition == null && !fields[2].isEmpty())) {
+        return null;
+      }
+      final PowerShellCapabilities capabilities = fieldCount > 7 ? PowerShellCapabilities.decode(decodeField(fields[7])) : PowerShellCapabilities.EMPTY;
+      result.put(decodeField(fields[0]), new PowerShellInfo(
+              bitness, new File(decodeField(fields[6])), decodeField(fields[3]), edition, decodeField(fields[4]), "1".equals(fields[5]), capabilities
+      ));
+    }
+    return result;
+  }
+
+  @NotNull
+  private static String encodeField(@NotNull final String value) {
+    try {
+      return URLEncoder.encode(value, UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @NotNull
+  private static String decodeField(@NotNull final String value) {
+    try {
+      return URLDecoder.decode(value, UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
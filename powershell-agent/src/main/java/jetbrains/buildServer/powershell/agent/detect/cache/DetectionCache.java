@@ -0,0 +1,407 @@
+package jetbrains.buildServer.powershell.agent.detect.cache;
+
+import com.intellij.openapi.diagnostic.Logger;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.agent.Loggers;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellCapabilities;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Persistent cache of command line detection results.
+ *
+ * Results are stored in the plugin cache directory and are keyed by canonical path of PowerShell executable.
+ * Each entry keeps {@link FileFingerprint} of the executable, cached result is only used if executable was not changed.
+ *
+ * If shared directory is configured, results are also shared between agents running on the same host:
+ * executable is probed by the first agent, that takes its lock, others wait for the lock and reuse the result.
+ *
+ * Entries of a detection run are kept from {@link #load()} to {@link #save()}, callers are expected to serialize detection runs
+ *
+ * @see FileFingerprint
+ */
+public class DetectionCache {
+
+  @NotNull
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  private static final String PARAM_CACHE_ENABLED = "teamcity.powershell.detector.cache.enabled";
+
+  /**
+   * Directory, writable by all agents on the host, to share detection results in
+   */
+  private static final String PARAM_SHARED_DIR = "teamcity.powershell.detector.cache.shared.dir";
+
+  private static final String SHARED_PATH_KEY = "path";
+
+  private static final String SHARED_VALUE_KEY = "value";
+
+  private static final String CACHE_FILE_NAME = "detection.cache";
+
+  private static final String FORMAT_KEY = "format.version";
+
+  /**
+   * Version 2 entries keep capabilities of the shell
+   */
+  private static final String FORMAT_VERSION = "2";
+
+  private static final String SEPARATOR = "\t";
+
+  /**
+   * Plugin cache directory of the agent
+   */
+  @NotNull
+  private final Supplier<File> myCacheDir;
+
+  /**
+   * Entries of the current detection run, replaced as a whole by {@link #load()}
+   */
+  @NotNull
+  private volatile Entries myEntries = new Entries();
+
+  public DetectionCache(@NotNull final BuildAgentConfiguration configuration) {
+    this(() -> configuration.getCacheDirectory(PowerShellConstants.PLUGIN_NAME));
+  }
+
+  public DetectionCache(@NotNull final Supplier<File> cacheDir) {
+    myCacheDir = cacheDir;
+  }
+
+  /**
+   * Loads cached entries from disk. Should be called before detection starts
+   */
+  public void load() {
+    final Entries entries = new Entries();
+    readEntries(entries);
+    myEntries = entries;
+  }
+
+  private void readEntries(@NotNull final Entries entries) {
+    if (!isEnabled()) {
+      return;
+    }
+    final File file = getCacheFile();
+    if (!file.isFile()) {
+      return;
+    }
+    final Properties props = new Properties();
+    try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to read PowerShell detection cache from [" + file.getAbsolutePath() + "]", e);
+      return;
+    }
+    if (!FORMAT_VERSION.equals(props.getProperty(FORMAT_KEY))) {
+      LOG.info("PowerShell detection cache has unsupported format and will be ignored");
+      return;
+    }
+    for (String key : props.stringPropertyNames()) {
+      if (!FORMAT_KEY.equals(key)) {
+        entries.myLoaded.put(key, props.getProperty(key));
+      }
+    }
+  }
+
+  /**
+   * Writes entries to disk. Entries, that were used or added since last {@link #load()}, replace loaded ones.
+   * Loaded entries of executables, that were not probed (e.g. by partial detection), are kept as long as executables exist
+   */
+  public void save() {
+    if (!isEnabled()) {
+      return;
+    }
+    final Entries entries = myEntries;
+    final File file = getCacheFile();
+    final Properties props = new Properties();
+    for (Map.Entry<String, String> entry : entries.myLoaded.entrySet()) {
+      if (!entries.myOutdated.contains(entry.getKey()) && new File(entry.getKey()).isFile()) {
+        props.setProperty(entry.getKey(), entry.getValue());
+      }
+    }
+    props.putAll(entries.myActual);
+    props.setProperty(FORMAT_KEY, FORMAT_VERSION);
+    try {
+      final File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+        props.store(writer, "PowerShell detection results");
+      }
+      Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to write PowerShell detection cache to [" + file.getAbsolutePath() + "]", e);
+    }
+  }
+
+  /**
+   * Gets cached detection result for given executable
+   *
+   * @param exeFile PowerShell executable
+   * @return detected PowerShell, if executable was not changed since it was cached, {@code null} otherwise
+   */
+  @Nullable
+  public PowerShellInfo get(@NotNull final File exeFile) {
+    final FileFingerprint fingerprint = FileFingerprint.of(exeFile);
+    return fingerprint == null ? null : get(exeFile, fingerprint);
+  }
+
+  /**
+   * Gets cached detection result for given executable
+   *
+   * @param exeFile PowerShell executable
+   * @param fingerprint actual fingerprint of the executable
+   * @return detected PowerShell, if executable was not changed since it was cached, {@code null} otherwise
+   */
+  @Nullable
+  public PowerShellInfo get(@NotNull final File exeFile, @NotNull final FileFingerprint fingerprint) {
+    return get(myEntries, fingerprint);
+  }
+
+  @Nullable
+  private PowerShellInfo get(@NotNull final Entries entries, @NotNull final FileFingerprint fingerprint) {
+    if (!isEnabled()) {
+      return null;
+    }
+    final String value = entries.myLoaded.get(fingerprint.getPath());
+    if (value == null) {
+      return null;
+    }
+    final PowerShellInfo result = decode(fingerprint, value);
+    if (result != null) {
+      entries.myActual.put(fingerprint.getPath(), value);
+    } else {
+      entries.myOutdated.add(fingerprint.getPath());
+    }
+    return result;
+  }
+
+  /**
+   * Gets cached detection result for given executable, detects and caches it if there is none.
+   * If shared directory is configured, detection of the same executable by several agents on the host is serialized,
+   * result of the first one is reused by the rest
+   *
+   * @param exeFile PowerShell executable
+   * @param fingerprint actual fingerprint of the executable
+   * @param detector performs detection
+   * @return detected PowerShell or {@code null} if detection failed
+   */
+  @Nullable
+  public PowerShellInfo getOrDetect(@NotNull final File exeFile,
+                                    @NotNull final FileFingerprint fingerprint,
+                                    @NotNull final Supplier<PowerShellInfo> detector) {
+    final Entries entries = myEntries;
+    final PowerShellInfo cached = get(entries, fingerprint);
+    if (cached != null) {
+      return cached;
+    }
+    final File sharedDir = getSharedDir();
+    if (sharedDir == null) {
+      return detectAndPut(entries, fingerprint, detector);
+    }
+    final String name = hash(fingerprint.getPath());
+    final File lockFile = new File(sharedDir, name + ".lock");
+    final File entryFile = new File(sharedDir, name + ".entry");
+    try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+         FileLock ignored = channel.lock()) {
+      final String shared = readSharedEntry(entryFile, fingerprint.getPath());
+      final PowerShellInfo result = shared == null ? null : decode(fingerprint, shared);
+      if (result != null) {
+        LOG.debug("Using PowerShell detection result shared by another agent for " + fingerprint.getPath());
+        entries.myActual.put(fingerprint.getPath(), shared);
+        return result;
+      }
+      final PowerShellInfo detected = detectAndPut(entries, fingerprint, detector);
+      final String value = entries.myActual.get(fingerprint.getPath());
+      if (detected != null && value != null) {
+        writeSharedEntry(entryFile, fingerprint.getPath(), value);
+      }
+      return detected;
+    } catch (IOException e) {
+      // includes interruption while waiting for the lock
+      LOG.warnAndDebugDetails("Failed to use shared PowerShell detection cache in [" + sharedDir.getAbsolutePath() + "]", e);
+      return Thread.currentThread().isInterrupted() ? null : detectAndPut(entries, fingerprint, detector);
+    } catch (OverlappingFileLockException e) {
+      // the lock is already held within this JVM, e.g. by another agent instance sharing the process
+      LOG.debug("Shared PowerShell detection cache lock for " + fingerprint.getPath() + " is held by this process, detecting without it");
+      return detectAndPut(entries, fingerprint, detector);
+    }
+  }
+
+  @Nullable
+  private PowerShellInfo detectAndPut(@NotNull final Entries entries,
+                                      @NotNull final FileFingerprint fingerprint,
+                                      @NotNull final Supplier<PowerShellInfo> detector) {
+    final PowerShellInfo detected = detector.get();
+    if (detected != null) {
+      put(entries, fingerprint, detected);
+    }
+    return detected;
+  }
+
+  @Nullable
+  private PowerShellInfo decode(@NotNull final FileFingerprint fingerprint, @NotNull final String value) {
+    final String[] parts = value.split(SEPARATOR, -1);
+    if (parts.length != 5 || !fingerprint.getStamp().equals(parts[0])) {
+      LOG.debug("Cached PowerShell detection result for " + fingerprint.getPath() + " is outdated");
+      return null;
+    }
+    final PowerShellBitness bitness = PowerShellBitness.fromString(parts[1]);
+    final PowerShellEdition edition = PowerShellEdition.fromString(parts[2]);
+    if (bitness == null || edition == null) {
+      return null;
+    }
+    // shells are registered with physical executable, as detectors do
+    final File realExe = new File(fingerprint.getPath());
+    return new PowerShellInfo(bitness, realExe.getParentFile(), parts[3], edition, realExe.getName(), false, PowerShellCapabilities.decode(parts[4]));
+  }
+
+  /**
+   * @return value of shared entry, {@code null} if there is none or it belongs to another executable
+   */
+  @Nullable
+  private static String readSharedEntry(@NotNull final File entryFile, @NotNull final String path) {
+    if (!entryFile.isFile()) {
+      return null;
+    }
+    final Properties props = new Properties();
+    try (Reader reader = new InputStreamReader(new FileInputStream(entryFile), StandardCharsets.UTF_8)) {
+      props.load(reader);
+    } catch (IOException e) {
+      LOG.debug("Failed to read shared PowerShell detection result from [" + entryFile.getAbsolutePath() + "]", e);
+      return null;
+    }
+    if (!FORMAT_VERSION.equals(props.getProperty(FORMAT_KEY)) || !path.equals(props.getProperty(SHARED_PATH_KEY))) {
+      return null;
+    }
+    return props.getProperty(SHARED_VALUE_KEY);
+  }
+
+  private static void writeSharedEntry(@NotNull final File entryFile, @NotNull final String path, @NotNull final String value) {
+    final Properties props = new Properties();
+    props.setProperty(FORMAT_KEY, FORMAT_VERSION);
+    props.setProperty(SHARED_PATH_KEY, path);
+    props.setProperty(SHARED_VALUE_KEY, value);
+    final File tmp = new File(entryFile.getParentFile(), entryFile.getName() + ".tmp");
+    try {
+      try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+        props.store(writer, "PowerShell detection result");
+      }
+      Files.move(tmp.toPath(), entryFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warnAndDebugDetails("Failed to write shared PowerShell detection result to [" + entryFile.getAbsolutePath() + "]", e);
+    }
+  }
+
+  @Nullable
+  private File getSharedDir() {
+    final String path = TeamCityProperties.getPropertyOrNull(PARAM_SHARED_DIR);
+    if (path == null || path.trim().isEmpty() || !isEnabled()) {
+      return null;
+    }
+    final File dir = new File(path.trim());
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      LOG.warn("Shared PowerShell detection cache directory [" + dir.getAbsolutePath() + "] could not be created");
+      return null;
+    }
+    return dir;
+  }
+
+  /**
+   * @return file name safe identifier of the executable path
+   */
+  @NotNull
+  private static String hash(@NotNull final String path) {
+    try {
+      final byte[] digest = MessageDigest.getInstance("SHA-1").digest(path.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder sb = new StringBuilder();
+      for (byte b : digest) {
+        sb.append(String.format("%02x", b));
+      }
+      return sb.toString();
+    } catch (NoSuchAlgorithmException e) {
+      return Integer.toHexString(path.hashCode());
+    }
+  }
+
+  /**
+   * Stores detection result for given executable
+   *
+   * @param exeFile PowerShell executable
+   * @param info detected PowerShell
+   */
+  public void put(@NotNull final File exeFile, @NotNull final PowerShellInfo info) {
+    final FileFingerprint fingerprint = FileFingerprint.of(exeFile);
+    if (fingerprint != null) {
+      put(fingerprint, info);
+    }
+  }
+
+  /**
+   * Stores detection result for executable with given fingerprint
+   *
+   * @param fingerprint fingerprint of the executable, taken before detection
+   * @param info detected PowerShell
+   */
+  public void put(@NotNull final FileFingerprint fingerprint, @NotNull final PowerShellInfo info) {
+    put(myEntries, fingerprint, info);
+  }
+
+  private void put(@NotNull final Entries entries, @NotNull final FileFingerprint fingerprint, @NotNull final PowerShellInfo info) {
+    if (!isEnabled() || info.getEdition() == null) {
+      return;
+    }
+    entries.myActual.put(fingerprint.getPath(), String.join(SEPARATOR,
+            fingerprint.getStamp(), info.getBitness().getValue(), info.getEdition().getValue(), info.getVersion(), info.getCapabilities().encode()));
+  }
+
+  @NotNull
+  private File getCacheFile() {
+    return new File(myCacheDir.get(), CACHE_FILE_NAME);
+  }
+
+  private boolean isEnabled() {
+    return TeamCityProperties.getBooleanOrTrue(PARAM_CACHE_ENABLED);
+  }
+
+  /**
+   * Entries of single detection run, probes of the run access them concurrently
+   */
+  private static class Entries {
+    /**
+     * Entries read from disk
+     */
+    @NotNull
+    private final Map<String, String> myLoaded = new ConcurrentHashMap<>();
+
+    /**
+     * Entries confirmed or added during the run
+     */
+    @NotNull
+    private final Map<String, String> myActual = new ConcurrentHashMap<>();
+
+    /**
+     * Executables, which loaded entries turned out to be outdated
+     */
+    @NotNull
+    private final Set<String> myOutdated = ConcurrentHashMap.newKeySet();
+  }
+}
@@ -0,0 +1,111 @@
+package jetbrains.buildServer.powershell.agent.detect.cache;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Identifies the state of a file on disk: canonical path, size, modification time and file key (inode on *nix).
+ * If any of these change, results computed for the file can no longer be trusted
+ */
+public final class FileFingerprint {
+
+  @NotNull
+  private final String myPath;
+
+  private final long mySize;
+
+  private final long myModified;
+
+  @NotNull
+  private final String myFileKey;
+
+  private FileFingerprint(@NotNull final String path, long size, long modified, @NotNull final String fileKey) {
+    myPath = path;
+    mySize = size;
+    myModified = modified;
+    myFileKey = fileKey;
+  }
+
+  /**
+   * Computes fingerprint of given file
+   *
+   * @param file file to compute fingerprint for, symlinks are resolved
+   * @return fingerprint of the file, {@code null} if file does not exist or its attributes can not be read
+   */
+  @Nullable
+  public static FileFingerprint of(@NotNull final File file) {
+    try {
+      final Path real = file.toPath().toRealPath();
+      final BasicFileAttributes attributes = Files.readAttributes(real, BasicFileAttributes.class);
+      if (!attributes.isRegularFile()) {
+        return null;
+      }
+      final Object fileKey = attributes.fileKey();
+      return new FileFingerprint(real.toString(), attributes.size(), attributes.lastModifiedTime().toMillis(), fileKey == null ? "" : fileKey.toString());
+    } catch (IOException | SecurityException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return canonical path of the file
+   */
+  @NotNull
+  public String getPath() {
+    return myPath;
+  }
+
+  /**
+   * @return identity of physical file: file key if file system provides one, canonical path otherwise.
+   * Hard links and symlinks to the same file have the same identity
+   */
+  @NotNull
+  public String getIdentity() {
+    return myFileKey.isEmpty() ? myPath : myFileKey;
+  }
+
+  /**
+   * @return string representation of the fingerprint, path excluded
+   */
+  @NotNull
+  public String getStamp() {
+    return mySize + ":" + myModified + ":" + myFileKey;
+  }
+
+  /**
+   * @return size and modification time of the file. Unlike {@link #getStamp()}, survives copying of file system,
+   * i.e. instantiation of a container image
+   */
+  @NotNull
+  public String getContentStamp() {
+    return mySize + ":" + myModified;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    final FileFingerprint that = (FileFingerprint) o;
+    return mySize == that.mySize && myModified == that.myModified && myPath.equals(that.myPath) && myFileKey.equals(that.myFileKey);
+  }
+
+  @Override
+  public int hashCode() {
+    int result = myPath.hashCode();
+    result = 31 * result + Long.hashCode(mySize);
+    result = 31 * result + Long.hashCode(myModified);
+    result = 31 * result + myFileKey.hashCode();
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return myPath + " (" + getStamp() + ")";
+  }
+}
@@ -7,10 +7,18 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.SystemInfo;
 import jetbrains.buildServer.agent.BuildAgentConfiguration;
 import jetbrains.buildServer.powershell.agent.Loggers;
+import jetbrains.buildServer.powershell.agent.detect.DetectionCandidate;
+import jetbrains.buildServer.powershell.agent.detect.DetectionReport;
+import jetbrains.buildServer.powershell.agent.detect.DirectoryListings;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellCapabilities;
 import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.cache.DetectionCache;
+import jetbrains.buildServer.powershell.agent.detect.metadata.ExecutableHeader;
+import jetbrains.buildServer.powershell.agent.detect.metadata.MetadataPowerShellDetector;
 import jetbrains.buildServer.powershell.common.PowerShellBitness;
 import jetbrains.buildServer.powershell.common.PowerShellConstants;
 import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
@@ -19,6 +27,12 @@ import org.jetbrains.annotations.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -31,13 +45,18 @@ public class CommandLinePowerShellDetector {
   @NotNull
   private static final Logger LOG = Loggers.DETECTION_LOGGER;
 
+  /**
+   * Plugin cache directory of the agent, detection script is written there
+   */
   @NotNull
-  private final BuildAgentConfiguration myConfiguration;
+  private final Supplier<File> myCacheDir;
 
   @NotNull
   private final DetectionRunner myRunner;
   @NotNull
   private final DetectionPaths myDetectionPaths;
+  @NotNull
+  private final DetectionCache myCache;
 
   private static final List<String> EXECUTABLES_WIN = Collections.singletonList(
           "pwsh.exe"
@@ -61,31 +80,99 @@ public class CommandLinePowerShellDetector {
           "ByPass"
   );
 
+  /**
+   * Prints single line JSON record: version, edition, bitness ({@code x64}), .NET runtime version, OS description,
+   * process architecture, {@code $PSHOME} and enabled experimental features. Compatible with PowerShell 2.0
+   */
   private static final String DETECTION_SCRIPT =
           "$edition = \"Desktop\"\n" +
                   "if (![string]::IsNullOrEmpty($PSVersionTable.PSEdition)) {\n" +
                   "  $edition = $PSVersionTable.PSEdition\n" +
-                  "} \n" +
-                  "Write-Output " +
-                  "$PSVersionTable.PSVersion.toString() " + // shell version
-                  "$edition " + // shell edition
-                  "([IntPtr]::size -eq 8)";                 // shell bitness
+                  "}\n" +
+                  "$os = [Environment]::OSVersion.VersionString\n" +
+                  "$arch = \"X86\"\n" +
+                  "if ([IntPtr]::size -eq 8) { $arch = \"X64\" }\n" +
+                  "try {\n" +
+                  "  $os = [System.Runtime.InteropServices.RuntimeInformation]::OSDescription\n" +
+                  "  $arch = [System.Runtime.InteropServices.RuntimeInformation]::ProcessArchitecture.ToString()\n" +
+                  "} catch {}\n" +   // not available before .NET Framework 4.7.1
+                  "$features = @()\n" +
+                  "if (Get-Command Get-ExperimentalFeature -ErrorAction SilentlyContinue) {\n" +
+                  "  $features = @(Get-ExperimentalFeature | Where-Object { $_.Enabled } | ForEach-Object { $_.Name })\n" +
+                  "}\n" +
+                  "function q($s) {\n" +
+                  "  '\"' + ([string]$s).Replace('\\', '\\\\').Replace('\"', '\\\"').Replace(\"`r\", '\\r').Replace(\"`n\", '\\n').Replace(\"`t\", '\\t') + '\"'\n" +
+                  "}\n" +
+                  "Write-Output ('{\"version\":' + (q $PSVersionTable.PSVersion) + ',\"edition\":' + (q $edition) + ',\"x64\":' + ([string]([IntPtr]::size -eq 8)).ToLower() + ',\"dotnet\":' + (q ([Environment]::Version)) + ',\"os\":' + (q $os) + ',\"arch\":' + (q $arch) + ',\"home\":' + (q $PSHOME) + ',\"experimentalFeatures\":[' + ((@($features) | ForEach-Object { q $_ }) -join ',') + ']}')";
+
+  /**
+   * Max number of detection processes that are allowed to run simultaneously
+   */
+  private static final String PARAM_DETECTION_THREADS = "teamcity.powershell.detector.threads";
+
+  /**
+   * Overall time limit for the command line detection, all probes included
+   */
+  private static final String PARAM_DETECTION_TOTAL_TIMEOUT = "teamcity.powershell.detector.total.timeout.msec";
+
+  /**
+   * Set to {@code false} to detect PowerShell Core with detection script instead of {@code -Version} switch
+   */
+  private static final String PARAM_VERSION_PROBE_ENABLED = "teamcity.powershell.detector.version.probe.enabled";
+
+  /**
+   * Output of {@code -Version} switch, i.e. {@code PowerShell 7.4.1} or {@code PowerShell v6.0.0}
+   */
+  private static final Pattern VERSION_OUTPUT = Pattern.compile("^PowerShell\\s+v?(\\d+\\.\\d+\\S*)$", Pattern.CASE_INSENSITIVE);
 
   public CommandLinePowerShellDetector(@NotNull final BuildAgentConfiguration configuration,
                                        @NotNull final DetectionRunner runner,
-                                       @NotNull final DetectionPaths detectionPaths) {
-    myConfiguration = configuration;
+                                       @NotNull final DetectionPaths detectionPaths,
+                                       @NotNull final DetectionCache cache) {
+    this(() -> configuration.getCacheDirectory(PowerShellConstants.PLUGIN_NAME), runner, detectionPaths, cache);
+  }
+
+  public CommandLinePowerShellDetector(@NotNull final Supplier<File> cacheDir,
+                                       @NotNull final DetectionRunner runner,
+                                       @NotNull final DetectionPaths detectionPaths,
+                                       @NotNull final DetectionCache cache) {
+    myCacheDir = cacheDir;
     myRunner = runner;
     myDetectionPaths = detectionPaths;
+    myCache = cache;
+  }
+
+  /**
+   * Detects PowerShell in detection paths
+   *
+   * @param skipPaths canonical homes of already detected shells
+   * @param report report to record timings to
+   * @return detected shells, keyed by canonical home
+   */
+  @NotNull
+  public Map<String, PowerShellInfo> findShells(Set<String> skipPaths, @NotNull final DetectionReport report) {
+    return findShells(myDetectionPaths.getPaths(), skipPaths, report);
   }
 
+  /**
+   * Detects PowerShell in given paths only
+   *
+   * @param paths paths to search PowerShell in
+   * @param skipPaths canonical homes of already detected shells
+   * @param report report to record timings to
+   * @return detected shells, keyed by canonical home
+   */
   @NotNull
-  public Map<String, PowerShellInfo> findShells(Set<String> skipPaths) {
+  public Map<String, PowerShellInfo> findShells(@NotNull final Collection<String> paths,
+                                                Set<String> skipPaths,
+                                                @NotNull final DetectionReport report) {
     LOG.info("Detecting PowerShell using CommandLinePowerShellDetector");
     // group by home
     final Map<String, PowerShellInfo> shells = new HashMap<>();
-    final List<String> pathsToCheck = myDetectionPaths
-      .getPaths()
+    // physical files that were already probed
+    final Set<String> probed = new HashSet<>();
+    final DirectoryListings listings = new DirectoryListings();
+    final List<String> pathsToCheck = paths
       .stream()
       .filter(path -> !skipPaths.contains(path))
       .collect(Collectors.toList());
@@ -93,103 +180,301 @@ public class CommandLinePowerShellDetector {
       LOG.debug("Will be detecting PowerShell in the following locations: [\n" + StringUtil.join(pathsToCheck, "\n") + "\n");
     }
 
-    File script = null;
+    final DetectionScript script = new DetectionScript();
+    final ExecutorService executor = createDetectionExecutor();
+    final long deadline = System.currentTimeMillis() + TeamCityProperties.getInteger(PARAM_DETECTION_TOTAL_TIMEOUT, 60000);
+    myCache.load();
     try {
-      script = prepareDetectionScript();
-      if (script != null) {
-        final String scriptPath = script.getAbsolutePath();
-        if (LOG.isDebugEnabled()) {
-          LOG.info("Detection script path is: " + scriptPath);
-        }
-        // try release versions. powershell has already been renamed to pwsh.
-        // pwsh-preview is used for -preview versions of powershell core
-        LOG.debug("Detecting PowerShell.Core...");
-        doDetectionCycle(shells, pathsToCheck, SystemInfo.isWindows ? EXECUTABLES_WIN : EXECUTABLES_NIX, scriptPath);
-        // handle the case when JetRegistry.exe could not be executed. Try to search for desktop edition inside given paths
-        if (SystemInfo.isWindows) {
-          doDetectionCycle(shells, pathsToCheck, EXECUTABLES_WIN_DESKTOP, scriptPath, WIN_ADDITIONAL_PARAMETERS);
-        }
-        if (shells.isEmpty() && !SystemInfo.isWindows) {
-          LOG.debug("No release versions of PowerShell.Core were detected. Trying to detect legacy and beta versions...");
-          doDetectionCycle(shells, pathsToCheck, EXECUTABLES_NIX_LEGACY, scriptPath);
-        }
+      // try release versions. powershell has already been renamed to pwsh.
+      // pwsh-preview is used for -preview versions of powershell core
+      LOG.debug("Detecting PowerShell.Core...");
+      doDetectionCycle(executor, deadline, report, shells, skipPaths, probed, listings, pathsToCheck, SystemInfo.isWindows ? EXECUTABLES_WIN : EXECUTABLES_NIX, script);
+      // handle the case when JetRegistry.exe could not be executed. Try to search for desktop edition inside given paths
+      if (SystemInfo.isWindows) {
+        doDetectionCycle(executor, deadline, report, shells, skipPaths, probed, listings, pathsToCheck, EXECUTABLES_WIN_DESKTOP, script, WIN_ADDITIONAL_PARAMETERS);
+      }
+      if (shells.isEmpty() && !SystemInfo.isWindows) {
+        LOG.debug("No release versions of PowerShell.Core were detected. Trying to detect legacy and beta versions...");
+        doDetectionCycle(executor, deadline, report, shells, skipPaths, probed, listings, pathsToCheck, EXECUTABLES_NIX_LEGACY, script);
       }
       return shells;
     } finally {
-      if (script != null) {
-        FileUtil.delete(script);
-      }
+      executor.shutdownNow();
+      myCache.save();
+      script.delete();
     }
   }
 
-  private void doDetectionCycle(Map<String, PowerShellInfo> shells,
+  private void doDetectionCycle(ExecutorService executor,
+                                long deadline,
+                                DetectionReport report,
+                                Map<String, PowerShellInfo> shells,
+                                Set<String> skipPaths,
+                                Set<String> probed,
+                                DirectoryListings listings,
                                 List<String> pathsToCheck,
                                 List<String> executablesToCheck,
-                                String scriptPath) {
-    doDetectionCycle(shells, pathsToCheck, executablesToCheck, scriptPath, Collections.emptyList());
+                                DetectionScript script) {
+    doDetectionCycle(executor, deadline, report, shells, skipPaths, probed, listings, pathsToCheck, executablesToCheck, script, Collections.emptyList());
   }
 
-  private void doDetectionCycle(Map<String, PowerShellInfo> shells,
+  /**
+   * Probes all {@code path x executable} candidates on the given executor.
+   * Candidates are resolved to physical files first, so every install is probed once.
+   * Results are merged in candidate order, so the outcome does not depend on which probe finishes first
+   */
+  private void doDetectionCycle(ExecutorService executor,
+                                long deadline,
+                                DetectionReport report,
+                                Map<String, PowerShellInfo> shells,
+                                Set<String> skipPaths,
+                                Set<String> probed,
+                                DirectoryListings listings,
                                 List<String> pathsToCheck,
                                 List<String> executablesToCheck,
-                                String scriptPath,
+                                DetectionScript script,
                                 List<String> additionalParameters) {
-    for (String path: pathsToCheck) {
-      for (String executable: executablesToCheck) {
-        final PowerShellInfo detected = doDetect(path, executable, scriptPath, additionalParameters);
-        if (detected != null) {
-          shells.put(detected.getHome().getAbsolutePath(), detected);
+    if (System.currentTimeMillis() >= deadline) {
+      // no time left for this cycle
+      return;
+    }
+    final List<DetectionCandidate> candidates = DetectionCandidate.collect(pathsToCheck, executablesToCheck, skipPaths, probed, listings);
+    final List<Future<PowerShellInfo>> probes = new ArrayList<>();
+    for (DetectionCandidate candidate: candidates) {
+      final DetectionReport.ProbeTiming timing = report.startProbe("cmd", candidate);
+      probes.add(executor.submit(() -> {
+        // probes wait in executor queue, time spent there does not belong to the candidate
+        timing.started();
+        final PowerShellInfo result = doDetect(candidate, script, additionalParameters, timing);
+        timing.finished(result);
+        return result;
+      }));
+    }
+    for (int i = 0; i < candidates.size(); i++) {
+      final PowerShellInfo detected;
+      try {
+        detected = awaitProbe(probes.get(i), deadline);
+      } catch (TimeoutException | InterruptedException e) {
+        int cancelled = 0;
+        for (Future<PowerShellInfo> probe : probes.subList(i, probes.size())) {
+          if (probe.cancel(true)) {
+            cancelled++;
+          }
+        }
+        if (e instanceof InterruptedException) {
+          Thread.currentThread().interrupt();
+        } else {
+          LOG.warn("PowerShell detection did not finish in time, " + cancelled + " of " + candidates.size()
+                  + " candidates were not inspected in time. Timeout is set with " + PARAM_DETECTION_TOTAL_TIMEOUT + " property");
         }
+        return;
+      }
+      if (detected != null) {
+        shells.put(candidates.get(i).getHomeKey(), detected);
       }
     }
   }
 
+  /**
+   * @return detected PowerShell, {@code null} if probe failed
+   * @throws TimeoutException if deadline has passed, remaining probes should not be awaited
+   */
   @Nullable
-  private PowerShellInfo doDetect(@NotNull final String homePath,
-                                  @NotNull final String executable,
-                                  @NotNull final String scriptPath,
-                                  @NotNull final List<String> additionalParameters) {
+  private PowerShellInfo awaitProbe(@NotNull final Future<PowerShellInfo> probe, long deadline) throws TimeoutException, InterruptedException {
+    final long left = deadline - System.currentTimeMillis();
+    if (left <= 0 && !probe.isDone()) {
+      throw new TimeoutException();
+    }
+    try {
+      return probe.get(Math.max(0, left), TimeUnit.MILLISECONDS);
+    } catch (java.util.concurrent.ExecutionException e) {
+      LOG.warnAndDebugDetails("Failed to detect PowerShell", e.getCause());
+    }
+    return null;
+  }
+
+  @NotNull
+  private static ExecutorService createDetectionExecutor() {
+    final int threads = Math.max(1, TeamCityProperties.getInteger(PARAM_DETECTION_THREADS, Math.min(4, Runtime.getRuntime().availableProcessors())));
+    final AtomicInteger counter = new AtomicInteger();
+    return Executors.newFixedThreadPool(threads, r -> {
+      final Thread t = new Thread(r, "PowerShell detection " + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Nullable
+  private PowerShellInfo doDetect(@NotNull final DetectionCandidate candidate,
+                                  @NotNull final DetectionScript script,
+                                  @NotNull final List<String> additionalParameters,
+                                  @NotNull final DetectionReport.ProbeTiming timing) {
+    final File exeFile = candidate.getExecutable();
+    final AtomicBoolean probed = new AtomicBoolean();
+    final PowerShellInfo result = myCache.getOrDetect(exeFile, candidate.getFingerprint(), () -> {
+      probed.set(true);
+      return probe(candidate, script, additionalParameters, timing);
+    });
+    if (result != null && !probed.get()) {
+      timing.cached();
+      LOG.info("Found (cached): " + result);
+    }
+    return result;
+  }
+
+  @Nullable
+  private PowerShellInfo probe(@NotNull final DetectionCandidate candidate,
+                               @NotNull final DetectionScript script,
+                               @NotNull final List<String> additionalParameters,
+                               @NotNull final DetectionReport.ProbeTiming timing) {
     PowerShellInfo result = null;
-    final File exeFile = new File(homePath, executable);
+    final File exeFile = candidate.getExecutable();
     if (LOG.isDebugEnabled()) {
-      LOG.debug("Searching for PowerShell at " + exeFile.getAbsolutePath());
+      LOG.debug("Trying PowerShell executable: " + candidate);
+    }
+    if (!EXECUTABLES_WIN_DESKTOP.contains(exeFile.getName()) && TeamCityProperties.getBooleanOrTrue(PARAM_VERSION_PROBE_ENABLED)) {
+      result = probeVersion(candidate, timing);
+      if (result != null) {
+        return result;
+      }
     }
-    if (exeFile.isFile()) {
+    String executablePath = exeFile.getAbsolutePath();
+    final String scriptPath = script.getPath();
+    if (scriptPath == null) {
+      return null;
+    }
+    try {
+      final List<String> outputLines = myRunner.runDetectionScript(executablePath, scriptPath, additionalParameters, CommandLinePowerShellDetector::isCompleteOutput, timing);
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Trying PowerShell executable: " + exeFile.getAbsolutePath());
+        LOG.debug("Detection script output at " + executablePath + "\n" + StringUtil.join(outputLines, "\n"));
       }
-      String executablePath = exeFile.getAbsolutePath();
-      try {
-        final List<String> outputLines = myRunner.runDetectionScript(executablePath, scriptPath, additionalParameters);
-        if (LOG.isDebugEnabled()) {
-          LOG.debug("Detection script output at " + executablePath + "\n" + StringUtil.join(outputLines, "\n"));
-        }
-        if (outputLines.size() == 3) {
-          final PowerShellEdition edition = PowerShellEdition.fromString(outputLines.get(1));
-          if (edition != null) {
-            result = new PowerShellInfo(Boolean.parseBoolean(outputLines.get(2)) ? PowerShellBitness.x64 : PowerShellBitness.x86, exeFile.getParentFile(), outputLines.get(0), edition, executable);
-            LOG.info("Found: " + result);
-          } else {
-            LOG.warn("Failed to determine PowerShell edition for [" + executablePath + "]");
-            LOG.debug(StringUtil.join("\n", outputLines));
-          }
-        } else {
-          LOG.warn("Failed to parse output from PowerShell executable [" + executablePath + "]");
-          LOG.debug(StringUtil.join("\n", outputLines));
-        }
-      } catch (ExecutionException e) {
-        LOG.warnAndDebugDetails("Failed to run PowerShell detection script [" + scriptPath + "] with executable [" + executablePath + "]", e);
+      result = parseProbeOutput(candidate.getRealExecutable(), outputLines);
+      if (result != null) {
+        LOG.info("Found: " + result);
+      } else {
+        LOG.warn("Failed to parse output from PowerShell executable [" + executablePath + "]");
+        LOG.debug(StringUtil.join("\n", outputLines));
       }
-    } else {
-      if (LOG.isDebugEnabled()) {
-        LOG.debug("PowerShell at " + exeFile.getAbsolutePath() + " was not found");
+    } catch (ExecutionException e) {
+      LOG.warnAndDebugDetails("Failed to run PowerShell detection script [" + scriptPath + "] with executable [" + executablePath + "]", e);
+    }
+    return result;
+  }
+
+  /**
+   * Detects PowerShell Core without starting a runspace: version is reported by {@code -Version} switch,
+   * bitness is read from the executable header
+   *
+   * @return detected shell, {@code null} if it could not be detected this way
+   */
+  @Nullable
+  private PowerShellInfo probeVersion(@NotNull final DetectionCandidate candidate, @NotNull final DetectionReport.ProbeTiming timing) {
+    final File exeFile = candidate.getExecutable();
+    final File realExe = candidate.getRealExecutable();
+    final PowerShellBitness bitness = ExecutableHeader.readBitness(exeFile);
+    if (bitness == null) {
+      LOG.debug("Failed to read bitness of [" + exeFile.getAbsolutePath() + "] from its header, using detection script");
+      return null;
+    }
+    try {
+      final List<String> outputLines = myRunner.runVersionProbe(exeFile.getAbsolutePath(), lines -> lines.size() == 1 && parseVersionOutput(lines.get(0)) != null, timing);
+      final String version = outputLines.size() == 1 ? parseVersionOutput(outputLines.get(0)) : null;
+      if (version == null) {
+        LOG.debug("Unexpected output of version probe at [" + exeFile.getAbsolutePath() + "], using detection script\n" + StringUtil.join(outputLines, "\n"));
+        return null;
+      }
+      final PowerShellInfo result = new PowerShellInfo(bitness, realExe.getParentFile(), version, PowerShellEdition.CORE, realExe.getName(), false,
+              MetadataPowerShellDetector.readCapabilities(realExe));
+      LOG.info("Found: " + result);
+      return result;
+    } catch (ExecutionException e) {
+      LOG.debug("Version probe failed at [" + exeFile.getAbsolutePath() + "], using detection script", e);
+      return null;
+    }
+  }
+
+  /**
+   * @param line output of {@code -Version} switch
+   * @return reported version, {@code null} if output is not recognized
+   */
+  @Nullable
+  static String parseVersionOutput(@NotNull final String line) {
+    final Matcher matcher = VERSION_OUTPUT.matcher(line.trim());
+    return matcher.matches() ? matcher.group(1) : null;
+  }
+
+  /**
+   * Detection script prints single JSON record
+   */
+  private static boolean isCompleteOutput(@NotNull final List<String> lines) {
+    return findRecord(lines) != null;
+  }
+
+  /**
+   * @param exeFile physical file of probed executable
+   * @param lines output of detection script
+   * @return shell described by detection script output, {@code null} if output does not contain valid record
+   */
+  @Nullable
+  static PowerShellInfo parseProbeOutput(@NotNull final File exeFile, @NotNull final List<String> lines) {
+    final Map<String, Object> record = findRecord(lines);
+    if (record == null) {
+      return null;
+    }
+    final PowerShellCapabilities capabilities = new PowerShellCapabilities(
+            asString(record.get("dotnet")),
+            asString(record.get("os")),
+            asString(record.get("arch")),
+            asString(record.get("home")),
+            asStrings(record.get("experimentalFeatures"))
+    );
+    final PowerShellBitness bitness = Boolean.TRUE.equals(record.get("x64")) ? PowerShellBitness.x64 : PowerShellBitness.x86;
+    return new PowerShellInfo(bitness, exeFile.getParentFile(), (String) record.get("version"),
+            PowerShellEdition.fromString((String) record.get("edition")), exeFile.getName(), false, capabilities);
+  }
+
+  /**
+   * @return last line, that is a record with version, edition and bitness
+   */
+  @Nullable
+  private static Map<String, Object> findRecord(@NotNull final List<String> lines) {
+    for (int i = lines.size() - 1; i >= 0; i--) {
+      if (!lines.get(i).startsWith("{")) {
+        continue;
+      }
+      final Map<String, Object> record = ProbeOutput.parse(lines.get(i));
+      if (record != null
+          && record.get("version") instanceof String
+          && record.get("edition") instanceof String
+          && PowerShellEdition.fromString((String) record.get("edition")) != null
+          && record.get("x64") instanceof Boolean) {
+        return record;
+      }
+    }
+    return null;
+  }
+
+  @Nullable
+  private static String asString(@Nullable final Object value) {
+    return value instanceof String ? (String) value : null;
+  }
+
+  @NotNull
+  private static List<String> asStrings(@Nullable final Object value) {
+    if (!(value instanceof List)) {
+      return Collections.emptyList();
+    }
+    final List<String> result = new ArrayList<>();
+    for (Object item : (List<?>) value) {
+      if (item instanceof String) {
+        result.add((String) item);
       }
     }
     return result;
   }
 
   private File prepareDetectionScript() {
-    final File cacheDir = myConfiguration.getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+    final File cacheDir = myCacheDir.get();
     final File result = new File(cacheDir, "detect_" + System.currentTimeMillis() + ".ps1");
     try {
       FileUtil.writeFile(result, DETECTION_SCRIPT, "UTF-8");
@@ -197,6 +482,34 @@ public class CommandLinePowerShellDetector {
       LOG.warnAndDebugDetails("Failed to write PowerShell detection script to file [" + result.getAbsolutePath() + "]", e);
       return null;
     }
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Detection script path is: " + result.getAbsolutePath());
+    }
     return result;
   }
+
+  /**
+   * Detection script file, written on first use. Shells detected by version probe do not need it
+   */
+  private final class DetectionScript {
+
+    private File myFile;
+
+    private boolean myPrepared;
+
+    @Nullable
+    synchronized String getPath() {
+      if (!myPrepared) {
+        myPrepared = true;
+        myFile = prepareDetectionScript();
+      }
+      return myFile == null ? null : myFile.getAbsolutePath();
+    }
+
+    synchronized void delete() {
+      if (myFile != null) {
+        FileUtil.delete(myFile);
+      }
+    }
+  }
 }
\ No newline at end of file
@@ -1,5 +1,3 @@
-
-
 package jetbrains.buildServer.powershell.agent.detect.cmd;
 
 import com.intellij.openapi.diagnostic.Logger;
@@ -11,7 +9,11 @@ import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.function.Supplier;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmptyOrSpaces;
 
@@ -20,6 +22,23 @@ public class DetectionPaths {
   @NotNull
   private static final Logger LOG = Loggers.DETECTION_LOGGER;
 
+  /**
+   * Additional search paths, separated with {@code ;}. Paths may contain glob patterns ({@code *}, {@code ?}, {@code [...]})
+   * and start with {@code ~}, i.e. {@code ~/.local/share/powershell/versions/*}
+   */
+  private static final String PARAM_SEARCH_PATHS = "teamcity.powershell.detector.search.paths";
+
+  /**
+   * Depth of subdirectories of search paths and roots that are searched for PowerShell, {@code 1} by default
+   */
+  private static final String PARAM_SEARCH_DEPTH = "teamcity.powershell.detector.search.depth";
+
+  /**
+   * Set to {@code true} to include directories from {@code PATH} environment variable into detection.
+   * Disabled by default: {@code PATH} usually contains many directories without PowerShell, each of them is listed on every detection
+   */
+  private static final String PARAM_SEARCH_ENV_PATH = "teamcity.powershell.detector.search.env.path";
+
   /**
    * https://docs.microsoft.com/en-us/powershell/scripting/setup/installing-powershell-core-on-windows?view=powershell-5.1
    * <p>
@@ -40,36 +59,38 @@ public class DetectionPaths {
           "/opt/microsoft/powershell"
   );
 
+  /**
+   * Agent configuration parameters, search paths settings are read from
+   */
   @NotNull
-  private final BuildAgentConfiguration myConfiguration;
+  private final Supplier<Map<String, String>> myParameters;
 
   public DetectionPaths(@NotNull BuildAgentConfiguration myConfiguration) {
-    this.myConfiguration = myConfiguration;
+    this(myConfiguration::getConfigurationParameters);
+  }
+
+  public DetectionPaths(@NotNull Supplier<Map<String, String>> parameters) {
+    myParameters = parameters;
   }
 
   public List<String> getPaths() {
+    final int depth = getSearchDepth();
     // add predefined paths
     final List<String> propertyPaths = getPredefinedPaths();
     if (LOG.isDebugEnabled()) {
       if (!propertyPaths.isEmpty()) {
-        LOG.debug("Adding PowerShell detection paths from [teamcity.powershell.detector.search.paths] property.");
+        LOG.debug("Adding PowerShell detection paths from [" + PARAM_SEARCH_PATHS + "] property.");
         LOG.debug(StringUtil.join(propertyPaths, "\n"));
       }
     }
-    final List<String> result = new ArrayList<>(getPaths(propertyPaths));
+    final Set<String> result = new LinkedHashSet<>(getPaths(expandPatterns(propertyPaths), depth));
     if (SystemInfo.isWindows) {
-      result.addAll(getPaths(WINDOWS_PATHS));
+      result.addAll(getPaths(WINDOWS_PATHS, depth));
     } else {
       // typical *nix locations
       result.addAll(PATHS);
       // add roots, recommended by documentation
-      ADDITIONAL_ROOTS.stream()
-              .map(File::new)
-              .filter(File::isDirectory)
-              .forEach(dir -> {
-                result.add(dir.getAbsolutePath());
-                result.addAll(populateWithChildren(dir));
-              });
+      result.addAll(getPaths(ADDITIONAL_ROOTS, depth));
       // additionally, check $HOME/powershell location
       File homePath = new File(System.getenv("HOME"), "powershell");
       if (homePath.isDirectory()) {
@@ -77,18 +98,31 @@ public class DetectionPaths {
       }
     }
     addGlobalToolsPath(result);
-    return result;
+    addEnvironmentPath(result);
+    return new ArrayList<>(result);
   }
 
   @NotNull
   private List<String> getPredefinedPaths() {
-    String paths = myConfiguration.getConfigurationParameters().get("teamcity.powershell.detector.search.paths");
+    String paths = myParameters.get().get(PARAM_SEARCH_PATHS);
     return isEmptyOrSpaces(paths)
         ? Collections.emptyList()
         : StringUtil.split(paths, ";");
   }
 
-  private void addGlobalToolsPath(@NotNull final List<String> result) {
+  private int getSearchDepth() {
+    final String depth = myParameters.get().get(PARAM_SEARCH_DEPTH);
+    if (!isEmptyOrSpaces(depth)) {
+      try {
+        return Math.max(0, Integer.parseInt(depth.trim()));
+      } catch (NumberFormatException e) {
+        LOG.warn("Invalid value of " + PARAM_SEARCH_DEPTH + " property: " + depth);
+      }
+    }
+    return 1;
+  }
+
+  private void addGlobalToolsPath(@NotNull final Collection<String> result) {
     File toolsPath;
     if (SystemInfo.isWindows) {
       toolsPath = new File(System.getenv("USERPROFILE") + "\\.dotnet\\tools");
@@ -103,25 +137,50 @@ public class DetectionPaths {
     }
   }
 
-  private List<String> getPaths(@NotNull final Collection<String> paths) {
+  private void addEnvironmentPath(@NotNull final Collection<String> result) {
+    if (!StringUtil.isTrue(myParameters.get().get(PARAM_SEARCH_ENV_PATH))) {
+      return;
+    }
+    final String envPath = System.getenv("PATH");
+    if (isEmptyOrSpaces(envPath)) {
+      return;
+    }
+    for (String entry : envPath.split(File.pathSeparator)) {
+      if (!isEmptyOrSpaces(entry)) {
+        final File dir = new File(entry.trim());
+        if (dir.isAbsolute() && dir.isDirectory()) {
+          result.add(dir.getAbsolutePath());
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets given paths together with their subdirectories up to given depth.
+   * Order of the result follows order of given paths
+   */
+  private List<String> getPaths(@NotNull final Collection<String> paths, int depth) {
     final List<String> result = new ArrayList<>();
     for (String base : paths) {
       if (LOG.isDebugEnabled()) {
-        LOG.debug("Processing PowerShell Windows path: " + base);
+        LOG.debug("Processing PowerShell path: " + base);
       }
       File f = new File(base);
       if (f.isDirectory()) {
         result.add(f.getAbsolutePath());
-        result.addAll(populateWithChildren(f));
+        result.addAll(populateWithChildren(f, depth));
       }
     }
     return result;
   }
 
-  private List<String> populateWithChildren(@NotNull File base) {
+  private List<String> populateWithChildren(@NotNull File base, int depth) {
     List<String> result = new ArrayList<>();
-    for (File subDir : FileUtil.getSubDirectories(base)) {
-      result.add(subDir.getAbsolutePath());
+    if (depth > 0) {
+      for (File subDir : FileUtil.getSubDirectories(base)) {
+        result.add(subDir.getAbsolutePath());
+        result.addAll(populateWithChildren(subDir, depth - 1));
+      }
     }
     if (LOG.isDebugEnabled()) {
       LOG.debug("Paths under PowerShell home that will be searched for PowerShell.Core install: "
@@ -130,6 +189,74 @@ public class DetectionPaths {
     return result;
   }
 
+  @NotNull
+  private static List<String> expandPatterns(@NotNull final List<String> paths) {
+    final List<String> result = new ArrayList<>();
+    for (String path : paths) {
+      String expanded = path.trim();
+      // same home directory as for .NET global tools
+      final String home = System.getenv(SystemInfo.isWindows ? "USERPROFILE" : "HOME");
+      if (expanded.startsWith("~") && home != null) {
+        expanded = home + expanded.substring(1);
+      }
+      if (isPattern(expanded)) {
+        for (File dir : expandGlob(expanded)) {
+          result.add(dir.getAbsolutePath());
+        }
+      } else {
+        result.add(expanded);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Expands glob pattern segment by segment, only directories are matched
+   */
+  @NotNull
+  private static List<File> expandGlob(@NotNull final String pattern) {
+    final String[] segments = pattern.split("[/\\\\]");
+    int first = 0;
+    while (first < segments.length && !isPattern(segments[first])) {
+      first++;
+    }
+    String base = String.join("/", Arrays.asList(segments).subList(0, first));
+    if (base.isEmpty()) {
+      base = pattern.startsWith("/") || pattern.startsWith("\\") ? File.separator : ".";
+    }
+    List<File> current = Collections.singletonList(new File(base));
+    for (int i = first; i < segments.length; i++) {
+      final String segment = segments[i];
+      if (segment.isEmpty()) {
+        continue;
+      }
+      final List<File> next = new ArrayList<>();
+      if (isPattern(segment)) {
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + segment);
+        for (File dir : current) {
+          for (File subDir : FileUtil.getSubDirectories(dir)) {
+            if (matcher.matches(Paths.get(subDir.getName()))) {
+              next.add(subDir);
+            }
+          }
+        }
+      } else {
+        for (File dir : current) {
+          final File child = new File(dir, segment);
+          if (child.isDirectory()) {
+            next.add(child);
+          }
+        }
+      }
+      current = next;
+    }
+    return current;
+  }
+
+  private static boolean isPattern(@NotNull final String path) {
+    return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0;
+  }
+
   private Set<String> getWindowsBasePaths() {
     final Set<String> result = new HashSet<>();
     checkPathAndAdd(result, System.getenv("ProgramFiles"));
@@ -148,4 +275,4 @@ public class DetectionPaths {
       }
     }
   }
-}
\ No newline at end of file
+}
@@ -2,16 +2,28 @@ package jetbrains.buildServer.powershell.agent.detect.cmd;
 
 import com.intellij.execution.ExecutionException;
 import com.intellij.execution.configurations.GeneralCommandLine;
-import com.intellij.execution.process.CapturingProcessHandler;
-import com.intellij.execution.process.ProcessOutput;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.util.text.StringUtil;
 import jetbrains.buildServer.powershell.agent.Loggers;
+import jetbrains.buildServer.powershell.agent.detect.DetectionReport;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import static com.intellij.openapi.util.text.StringUtil.isEmptyOrSpaces;
 
@@ -24,18 +36,41 @@ public class DetectionRunner {
 
   private static final Logger LOG = Loggers.DETECTION_LOGGER;
 
+  /**
+   * Marks the end of process output
+   */
+  @SuppressWarnings("StringOperationCanBeSimplified")
+  private static final String EOF = new String("<EOF>");
+
+  /**
+   * Environment of detection processes: no update check and telemetry on startup
+   */
+  private static final Map<String, String> DETECTION_ENV;
+
+  static {
+    final Map<String, String> env = new HashMap<>();
+    env.put("POWERSHELL_UPDATECHECK", "Off");
+    env.put("POWERSHELL_TELEMETRY_OPTOUT", "1");
+    DETECTION_ENV = Collections.unmodifiableMap(env);
+  }
+
   /**
    * Runs detection script
    *
    * @param executablePath executable to run script with
    * @param detectionScriptPath file containing detection script
    * @param additionalParameters additional parameters for script runner
+   * @param isComplete checks if output received so far contains the answer.
+   *                   Once it does, the process is not waited for anymore
+   * @param timing timing of the probe to fill
    * @return lines from stdout
    * @throws ExecutionException if there was an error during execution
    */
   List<String> runDetectionScript(@NotNull final String executablePath,
                                   @NotNull final String detectionScriptPath,
-                                  @NotNull final List<String> additionalParameters) throws ExecutionException {
+                                  @NotNull final List<String> additionalParameters,
+                                  @NotNull final Predicate<List<String>> isComplete,
+                                  @NotNull final DetectionReport.ProbeTiming timing) throws ExecutionException {
     final GeneralCommandLine cl = new GeneralCommandLine();
     cl.setExePath(executablePath);
     cl.addParameter("-NoProfile");
@@ -47,39 +82,198 @@ public class DetectionRunner {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Running detection script using command line: " + cl.getCommandLineString());
     }
-    return runProcess(cl).getStdoutLines();
+    return runProcess(cl, isComplete, timing);
   }
 
-  private ProcessOutput runProcess(@NotNull final GeneralCommandLine cl) throws ExecutionException {
+  /**
+   * Asks PowerShell for its version with {@code -Version} switch, that does not initialize runspace.
+   * Supported by PowerShell Core only, for Windows PowerShell {@code -Version} selects version of the engine to run
+   *
+   * @param executablePath executable to run
+   * @param isComplete checks if output received so far contains the answer
+   * @param timing timing of the probe to fill
+   * @return lines from stdout
+   * @throws ExecutionException if there was an error during execution
+   */
+  List<String> runVersionProbe(@NotNull final String executablePath,
+                               @NotNull final Predicate<List<String>> isComplete,
+                               @NotNull final DetectionReport.ProbeTiming timing) throws ExecutionException {
+    final GeneralCommandLine cl = new GeneralCommandLine();
+    cl.setExePath(executablePath);
+    cl.addParameter("-Version");
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Running version probe using command line: " + cl.getCommandLineString());
+    }
+    return runProcess(cl, isComplete, timing);
+  }
+
+  /**
+   * Measures time it takes PowerShell to start, run empty command and exit
+   *
+   * @param executablePath executable to run
+   * @return elapsed time in milliseconds
+   * @throws ExecutionException if process could not be started or did not exit in time
+   */
+  public long measureStartup(@NotNull final String executablePath) throws ExecutionException {
+    final GeneralCommandLine cl = new GeneralCommandLine();
+    cl.setExePath(executablePath);
+    cl.addParameters("-NoProfile", "-NonInteractive", "-Command", "exit");
+    cl.setPassParentEnvs(true);
+    cl.setEnvParams(DETECTION_ENV);
+    final int timeout = TeamCityProperties.getInteger("teamcity.powershell.detector.timeout.msec", 20000);
+    final long started = System.nanoTime();
+    final Process process = cl.createProcess();
+    try {
+      process.getOutputStream().close();
+      if (!process.waitFor(timeout, TimeUnit.MILLISECONDS)) {
+        throw new ExecutionException("Process execution of [" + cl.getCommandLineString() + "] has timed out. Timeout is set to " + timeout + " msec.");
+      }
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    } catch (IOException e) {
+      throw new ExecutionException(e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException("PowerShell startup measurement was interrupted");
+    } finally {
+      process.destroy();
+    }
+  }
+
+  private List<String> runProcess(@NotNull final GeneralCommandLine cl,
+                                  @NotNull final Predicate<List<String>> isComplete,
+                                  @NotNull final DetectionReport.ProbeTiming timing) throws ExecutionException {
     final int attempts = TeamCityProperties.getInteger("teamcity.powershell.detector.attempts", 1);
     final int timeout = TeamCityProperties.getInteger("teamcity.powershell.detector.timeout.msec", 20000);
+    cl.setPassParentEnvs(true);
+    cl.setEnvParams(DETECTION_ENV);
     for (int attempt = 1; attempt <= attempts; attempt++) {
-      final CapturingProcessHandler handler = new CapturingProcessHandler(cl.createProcess(), StandardCharsets.UTF_8);
-      final ProcessOutput result = handler.runProcess(timeout);
-      final String errorOutput = result.getStderr();
-      if (!isEmptyOrSpaces(errorOutput)) {
-        logProcessOutput(result);
-        throw new ExecutionException(errorOutput);
-      }
-      if (result.isTimeout()) {
-        logProcessOutput(result);
-        int leftAttempts = attempts - attempt;
-        if (leftAttempts > 0) {
-          LOG.warn(String.format("PowerShell detection timed out, %d %s left",
-                  leftAttempts, StringUtil.pluralize("attempt", leftAttempts)
-          ));
-          continue;
+      final long spawnStarted = System.nanoTime();
+      final Process process = cl.createProcess();
+      timing.spawned(spawnStarted);
+      try {
+        final StringBuffer stdErr = new StringBuffer();
+        final BlockingQueue<String> stdOut = new LinkedBlockingQueue<>();
+        final Thread errReader = startReader(process.getErrorStream(), line -> {
+          if (line != EOF) {
+            stdErr.append(line).append('\n');
+          }
+        }, "stderr");
+        startReader(process.getInputStream(), line -> {
+          if (line != EOF) {
+            timing.firstOutput();
+          }
+          stdOut.add(line);
+        }, "stdout");
+
+        final List<String> lines = new ArrayList<>();
+        final boolean finished = readOutput(stdOut, lines, isComplete, System.currentTimeMillis() + timeout);
+        final boolean complete = isComplete.test(lines);
+        if (finished) {
+          if (complete) {
+            timing.answered();
+          }
+          // output is read up to the end only if it did not contain the answer
+          if (!complete || !process.isAlive()) {
+            timing.exited();
+          }
         }
-        throw new ExecutionException("Process execution of [" + cl.getCommandLineString() + "] has timed out. Timeout is set to " + timeout + " msec.");
+        if (complete) {
+          // the answer is here, no need to wait for runtime shutdown. Warnings in stderr do not matter either
+          if (LOG.isDebugEnabled() && !isEmptyOrSpaces(stdErr.toString())) {
+            LOG.debug("Ignoring PowerShell detection script error output: " + stdErr);
+          }
+          return lines;
+        }
+        if (!finished) {
+          timing.timedOut();
+          logProcessOutput(lines, stdErr.toString());
+          int leftAttempts = attempts - attempt;
+          if (leftAttempts > 0) {
+            LOG.warn(String.format("PowerShell detection timed out, %d %s left",
+                    leftAttempts, StringUtil.pluralize("attempt", leftAttempts)
+            ));
+            continue;
+          }
+          throw new ExecutionException("Process execution of [" + cl.getCommandLineString() + "] has timed out. Timeout is set to " + timeout + " msec.");
+        }
+        // stdout is closed, let the rest of stderr arrive
+        joinReader(errReader);
+        final String errorOutput = stdErr.toString();
+        if (!isEmptyOrSpaces(errorOutput)) {
+          logProcessOutput(lines, errorOutput);
+          throw new ExecutionException(errorOutput);
+        }
+        return lines;
+      } finally {
+        process.destroy();
       }
-      return result;
     }
     throw new ExecutionException("Failed to detect PowerShell"); // must be unreachable
   }
 
-  private void logProcessOutput(@NotNull final ProcessOutput output) {
-    final String stdOut = output.getStdout().trim();
-    final String stdErr = output.getStderr().trim();
+  /**
+   * Reads stdout lines until the answer is complete, output is closed or deadline is reached
+   *
+   * @return {@code false} if deadline was reached
+   */
+  private static boolean readOutput(@NotNull final BlockingQueue<String> stdOut,
+                                    @NotNull final List<String> lines,
+                                    @NotNull final Predicate<List<String>> isComplete,
+                                    long deadline) throws ExecutionException {
+    try {
+      while (!isComplete.test(lines)) {
+        final long left = deadline - System.currentTimeMillis();
+        final String line = left > 0 ? stdOut.poll(left, TimeUnit.MILLISECONDS) : null;
+        if (line == null) {
+          return false;
+        }
+        if (line == EOF) {
+          return true;
+        }
+        if (!isEmptyOrSpaces(line)) {
+          lines.add(line.trim());
+        }
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException("PowerShell detection was interrupted");
+    }
+  }
+
+  @NotNull
+  private static Thread startReader(@NotNull final InputStream stream,
+                                  @NotNull final Consumer<String> consumer,
+                                  @NotNull final String name) {
+    final Thread reader = new Thread(() -> {
+      try (BufferedReader r = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+        String line;
+        while ((line = r.readLine()) != null) {
+          consumer.accept(line);
+        }
+      } catch (IOException ignored) {
+        // stream is closed when process is destroyed
+      } finally {
+        consumer.accept(EOF);
+      }
+    }, "PowerShell detection " + name + " reader");
+    reader.setDaemon(true);
+    reader.start();
+    return reader;
+  }
+
+  private static void joinReader(@NotNull final Thread reader) throws ExecutionException {
+    try {
+      reader.join(1000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ExecutionException("PowerShell detection was interrupted");
+    }
+  }
+
+  private void logProcessOutput(@NotNull final List<String> stdOutLines, @NotNull final String errorOutput) {
+    final String stdOut = String.join("\n", stdOutLines).trim();
+    final String stdErr = errorOutput.trim();
     StringBuilder b = new StringBuilder("PowerShell detection script output: \n");
     if (!isEmptyOrSpaces(stdOut)) {
       b.append("\n----- StdOut: -----\n").append(stdOut).append("\n");
@@ -90,4 +284,4 @@ public class DetectionRunner {
     LOG.warn(b.toString());
   }
 
-}
\ No newline at end of file
+}
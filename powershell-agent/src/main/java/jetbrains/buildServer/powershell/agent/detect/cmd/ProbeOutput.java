@@ -0,0 +1,172 @@
+package jetbrains.buildServer.powershell.agent.detect.cmd;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser of detection script output: single line JSON object with string, boolean, number and {@code null} values,
+ * or arrays of them. Nested objects are not supported
+ */
+final class ProbeOutput {
+
+  @NotNull
+  private final String myText;
+
+  private int myPos;
+
+  private ProbeOutput(@NotNull final String text) {
+    myText = text;
+  }
+
+  /**
+   * @param line output line
+   * @return values keyed by names, numbers are kept as strings, arrays as lists. {@code null} if line is not a JSON object
+   */
+  @Nullable
+  static Map<String, Object> parse(@NotNull final String line) {
+    final ProbeOutput parser = new ProbeOutput(line.trim());
+    try {
+      final Map<String, Object> result = parser.readObject();
+      parser.skipSpaces();
+      return parser.myPos == parser.myText.length() ? result : null;
+    } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  private Map<String, Object> readObject() {
+    expect('{');
+    final Map<String, Object> result = new HashMap<>();
+    skipSpaces();
+    if (peek() == '}') {
+      myPos++;
+      return result;
+    }
+    while (true) {
+      skipSpaces();
+      final String name = readString();
+      skipSpaces();
+      expect(':');
+      result.put(name, readValue());
+      skipSpaces();
+      if (peek() == '}') {
+        myPos++;
+        return result;
+      }
+      expect(',');
+    }
+  }
+
+  @Nullable
+  private Object readValue() {
+    skipSpaces();
+    final char c = peek();
+    if (c == '"') {
+      return readString();
+    }
+    if (c == '[') {
+      return readArray();
+    }
+    final int start = myPos;
+    while (myPos < myText.length() && ",]} \t".indexOf(myText.charAt(myPos)) < 0) {
+      myPos++;
+    }
+    final String literal = myText.substring(start, myPos);
+    switch (literal) {
+      case "true":
+        return Boolean.TRUE;
+      case "false":
+        return Boolean.FALSE;
+      case "null":
+        return null;
+      default:
+        if (literal.isEmpty() || !literal.matches("-?[0-9][0-9.eE+-]*")) {
+          throw new IllegalArgumentException("Unexpected value: " + literal);
+        }
+        return literal;
+    }
+  }
+
+  @NotNull
+  private List<Object> readArray() {
+    expect('[');
+    final List<Object> result = new ArrayList<>();
+    skipSpaces();
+    if (peek() == ']') {
+      myPos++;
+      return result;
+    }
+    while (true) {
+      result.add(readValue());
+      skipSpaces();
+      if (peek() == ']') {
+        myPos++;
+        return result;
+      }
+      expect(',');
+    }
+  }
+
+  @NotNull
+  private String readString() {
+    expect('"');
+    final StringBuilder sb = new StringBuilder();
+    while (true) {
+      final char c = myText.charAt(myPos++);
+      if (c == '"') {
+        return sb.toString();
+      }
+      if (c != '\\') {
+        sb.append(c);
+        continue;
+      }
+      final char escaped = myText.charAt(myPos++);
+      switch (escaped) {
+        case 'n':
+          sb.append('\n');
+          break;
+        case 'r':
+          sb.append('\r');
+          break;
+        case 't':
+          sb.append('\t');
+          break;
+        case 'b':
+          sb.append('\b');
+          break;
+        case 'f':
+          sb.append('\f');
+          break;
+        case 'u':
+          sb.append((char) Integer.parseInt(myText.substring(myPos, myPos + 4), 16));
+          myPos += 4;
+          break;
+        default:
+          sb.append(escaped);
+      }
+    }
+  }
+
+  private char peek() {
+    return myText.charAt(myPos);
+  }
+
+  private void expect(char c) {
+    if (myText.charAt(myPos) != c) {
+      throw new IllegalArgumentException("Expected '" + c + "' at " + myPos);
+    }
+    myPos++;
+  }
+
+  private void skipSpaces() {
+    while (myPos < myText.length() && Character.isWhitespace(myText.charAt(myPos))) {
+      myPos++;
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package jetbrains.buildServer.powershell.agent.detect.metadata;
+
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Reads bitness of native executable from its header.
+ * Supports ELF, PE and thin Mach-O binaries.
+ */
+public final class ExecutableHeader {
+
+  private static final int PE_HEADER_OFFSET_LOCATION = 0x3C;
+  private static final int PE_MACHINE_I386 = 0x14C;
+  private static final int PE_MACHINE_AMD64 = 0x8664;
+  private static final int PE_MACHINE_ARM64 = 0xAA64;
+
+  private static final int ELF_CLASS_32 = 1;
+  private static final int ELF_CLASS_64 = 2;
+
+  private static final int MACH_O_32 = 0xFEEDFACE;
+  private static final int MACH_O_64 = 0xFEEDFACF;
+
+  private ExecutableHeader() {
+  }
+
+  /**
+   * @param file executable to inspect
+   * @return bitness of the executable or {@code null} if header is not recognized
+   */
+  @Nullable
+  public static PowerShellBitness readBitness(@NotNull final File file) {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      final byte[] magic = new byte[5];
+      if (raf.read(magic) != magic.length) {
+        return null;
+      }
+      if (magic[0] == 0x7F && magic[1] == 'E' && magic[2] == 'L' && magic[3] == 'F') {
+        return fromElfClass(magic[4]);
+      }
+      if (magic[0] == 'M' && magic[1] == 'Z') {
+        return readPeBitness(raf);
+      }
+      return fromMachOMagic(littleEndianInt(magic, 0));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  @Nullable
+  private static PowerShellBitness fromElfClass(byte elfClass) {
+    switch (elfClass) {
+      case ELF_CLASS_32:
+        return PowerShellBitness.x86;
+      case ELF_CLASS_64:
+        return PowerShellBitness.x64;
+      default:
+        return null;
+    }
+  }
+
+  @Nullable
+  private static PowerShellBitness readPeBitness(@NotNull final RandomAccessFile raf) throws IOException {
+    final byte[] buf = new byte[6];
+    raf.seek(PE_HEADER_OFFSET_LOCATION);
+    if (raf.read(buf, 0, 4) != 4) {
+      return null;
+    }
+    final long peOffset = littleEndianInt(buf, 0) & 0xFFFFFFFFL;
+    if (peOffset + buf.length > raf.length()) {
+      return null;
+    }
+    raf.seek(peOffset);
+    if (raf.read(buf) != buf.length || buf[0] != 'P' || buf[1] != 'E' || buf[2] != 0 || buf[3] != 0) {
+      return null;
+    }
+    final int machine = (buf[4] & 0xFF) | (buf[5] & 0xFF) << 8;
+    switch (machine) {
+      case PE_MACHINE_I386:
+        return PowerShellBitness.x86;
+      case PE_MACHINE_AMD64:
+      case PE_MACHINE_ARM64:
+        return PowerShellBitness.x64;
+      default:
+        return null;
+    }
+  }
+
+  @Nullable
+  private static PowerShellBitness fromMachOMagic(int magic) {
+    if (magic == MACH_O_64) {
+      return PowerShellBitness.x64;
+    }
+    if (magic == MACH_O_32) {
+      return PowerShellBitness.x86;
+    }
+    // universal binaries may contain several architectures
+    return null;
+  }
+
+  private static int littleEndianInt(@NotNull final byte[] buf, int offset) {
+    return (buf[offset] & 0xFF)
+            | (buf[offset + 1] & 0xFF) << 8
+            | (buf[offset + 2] & 0xFF) << 16
+            | (buf[offset + 3] & 0xFF) << 24;
+  }
+}
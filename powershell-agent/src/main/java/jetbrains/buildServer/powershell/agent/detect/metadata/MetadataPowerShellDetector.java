@@ -0,0 +1,268 @@
+package jetbrains.buildServer.powershell.agent.detect.metadata;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.powershell.agent.Loggers;
+import jetbrains.buildServer.powershell.agent.detect.DetectionCandidate;
+import jetbrains.buildServer.powershell.agent.detect.DetectionReport;
+import jetbrains.buildServer.powershell.agent.detect.DirectoryListings;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellCapabilities;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionPaths;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detects PowerShell.Core without starting it.
+ *
+ * Version is taken from {@code pwsh.deps.json} that is shipped next to the executable,
+ * bitness is read from the executable header and checked against runtime target of the install.
+ * Installs with missing or inconsistent metadata are left for {@code CommandLinePowerShellDetector}
+ */
+public class MetadataPowerShellDetector {
+
+  @NotNull
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  private static final String PARAM_ENABLED = "teamcity.powershell.detector.metadata.enabled";
+
+  private static final List<String> EXECUTABLES_WIN = Collections.singletonList(
+          "pwsh.exe"
+  );
+
+  private static final List<String> EXECUTABLES_NIX = Arrays.asList(
+          "pwsh",
+          "pwsh-preview"
+  );
+
+  /**
+   * {@code "pwsh/7.4.1": {...}} entry of deps.json
+   */
+  private static final Pattern VERSION_PATTERN = Pattern.compile("\"pwsh/([0-9][^\"]*)\"");
+
+  /**
+   * {@code "runtimeTarget": {"name": ".NETCoreApp,Version=v8.0/linux-x64"}} entry of deps.json
+   */
+  private static final Pattern RUNTIME_TARGET_PATTERN = Pattern.compile("\"runtimeTarget\"\\s*:\\s*\\{\\s*\"name\"\\s*:\\s*\"[^\"/]*/([^\"]+)\"");
+
+  /**
+   * .NET version of runtime target, i.e. {@code .NETCoreApp,Version=v8.0}
+   */
+  private static final Pattern DOTNET_PATTERN = Pattern.compile("\"runtimeTarget\"\\s*:\\s*\\{\\s*\"name\"\\s*:\\s*\"\\.NETCoreApp,Version=v([0-9][0-9.]*)");
+
+  /**
+   * {@code "ExperimentalFeatures": [...]} entry of {@code powershell.config.json} in {@code $PSHOME}
+   */
+  private static final Pattern EXPERIMENTAL_FEATURES_PATTERN = Pattern.compile("\"ExperimentalFeatures\"\\s*:\\s*\\[([^\\]]*)\\]");
+
+  private static final Pattern QUOTED_PATTERN = Pattern.compile("\"([^\"]+)\"");
+
+  @NotNull
+  private final DetectionPaths myDetectionPaths;
+
+  public MetadataPowerShellDetector(@NotNull final DetectionPaths detectionPaths) {
+    myDetectionPaths = detectionPaths;
+  }
+
+  /**
+   * Detects PowerShell in detection paths
+   *
+   * @param skipPaths canonical homes of already detected shells
+   * @param report report to record timings to
+   * @return detected shells, keyed by canonical home
+   */
+  @NotNull
+  public Map<String, PowerShellInfo> findShells(@NotNull final Set<String> skipPaths, @NotNull final DetectionReport report) {
+    return findShells(myDetectionPaths.getPaths(), skipPaths, report);
+  }
+
+  /**
+   * Detects PowerShell in given paths only
+   *
+   * @param paths paths to search PowerShell in
+   * @param skipPaths canonical homes of already detected shells
+   * @param report report to record timings to
+   * @return detected shells, keyed by canonical home
+   */
+  @NotNull
+  public Map<String, PowerShellInfo> findShells(@NotNull final Collection<String> paths,
+                                                @NotNull final Set<String> skipPaths,
+                                                @NotNull final DetectionReport report) {
+    final Map<String, PowerShellInfo> result = new HashMap<>();
+    if (!TeamCityProperties.getBooleanOrTrue(PARAM_ENABLED)) {
+      return result;
+    }
+    LOG.info("Detecting PowerShell using MetadataPowerShellDetector");
+    final DirectoryListings listings = new DirectoryListings();
+    final List<DetectionCandidate> candidates = DetectionCandidate.collect(
+            paths, SystemInfo.isWindows ? EXECUTABLES_WIN : EXECUTABLES_NIX, skipPaths, new HashSet<>(), listings);
+    for (DetectionCandidate candidate : candidates) {
+      final DetectionReport.ProbeTiming timing = report.startProbe("metadata", candidate);
+      final PowerShellInfo info = detect(candidate.getExecutable());
+      timing.finished(info);
+      if (info != null) {
+        LOG.info("Found from install metadata: " + info);
+        result.put(candidate.getHomeKey(), info);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Detects PowerShell from metadata of the install
+   *
+   * @param exeFile PowerShell executable, may be a symlink
+   * @return detected PowerShell, registered with physical executable, or {@code null} if metadata is missing or ambiguous
+   */
+  @Nullable
+  public PowerShellInfo detect(@NotNull final File exeFile) {
+    if (!exeFile.isFile()) {
+      return null;
+    }
+    final File realExe = FileUtil.getCanonicalFile(exeFile);
+    final File deps = new File(realExe.getParentFile(), stripExe(realExe.getName()) + ".deps.json");
+    if (!deps.isFile()) {
+      LOG.debug("No " + deps.getName() + " found for " + exeFile.getAbsolutePath());
+      return null;
+    }
+    final String content;
+    try {
+      content = FileUtil.readText(deps, "UTF-8");
+    } catch (IOException e) {
+      LOG.debug("Failed to read " + deps.getAbsolutePath(), e);
+      return null;
+    }
+    final String version = readVersion(content);
+    if (version == null) {
+      LOG.debug("Could not determine PowerShell version from " + deps.getAbsolutePath());
+      return null;
+    }
+    final PowerShellBitness headerBitness = ExecutableHeader.readBitness(realExe);
+    final PowerShellBitness runtimeBitness = readRuntimeBitness(content);
+    final PowerShellBitness bitness = headerBitness != null ? headerBitness : runtimeBitness;
+    if (bitness == null || (runtimeBitness != null && runtimeBitness != bitness)) {
+      LOG.debug("Could not determine PowerShell bitness for " + exeFile.getAbsolutePath()
+              + ": header reports " + headerBitness + ", runtime target is " + runtimeBitness);
+      return null;
+    }
+    return new PowerShellInfo(bitness, realExe.getParentFile(), version, PowerShellEdition.CORE, realExe.getName(), false, readCapabilities(realExe, content));
+  }
+
+  /**
+   * Reads capabilities of PowerShell.Core install, that are known without starting it:
+   * .NET version and architecture of runtime target, {@code $PSHOME} and experimental features enabled for all users
+   *
+   * @param realExe PowerShell executable, symlinks resolved
+   * @return capabilities, {@link PowerShellCapabilities#EMPTY} if install has no metadata
+   */
+  @NotNull
+  public static PowerShellCapabilities readCapabilities(@NotNull final File realExe) {
+    final File deps = new File(realExe.getParentFile(), stripExe(realExe.getName()) + ".deps.json");
+    if (!deps.isFile()) {
+      return PowerShellCapabilities.EMPTY;
+    }
+    try {
+      return readCapabilities(realExe, FileUtil.readText(deps, "UTF-8"));
+    } catch (IOException e) {
+      LOG.debug("Failed to read " + deps.getAbsolutePath(), e);
+      return PowerShellCapabilities.EMPTY;
+    }
+  }
+
+  @NotNull
+  private static PowerShellCapabilities readCapabilities(@NotNull final File realExe, @NotNull final String depsContent) {
+    final Matcher dotnet = DOTNET_PATTERN.matcher(depsContent);
+    final Matcher runtime = RUNTIME_TARGET_PATTERN.matcher(depsContent);
+    return new PowerShellCapabilities(
+            dotnet.find() ? dotnet.group(1) : null,
+            null,
+            runtime.find() ? toArchitecture(runtime.group(1)) : null,
+            realExe.getParent(),
+            readExperimentalFeatures(new File(realExe.getParentFile(), "powershell.config.json"))
+    );
+  }
+
+  @NotNull
+  private static List<String> readExperimentalFeatures(@NotNull final File config) {
+    if (!config.isFile()) {
+      return Collections.emptyList();
+    }
+    try {
+      final Matcher matcher = EXPERIMENTAL_FEATURES_PATTERN.matcher(FileUtil.readText(config, "UTF-8"));
+      if (!matcher.find()) {
+        return Collections.emptyList();
+      }
+      final List<String> result = new ArrayList<>();
+      final Matcher feature = QUOTED_PATTERN.matcher(matcher.group(1));
+      while (feature.find()) {
+        result.add(feature.group(1));
+      }
+      return result;
+    } catch (IOException e) {
+      LOG.debug("Failed to read " + config.getAbsolutePath(), e);
+      return Collections.emptyList();
+    }
+  }
+
+  /**
+   * @param rid runtime identifier, i.e. {@code linux-x64}
+   * @return architecture in terms of {@code RuntimeInformation.ProcessArchitecture}, i.e. {@code X64}
+   */
+  @Nullable
+  private static String toArchitecture(@NotNull final String rid) {
+    final String arch = rid.substring(rid.lastIndexOf('-') + 1);
+    switch (arch) {
+      case "x64":
+        return "X64";
+      case "x86":
+        return "X86";
+      case "arm64":
+        return "Arm64";
+      case "arm":
+        return "Arm";
+      default:
+        return null;
+    }
+  }
+
+  @Nullable
+  private static String readVersion(@NotNull final String depsContent) {
+    final Set<String> versions = new HashSet<>();
+    final Matcher matcher = VERSION_PATTERN.matcher(depsContent);
+    while (matcher.find()) {
+      versions.add(matcher.group(1));
+    }
+    return versions.size() == 1 ? versions.iterator().next() : null;
+  }
+
+  @Nullable
+  private static PowerShellBitness readRuntimeBitness(@NotNull final String depsContent) {
+    final Matcher matcher = RUNTIME_TARGET_PATTERN.matcher(depsContent);
+    if (!matcher.find()) {
+      return null;
+    }
+    final String rid = matcher.group(1);
+    if (rid.endsWith("-x64") || rid.endsWith("-arm64")) {
+      return PowerShellBitness.x64;
+    }
+    if (rid.endsWith("-x86") || rid.endsWith("-arm")) {
+      return PowerShellBitness.x86;
+    }
+    return null;
+  }
+
+  @NotNull
+  private static String stripExe(@NotNull final String name) {
+    return name.toLowerCase(Locale.ENGLISH).endsWith(".exe") ? name.substring(0, name.length() - 4) : name;
+  }
+}
@@ -0,0 +1,190 @@
+package jetbrains.buildServer.powershell.agent.detect.registry;
+
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.ExecResult;
+import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.powershell.agent.Loggers;
+import jetbrains.buildServer.util.Bitness;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads registry subtrees with a single {@code reg.exe export} call per subtree.
+ *
+ * Exported file is always written in UTF-16, so values do not depend on console code page of the agent
+ */
+public class RegExeTreeReader implements RegistryTreeReader {
+
+  @NotNull
+  private static final Logger LOG = Loggers.DETECTION_LOGGER;
+
+  @NotNull
+  private static final String HKLM = "HKEY_LOCAL_MACHINE\\";
+
+  @Nullable
+  @Override
+  public Map<String, Map<String, String>> readTree(@NotNull final Bitness bitness, @NotNull final String path) {
+    if (!SystemInfo.isWindows) {
+      return null;
+    }
+    File exported = null;
+    try {
+      exported = File.createTempFile("powershell-registry", ".reg");
+      final GeneralCommandLine cl = new GeneralCommandLine();
+      cl.setExePath(getRegExe());
+      cl.addParameters("export", HKLM + path, exported.getPath(), "/y", bitness == Bitness.BIT64 ? "/reg:64" : "/reg:32");
+      final ExecResult result = SimpleCommandLineProcessRunner.runCommand(cl, null);
+      if (result.getExitCode() != 0) {
+        LOG.debug("Failed to export registry key " + path + " (" + bitness + "): " + result.getStderr());
+        return null;
+      }
+      return parse(new String(Files.readAllBytes(exported.toPath()), StandardCharsets.UTF_16));
+    } catch (Exception e) {
+      LOG.warnAndDebugDetails("Failed to export registry key " + path + " (" + bitness + ")", e);
+      return null;
+    } finally {
+      if (exported != null) {
+        FileUtil.delete(exported);
+      }
+    }
+  }
+
+  /**
+   * Parses registry file, written by {@code reg.exe export}
+   *
+   * @param content file content
+   * @return map of key path relative to {@code HKEY_LOCAL_MACHINE} to key values.
+   * Values of types that have no text representation are skipped
+   */
+  @NotNull
+  static Map<String, Map<String, String>> parse(@NotNull final String content) {
+    final Map<String, Map<String, String>> result = new LinkedHashMap<>();
+    Map<String, String> current = null;
+    final String[] lines = content.split("\r?\n");
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i].trim();
+      // binary data is split into several lines
+      while (line.endsWith(",\\") && i + 1 < lines.length) {
+        line = line.substring(0, line.length() - 1) + lines[++i].trim();
+      }
+      if (line.startsWith("[") && line.endsWith("]")) {
+        final String key = line.substring(1, line.length() - 1);
+        current = null;
+        if (key.regionMatches(true, 0, HKLM, 0, HKLM.length())) {
+          current = new LinkedHashMap<>();
+          result.put(key.substring(HKLM.length()), current);
+        }
+        continue;
+      }
+      if (current == null) {
+        continue;
+      }
+      final int[] pos = {0};
+      final String name;
+      if (line.startsWith("@=")) {
+        name = "";
+        pos[0] = 1;
+      } else if (line.startsWith("\"")) {
+        name = readQuoted(line, pos);
+        if (name == null) continue;
+      } else {
+        continue;
+      }
+      if (pos[0] >= line.length() || line.charAt(pos[0]) != '=') {
+        continue;
+      }
+      pos[0]++;
+      final String value = toText(line, pos);
+      if (value != null) {
+        current.put(name, value);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Converts data to the representation {@code Win32RegistryAccessor.readRegistryText} uses,
+   * e.g. numeric values are returned as decimal numbers
+   */
+  @Nullable
+  private static String toText(@NotNull final String line, @NotNull final int[] pos) {
+    final String data = line.substring(pos[0]);
+    try {
+      if (data.startsWith("\"")) {
+        return readQuoted(line, pos);
+      }
+      if (data.startsWith("dword:")) {
+        return String.valueOf(Long.parseLong(data.substring("dword:".length()), 16));
+      }
+      if (data.startsWith("hex(b):")) {
+        final byte[] bytes = toBytes(data.substring("hex(b):".length()));
+        long value = 0;
+        for (int i = bytes.length - 1; i >= 0; i--) {
+          value = (value << 8) | (bytes[i] & 0xFF);
+        }
+        return Long.toUnsignedString(value);
+      }
+      if (data.startsWith("hex(2):")) {
+        final String value = new String(toBytes(data.substring("hex(2):".length())), StandardCharsets.UTF_16LE);
+        final int end = value.indexOf('\0');
+        return end < 0 ? value : value.substring(0, end);
+      }
+    } catch (IllegalArgumentException e) {
+      LOG.debug("Failed to parse registry value: " + line, e);
+    }
+    return null;
+  }
+
+  /**
+   * Reads quoted string, starting at {@code pos[0]}, and moves position after the closing quote
+   */
+  @Nullable
+  private static String readQuoted(@NotNull final String line, @NotNull final int[] pos) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = pos[0] + 1; i < line.length(); i++) {
+      final char c = line.charAt(i);
+      if (c == '\\' && i + 1 < line.length()) {
+        sb.append(line.charAt(++i));
+      } else if (c == '"') {
+        pos[0] = i + 1;
+        return sb.toString();
+      } else {
+        sb.append(c);
+      }
+    }
+    return null;
+  }
+
+  @NotNull
+  private static byte[] toBytes(@NotNull final String hex) {
+    final ByteArrayOutputStream result = new ByteArrayOutputStream();
+    for (String b : hex.split(",")) {
+      if (!b.trim().isEmpty()) {
+        result.write(Integer.parseInt(b.trim(), 16));
+      }
+    }
+    return result.toByteArray();
+  }
+
+  @NotNull
+  private static String getRegExe() {
+    final String systemRoot = System.getenv("SystemRoot");
+    if (systemRoot != null) {
+      final File regExe = new File(systemRoot, "System32\\reg.exe");
+      if (regExe.isFile()) {
+        return regExe.getPath();
+      }
+    }
+    return "reg.exe";
+  }
+}
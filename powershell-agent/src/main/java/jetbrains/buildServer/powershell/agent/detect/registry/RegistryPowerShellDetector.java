@@ -5,18 +5,17 @@ import jetbrains.buildServer.powershell.agent.Loggers;
 import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
 import jetbrains.buildServer.powershell.common.PowerShellBitness;
 import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.Bitness;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.Win32RegistryAccessor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 import static jetbrains.buildServer.util.Bitness.BIT32;
-import static jetbrains.buildServer.util.Win32RegistryAccessor.Hive.LOCAL_MACHINE;
 
 /**
  * @author Eugene Petrenko (eugene.petrenko@jetbrains.com)
@@ -27,38 +26,87 @@ public class RegistryPowerShellDetector {
   @NotNull
   private static final Logger LOG = Loggers.DETECTION_LOGGER;
 
+  /**
+   * Enables reading of registry subtrees with {@link RegistryTreeReader} when registry accessor is available.
+   * Disabled by default, as accessor reads are in-process and each value is read at most once anyway
+   */
   @NotNull
+  static final String PARAM_TREE_READER_ENABLED = "teamcity.powershell.detector.registry.batch";
+
+  @NotNull
+  private static final String DESKTOP_ROOT = "SOFTWARE\\Microsoft\\PowerShell";
+
+  @NotNull
+  private static final String CORE_ROOT = "SOFTWARE\\Microsoft\\PowerShellCore\\InstalledVersions";
+
+  @Nullable
   private final Win32RegistryAccessor myAccessor;
 
+  @Nullable
+  private final RegistryTreeReader myTreeReader;
+
   public RegistryPowerShellDetector(@NotNull final Win32RegistryAccessor accessor) {
+    this(accessor, null);
+  }
+
+  /**
+   * Detector, that reads registry with {@code treeReader} only, i.e. outside of agent
+   */
+  public RegistryPowerShellDetector(@NotNull final RegistryTreeReader treeReader) {
+    this(null, treeReader);
+  }
+
+  public RegistryPowerShellDetector(@Nullable final Win32RegistryAccessor accessor,
+                                    @Nullable final RegistryTreeReader treeReader) {
     myAccessor = accessor;
+    myTreeReader = treeReader;
   }
 
   @NotNull
   public Map<String, PowerShellInfo> findShells() {
     LOG.info("Detecting PowerShell using RegistryPowerShellDetector");
+    final Map<Bitness, RegistrySnapshot> snapshots = new EnumMap<>(Bitness.class);
     Map<String, PowerShellInfo> result = new HashMap<>();
-    result.putAll(findDesktopEditions());
-    result.putAll(findCoreEditions());
+    result.putAll(findDesktopEditions(snapshots));
+    result.putAll(findCoreEditions(snapshots));
     return result;
   }
 
+  /**
+   * Registry subtrees are read once per view and shared between all the lookups of single detection run
+   */
+  @NotNull
+  private RegistrySnapshot getSnapshot(@NotNull final Map<Bitness, RegistrySnapshot> snapshots,
+                                       @NotNull final Bitness bitness) {
+    return snapshots.computeIfAbsent(bitness,
+            b -> new RegistrySnapshot(myAccessor, getTreeReader(), b, Arrays.asList(DESKTOP_ROOT, CORE_ROOT)));
+  }
+
+  @Nullable
+  private RegistryTreeReader getTreeReader() {
+    if (myAccessor == null || TeamCityProperties.getBoolean(PARAM_TREE_READER_ENABLED)) {
+      return myTreeReader;
+    }
+    return null;
+  }
+
   @NotNull
-  private Map<String, PowerShellInfo> findDesktopEditions() {
+  private Map<String, PowerShellInfo> findDesktopEditions(@NotNull final Map<Bitness, RegistrySnapshot> snapshots) {
     Map<String, PowerShellInfo> result = new HashMap<>();
-    boolean isV1Installed = isDesktopEditionInstalled("1");
-    boolean isV3Installed = isDesktopEditionInstalled("3");
+    boolean isV1Installed = isDesktopEditionInstalled(snapshots, "1");
+    boolean isV3Installed = isDesktopEditionInstalled(snapshots, "3");
     if (!isV1Installed && !isV3Installed) {
       LOG.debug("PowerShell desktop edition for was not found");
       return result;
     }
     for (PowerShellBitness bitness: PowerShellBitness.values()) {
+      final RegistrySnapshot snapshot = getSnapshot(snapshots, bitness.toBitness());
       PowerShellInfo info = null;
       if (isV3Installed) {
-        info = fetchInfoForDesktopEdition(bitness, "3");
+        info = fetchInfoForDesktopEdition(snapshot, bitness, "3");
       }
       if (info == null) {
-        info = fetchInfoForDesktopEdition(bitness, "1");
+        info = fetchInfoForDesktopEdition(snapshot, bitness, "1");
       }
       if (info != null) {
         logFound(info);
@@ -69,15 +117,14 @@ public class RegistryPowerShellDetector {
   }
 
   @NotNull
-  private Map<String, PowerShellInfo> findCoreEditions() {
+  private Map<String, PowerShellInfo> findCoreEditions(@NotNull final Map<Bitness, RegistrySnapshot> snapshots) {
     Map<String, PowerShellInfo> result = new HashMap<>();
-    String rootPath = "SOFTWARE\\Microsoft\\PowerShellCore\\InstalledVersions";
     for (PowerShellBitness bitness : PowerShellBitness.values()) {
-
-      Set<String> keys = myAccessor.listSubKeys(LOCAL_MACHINE, bitness.toBitness(), rootPath);
+      final RegistrySnapshot snapshot = getSnapshot(snapshots, bitness.toBitness());
+      Set<String> keys = snapshot.getSubKeys(CORE_ROOT);
       for (String key : keys) {
-        String keyPath = rootPath + "\\" + key;
-        String homeStr = myAccessor.readRegistryText(LOCAL_MACHINE, bitness.toBitness(), keyPath, "InstallLocation");
+        String keyPath = CORE_ROOT + "\\" + key;
+        String homeStr = snapshot.getValue(keyPath, "InstallLocation");
         if (homeStr == null) {
           LOG.warn("Could not fetch InstallLocation from " + keyPath);
           continue;
@@ -87,7 +134,7 @@ public class RegistryPowerShellDetector {
           LOG.warn("Found InstallLocation is not a valid directory: " + homeStr);
           continue;
         }
-        String version = myAccessor.readRegistryText(LOCAL_MACHINE, bitness.toBitness(), keyPath, "SemanticVersion");
+        String version = snapshot.getValue(keyPath, "SemanticVersion");
         if (version == null) {
           LOG.warn("Could not fetch SemanticVersion from " + keyPath);
           continue;
@@ -102,17 +149,19 @@ public class RegistryPowerShellDetector {
     return result;
   }
 
-  private boolean isDesktopEditionInstalled(String oneOrThree) {
-    String path = "SOFTWARE\\Microsoft\\PowerShell\\" + oneOrThree;
+  private boolean isDesktopEditionInstalled(@NotNull Map<Bitness, RegistrySnapshot> snapshots, String oneOrThree) {
+    String path = DESKTOP_ROOT + "\\" + oneOrThree;
     // TODO check, maybe it's a bug that BIT32 is always passed, this logic was initially introduced in 2010 or before
-    return "1".equals(myAccessor.readRegistryText(LOCAL_MACHINE, BIT32, path, "Install"));
+    return "1".equals(getSnapshot(snapshots, BIT32).getValue(path, "Install"));
   }
 
   @Nullable
-  private PowerShellInfo fetchInfoForDesktopEdition(@NotNull PowerShellBitness bitness, @NotNull String oneOrThree) {
-    String path = "SOFTWARE\\Microsoft\\PowerShell\\" + oneOrThree + "\\PowerShellEngine";
-    String version = myAccessor.readRegistryText(LOCAL_MACHINE, bitness.toBitness(), path, "PowerShellVersion");
-    File home = asDirectoryOrNull(myAccessor.readRegistryText(LOCAL_MACHINE, bitness.toBitness(), path, "ApplicationBase"));
+  private static PowerShellInfo fetchInfoForDesktopEdition(@NotNull RegistrySnapshot snapshot,
+                                                           @NotNull PowerShellBitness bitness,
+                                                           @NotNull String oneOrThree) {
+    String path = DESKTOP_ROOT + "\\" + oneOrThree + "\\PowerShellEngine";
+    String version = snapshot.getValue(path, "PowerShellVersion");
+    File home = asDirectoryOrNull(snapshot.getValue(path, "ApplicationBase"));
     if (version == null || home == null) {
       LOG.debug("Skip PowerShell: " + bitness + " " + version + " " + home);
       return null;
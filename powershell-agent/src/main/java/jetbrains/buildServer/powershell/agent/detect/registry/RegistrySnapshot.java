@@ -0,0 +1,122 @@
+package jetbrains.buildServer.powershell.agent.detect.registry;
+
+import jetbrains.buildServer.util.Bitness;
+import jetbrains.buildServer.util.Win32RegistryAccessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static jetbrains.buildServer.util.Win32RegistryAccessor.Hive.LOCAL_MACHINE;
+
+/**
+ * In-memory view of the {@code HKEY_LOCAL_MACHINE} subtrees used for detection, for single registry view.
+ *
+ * Subtrees are read once through {@link RegistryTreeReader}. If the reader is not available or fails,
+ * values are read through {@link Win32RegistryAccessor}, each of them at most once.
+ * Without accessor, subtrees that could not be read are treated as empty
+ */
+class RegistrySnapshot {
+
+  @Nullable
+  private final Win32RegistryAccessor myAccessor;
+
+  @NotNull
+  private final Bitness myBitness;
+
+  /** lower-cased key path -> (lower-cased value name -> value) */
+  @NotNull
+  private final Map<String, Map<String, String>> myKeys = new HashMap<>();
+
+  /** lower-cased key path -> key path as it is stored in the registry */
+  @NotNull
+  private final Map<String, String> myKeyNames = new HashMap<>();
+
+  @NotNull
+  private final List<String> myLoadedRoots = new ArrayList<>();
+
+  @NotNull
+  private final Map<String, String> myReadValues = new HashMap<>();
+
+  @NotNull
+  private final Map<String, Set<String>> myReadSubKeys = new HashMap<>();
+
+  RegistrySnapshot(@Nullable final Win32RegistryAccessor accessor,
+                   @Nullable final RegistryTreeReader treeReader,
+                   @NotNull final Bitness bitness,
+                   @NotNull final Collection<String> roots) {
+    myAccessor = accessor;
+    myBitness = bitness;
+    if (treeReader != null) {
+      for (String root : roots) {
+        final Map<String, Map<String, String>> tree = treeReader.readTree(bitness, root);
+        if (tree != null) {
+          load(tree);
+          myLoadedRoots.add(normalize(root));
+        }
+      }
+    }
+  }
+
+  @Nullable
+  String getValue(@NotNull final String path, @NotNull final String name) {
+    final String key = normalize(path);
+    if (isLoaded(key)) {
+      final Map<String, String> values = myKeys.get(key);
+      return values == null ? null : values.get(normalize(name));
+    }
+    if (myAccessor == null) {
+      return null;
+    }
+    final String valueKey = key + "\n" + normalize(name);
+    if (!myReadValues.containsKey(valueKey)) {
+      myReadValues.put(valueKey, myAccessor.readRegistryText(LOCAL_MACHINE, myBitness, path, name));
+    }
+    return myReadValues.get(valueKey);
+  }
+
+  @NotNull
+  Set<String> getSubKeys(@NotNull final String path) {
+    final String key = normalize(path);
+    if (isLoaded(key)) {
+      final String prefix = key + "\\";
+      final Set<String> result = new TreeSet<>();
+      for (Map.Entry<String, String> e : myKeyNames.entrySet()) {
+        if (e.getKey().startsWith(prefix) && e.getKey().indexOf('\\', prefix.length()) < 0) {
+          result.add(e.getValue().substring(prefix.length()));
+        }
+      }
+      return result;
+    }
+    if (myAccessor == null) {
+      return Collections.emptySet();
+    }
+    return myReadSubKeys.computeIfAbsent(key, k -> myAccessor.listSubKeys(LOCAL_MACHINE, myBitness, path));
+  }
+
+  private void load(@NotNull final Map<String, Map<String, String>> tree) {
+    for (Map.Entry<String, Map<String, String>> e : tree.entrySet()) {
+      final String key = normalize(e.getKey());
+      final Map<String, String> values = new HashMap<>();
+      for (Map.Entry<String, String> value : e.getValue().entrySet()) {
+        values.put(normalize(value.getKey()), value.getValue());
+      }
+      myKeys.put(key, values);
+      myKeyNames.put(key, e.getKey());
+    }
+  }
+
+  private boolean isLoaded(@NotNull final String key) {
+    for (String root : myLoadedRoots) {
+      if (key.equals(root) || key.startsWith(root + "\\")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @NotNull
+  private static String normalize(@NotNull final String name) {
+    return name.toLowerCase(Locale.ENGLISH);
+  }
+}
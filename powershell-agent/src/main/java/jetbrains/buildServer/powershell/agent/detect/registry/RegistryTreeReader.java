@@ -0,0 +1,22 @@
+package jetbrains.buildServer.powershell.agent.detect.registry;
+
+import jetbrains.buildServer.util.Bitness;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Map;
+
+/**
+ * Reads a whole {@code HKEY_LOCAL_MACHINE} key subtree in a single round trip.
+ */
+public interface RegistryTreeReader {
+
+  /**
+   * @param bitness registry view to read
+   * @param path    path of the root key relative to {@code HKEY_LOCAL_MACHINE}
+   * @return map of key path (relative to {@code HKEY_LOCAL_MACHINE}, including {@code path} itself)
+   * to the values of that key, or {@code null} if the subtree could not be read in one go
+   */
+  @Nullable
+  Map<String, Map<String, String>> readTree(@NotNull Bitness bitness, @NotNull String path);
+}
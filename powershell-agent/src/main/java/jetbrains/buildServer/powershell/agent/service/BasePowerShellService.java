@@ -37,11 +37,17 @@ public abstract class BasePowerShellService extends BuildServiceAdapter {
 
   static final Logger LOG = Logger.getInstance(BasePowerShellService.class.getName());
 
+  /**
+   * Set to {@code true} to pass short inline scripts with {@code -EncodedCommand} in STDIN mode, without temp script file.
+   * Scripts with secure values are still written to file: encoded text is not masked in build log and is visible in process list
+   */
+  static final String PARAM_ENCODED_COMMAND = "teamcity.powershell.stdin.encodedCommand.enabled";
+
   @NotNull
   private final PowerShellInfoProvider myInfoProvider;
 
   @NotNull
-  private final ScriptGenerator myScriptGenerator;
+  final ScriptGenerator myScriptGenerator;
 
   @NotNull
   private final PowerShellCommandLineProvider myCmdProvider;
@@ -78,6 +84,14 @@ public abstract class BasePowerShellService extends BuildServiceAdapter {
     buildLogger.message("PowerShell Executable: " + psExecutable);
     buildLogger.message("Working directory: " + workDir);
     if (PowerShellExecutionMode.STDIN == mode) {
+      final String encodedCommand = StringUtil.isTrue(getConfigParameters().get(PARAM_ENCODED_COMMAND)) && !hasSecureValues()
+              ? myScriptGenerator.generateEncodedCommand(getRunnerParameters())
+              : null;
+      if (encodedCommand != null) {
+        final List<String> args = myCmdProvider.provideEncodedCommandLine(
+                info, getRunnerParameters(), encodedCommand, useExecutionPolicy(info), getBuild().getSharedConfigParameters());
+        return getFileCommandLine(info, getEnv(info), workDir, args);
+      }
       return getStdInCommandLine(info, getEnv(info), workDir, generateCommand(info));
     } else if (PowerShellExecutionMode.PS1 == mode) {
       return getFileCommandLine(info, getEnv(info), workDir, generateArguments(info));
@@ -91,24 +105,56 @@ public abstract class BasePowerShellService extends BuildServiceAdapter {
     final ParametersList parametersList = new ParametersList();
     final Map<String, String> runnerParameters = getRunnerParameters();
     final Map<String, String> sharedConfigParameters = getBuild().getSharedConfigParameters();
-    final File scriptFile = myScriptGenerator.generateScript(runnerParameters, getCheckoutDirectory(), getBuildTempDirectory(), getRunnerContext().getWorkingDirectory());
-    // if  we have script entered in runner params it will be dumped to temp file. This file must be removed after build finishes
-    if (ScriptGenerator.shouldRemoveGeneratedScript(runnerParameters)) {
-      myFilesToRemove.add(scriptFile);
-    }
+    final File scriptFile = generateScript();
     parametersList.add(info.getExecutablePath());
     parametersList.addAll(myCmdProvider.provideCommandLine(info, runnerParameters, scriptFile, useExecutionPolicy(info), sharedConfigParameters));
     return parametersList.getParametersString();
   }
 
   private List<String> generateArguments(@NotNull final PowerShellInfo info) throws RunBuildException {
+    final File scriptFile = generateScript();
+    return myCmdProvider.provideCommandLine(info, getRunnerParameters(), scriptFile, useExecutionPolicy(info), getBuild().getSharedConfigParameters());
+  }
+
+  @NotNull
+  private File generateScript() throws RunBuildException {
     final Map<String, String> runnerParameters = getRunnerParameters();
-    final File scriptFile = myScriptGenerator.generateScript(runnerParameters, getCheckoutDirectory(), getBuildTempDirectory(), getRunnerContext().getWorkingDirectory());
+    // scripts with secure values are not kept in agent-wide store
+    final File scriptFile = myScriptGenerator.generateScript(runnerParameters, getCheckoutDirectory(), getBuildTempDirectory(), getRunnerContext().getWorkingDirectory(), !hasSecureValues());
     // if  we have script entered in runner params it will be dumped to temp file. This file must be removed after build finishes
-    if (ScriptGenerator.shouldRemoveGeneratedScript(runnerParameters)) {
+    if (myScriptGenerator.shouldRemoveGeneratedScript(runnerParameters, scriptFile)) {
       myFilesToRemove.add(scriptFile);
     }
-    return myCmdProvider.provideCommandLine(info, runnerParameters, scriptFile, useExecutionPolicy(info), getBuild().getSharedConfigParameters());
+    return scriptFile;
+  }
+
+  /**
+   * @return {@code true} if inline script contains values of secure parameters
+   */
+  private boolean hasSecureValues() {
+    final String code = getRunnerParameters().get(RUNNER_SCRIPT_CODE);
+    return code != null && isSecure(code);
+  }
+
+  /**
+   * @return {@code true} if text contains values of secure parameters
+   */
+  protected boolean isSecure(@NotNull final String text) {
+    return !text.equals(getBuild().getPasswordReplacer().replacePasswords(text));
+  }
+
+  /**
+   * @return arguments to be shown in build log, encoded script is not shown
+   */
+  @NotNull
+  static List<String> getLoggedArguments(@NotNull final List<String> args) {
+    final List<String> result = new ArrayList<>(args);
+    for (int i = 0; i < result.size() - 1; i++) {
+      if ("-EncodedCommand".equalsIgnoreCase(result.get(i))) {
+        result.set(i + 1, "<encoded script>");
+      }
+    }
+    return result;
   }
 
   private PowerShellInfo selectTool() throws RunBuildException {
@@ -122,7 +168,7 @@ public abstract class BasePowerShellService extends BuildServiceAdapter {
       final PowerShellBitness bit = PowerShellBitness.fromString(getRunnerParameters().get(RUNNER_BITNESS));
       final String version = getRunnerParameters().get(RUNNER_MIN_VERSION);
       final PowerShellEdition edition = PowerShellEdition.fromString(getRunnerParameters().get(RUNNER_EDITION));
-      result = myInfoProvider.selectTool(bit, version, edition);
+      result = myInfoProvider.selectToolForBuild(bit, version, edition);
       if (result == null) {
         throw new RunBuildException("Could not select PowerShell for given bitness "
                 + (bit == null ? "<Auto>" : bit.getDisplayName() + " and version "
@@ -2,11 +2,8 @@
 
 package jetbrains.buildServer.powershell.agent.service;
 
-import com.intellij.execution.configurations.GeneralCommandLine;
 import com.intellij.execution.configurations.ParametersList;
-import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.RunBuildException;
-import jetbrains.buildServer.SimpleCommandLineProcessRunner;
 import jetbrains.buildServer.agent.BuildProgressLogger;
 import jetbrains.buildServer.agent.runner.SimpleProgramCommandLine;
 import jetbrains.buildServer.powershell.agent.PowerShellCommandLineProvider;
@@ -16,11 +13,15 @@ import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
 import jetbrains.buildServer.powershell.agent.system.PowerShellCommands;
 import jetbrains.buildServer.powershell.agent.virtual.VirtualPowerShellSupport;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 
@@ -31,6 +32,12 @@ import java.util.Map;
  */
 public class PowerShellServiceUnix extends BasePowerShellService {
 
+  /**
+   * Set to {@code true} to start PowerShell in PS1 mode directly, without generated {@code .sh} wrapper.
+   * Arguments are then passed as is: {@code $VAR} references are not expanded and shell quoting is not applied
+   */
+  static final String PARAM_DIRECT_EXEC = "teamcity.powershell.unix.directExec.enabled";
+
   public PowerShellServiceUnix(@NotNull final PowerShellInfoProvider infoProvider,
                                @NotNull final ScriptGenerator scriptGenerator,
                                @NotNull final PowerShellCommandLineProvider cmdProvider,
@@ -44,7 +51,7 @@ public class PowerShellServiceUnix extends BasePowerShellService {
                                                          @NotNull final Map<String, String> env,
                                                          @NotNull final String workDir,
                                                          @NotNull final String command) throws RunBuildException {
-    return executeWithWrapper(env, workDir, command);
+    return executeWithWrapper(env, workDir, command, command);
   }
 
   @Override
@@ -52,19 +59,33 @@ public class PowerShellServiceUnix extends BasePowerShellService {
                                                         @NotNull final Map<String, String> env,
                                                         @NotNull final String workDir,
                                                         @NotNull final List<String> args) throws RunBuildException {
+    if (StringUtil.isTrue(getConfigParameters().get(PARAM_DIRECT_EXEC))) {
+      getBuild().getBuildLogger().message("Command: " + info.getExecutablePath() + " " + String.join(" ", getLoggedArguments(args)));
+      return new SimpleProgramCommandLine(env, workDir, info.getExecutablePath(), args);
+    }
+    return executeWithWrapper(env, workDir, toCommand(info, args), toCommand(info, getLoggedArguments(args)));
+  }
+
+  @NotNull
+  private static String toCommand(@NotNull final PowerShellInfo info, @NotNull final List<String> args) {
     final ParametersList parametersList = new ParametersList();
     parametersList.add(info.getExecutablePath());
     parametersList.addAll(args);
-    return executeWithWrapper(env, workDir, parametersList.getParametersString());
+    return parametersList.getParametersString();
   }
 
+  /**
+   * Wrapper is needed for input redirection. It replaces itself with PowerShell,
+   * so no shell process stays between agent and PowerShell
+   */
   private SimpleProgramCommandLine executeWithWrapper(@NotNull final Map<String, String> env,
                                                       @NotNull final String workDir,
-                                                      @NotNull final String argsList) throws RunBuildException {
-    final File scriptFile = generateNixScriptFile(argsList);
+                                                      @NotNull final String argsList,
+                                                      @NotNull final String loggedArgsList) throws RunBuildException {
+    final File scriptFile = generateNixScriptFile("exec " + argsList);
     final BuildProgressLogger buildLogger = getBuild().getBuildLogger();
     buildLogger.message("Wrapper script: " + scriptFile);
-    buildLogger.message("Command: " + argsList);
+    buildLogger.message("Command: " + loggedArgsList);
     enableExecution(scriptFile);
     return new SimpleProgramCommandLine(env, workDir, scriptFile.getAbsolutePath(), Collections.emptyList());
   }
@@ -93,16 +114,15 @@ public class PowerShellServiceUnix extends BasePowerShellService {
   }
 
   private static void enableExecution(@NotNull final File filePath) {
-    final GeneralCommandLine commandLine = new GeneralCommandLine();
-    
-    commandLine.setExePath("chmod");
-    commandLine.addParameter("+x");
-    commandLine.addParameter(filePath.getName());
-    commandLine.setWorkDirectory(filePath.getParent());
-
-    final ExecResult execResult = SimpleCommandLineProcessRunner.runCommand(commandLine, null);
-    if (execResult.getExitCode() != 0) {
-      LOG.warn("Failed to set executable attribute for " + filePath + ": chmod +x exit code is " + execResult.getExitCode());
+    try {
+      Files.setPosixFilePermissions(filePath.toPath(), EnumSet.of(
+              PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+              PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
+              PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE));
+    } catch (IOException | UnsupportedOperationException e) {
+      if (!filePath.setExecutable(true)) {
+        LOG.warn("Failed to set executable attribute for " + filePath, e);
+      }
     }
   }
 }
\ No newline at end of file
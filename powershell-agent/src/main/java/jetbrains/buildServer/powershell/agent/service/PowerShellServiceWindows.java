@@ -12,12 +12,10 @@ import jetbrains.buildServer.powershell.agent.ScriptGenerator;
 import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
 import jetbrains.buildServer.powershell.agent.system.PowerShellCommands;
 import jetbrains.buildServer.powershell.agent.virtual.VirtualPowerShellSupport;
-import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.*;
 
 /**
@@ -58,19 +56,15 @@ public class PowerShellServiceWindows extends BasePowerShellService {
     final BuildProgressLogger buildLogger = getBuild().getBuildLogger();
     final String command = myCommands.getNativeCommand(info, getRunnerContext());
     buildLogger.message("Command: " + command);
-    buildLogger.message("PowerShell arguments: " + StringUtil.join(args, ", "));
+    buildLogger.message("PowerShell arguments: " + StringUtil.join(getLoggedArguments(args), ", "));
     return new SimpleProgramCommandLine(env, workDir, command, args);
   }
 
   @NotNull
   private List<String> generateRunScriptArguments(@NotNull final String argumentsToGenerate) throws RunBuildException {
-    final File bat;
-    try {
-      bat = FileUtil.createTempFile(getBuildTempDirectory(), "powershell", ".bat", true);
+    final File bat = myScriptGenerator.generateBatchFile(getBuildTempDirectory(), argumentsToGenerate, !isSecure(argumentsToGenerate));
+    if (!myScriptGenerator.isStored(bat)) {
       myFilesToRemove.add(bat);
-      FileUtil.writeFileAndReportErrors(bat, "@" + argumentsToGenerate);
-    } catch (IOException e) {
-      throw new RunBuildException("Failed to generate .bat file");
     }
     return Arrays.asList("/c", bat.getPath());
   }
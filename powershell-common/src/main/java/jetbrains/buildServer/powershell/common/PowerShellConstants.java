@@ -5,6 +5,10 @@ package jetbrains.buildServer.powershell.common;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * @author Eugene Petrenko (eugene.petrenko@jetbrains.com)
  *         03.12.10 15:53
@@ -45,10 +49,39 @@ public class PowerShellConstants {
   public static String generateGeneralKey(@NotNull final PowerShellEdition edition, @NotNull final PowerShellBitness bitness) {
     return POWERSHELL_PREFIX + edition.getValue() + "_" + bitness.getValue();
   }
+
+  /**
+   * Edition or bitness part of aggregate key, that stands for any edition or bitness
+   */
+  public static final String ANY = "Any";
+
+  /**
+   * Generates key of parameter, that holds max version of PowerShells of given edition and bitness.
+   * Same as {@link #generateGeneralKey(PowerShellEdition, PowerShellBitness)} if both are specified
+   *
+   * @param edition edition, {@code null} for any
+   * @param bitness bitness, {@code null} for any
+   */
+  public static String generateAggregateKey(@Nullable final PowerShellEdition edition, @Nullable final PowerShellBitness bitness) {
+    return POWERSHELL_PREFIX + (edition != null ? edition.getValue() : ANY) + "_" + (bitness != null ? bitness.getValue() : ANY);
+  }
   
   public static final String PATH_SUFFIX = "_Path";
   public static final String EXECUTABLE_SUFFIX = "_Executable";
 
+  /**
+   * Suffixes of parameters, that describe capabilities of detected PowerShell
+   */
+  public static final String DOTNET_SUFFIX = "_DotNet";
+  public static final String OS_SUFFIX = "_OS";
+  public static final String ARCH_SUFFIX = "_Arch";
+  public static final String PSHOME_SUFFIX = "_PSHome";
+  public static final String EXPERIMENTAL_FEATURES_SUFFIX = "_ExperimentalFeatures";
+
+  public static final List<String> CAPABILITY_SUFFIXES = Collections.unmodifiableList(Arrays.asList(
+          DOTNET_SUFFIX, OS_SUFFIX, ARCH_SUFFIX, PSHOME_SUFFIX, EXPERIMENTAL_FEATURES_SUFFIX
+  ));
+
   public static String generateFullKey(@Nullable final PowerShellEdition edition, @NotNull final PowerShellBitness bitness, @NotNull final String version) {
     return POWERSHELL_PREFIX + (edition != null ? edition.getValue() + "_" : "" ) + version + "_" + bitness.getValue();
   }
@@ -0,0 +1,165 @@
+package jetbrains.buildServer.powershell.common;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Parsed PowerShell version.
+ *
+ * Versions are compared by numeric components first ({@code 5.1.19041.1}, {@code 7.4.1}), missing components are zeros.
+ * Pre-release versions ({@code 7.5.0-preview.3}, {@code 7.4.0-rc.1}) precede the release of the same numbers,
+ * pre-release identifiers are compared according to Semantic Versioning. Build metadata ({@code +abc}) is ignored
+ */
+public final class PowerShellVersion implements Comparable<PowerShellVersion> {
+
+  private static final int[] NO_NUMBERS = new int[0];
+  private static final String[] NO_LABELS = new String[0];
+
+  @NotNull
+  private final String myText;
+
+  @NotNull
+  private final int[] myComponents;
+
+  /**
+   * Pre-release identifiers, numeric identifiers are stored in {@link #myPreReleaseNumbers}
+   */
+  @NotNull
+  private final String[] myPreRelease;
+
+  /**
+   * Values of numeric pre-release identifiers, {@code -1} for alphanumeric ones
+   */
+  @NotNull
+  private final int[] myPreReleaseNumbers;
+
+  private PowerShellVersion(@NotNull final String text,
+                            @NotNull final int[] components,
+                            @NotNull final String[] preRelease,
+                            @NotNull final int[] preReleaseNumbers) {
+    myText = text;
+    myComponents = components;
+    myPreRelease = preRelease;
+    myPreReleaseNumbers = preReleaseNumbers;
+  }
+
+  @NotNull
+  public static PowerShellVersion parse(@NotNull final String version) {
+    String rest = version.trim();
+    final int build = rest.indexOf('+');
+    if (build >= 0) {
+      rest = rest.substring(0, build);
+    }
+    String preRelease = "";
+    final int dash = rest.indexOf('-');
+    if (dash >= 0) {
+      preRelease = rest.substring(dash + 1);
+      rest = rest.substring(0, dash);
+    }
+    final int[] components = parseComponents(rest);
+    if (preRelease.isEmpty()) {
+      return new PowerShellVersion(version, components, NO_LABELS, NO_NUMBERS);
+    }
+    final String[] labels = preRelease.split("\\.");
+    final int[] numbers = new int[labels.length];
+    for (int i = 0; i < labels.length; i++) {
+      numbers[i] = parseNumber(labels[i]);
+    }
+    return new PowerShellVersion(version, components, labels, numbers);
+  }
+
+  public boolean isPreRelease() {
+    return myPreRelease.length > 0;
+  }
+
+  @Override
+  public int compareTo(@NotNull final PowerShellVersion o) {
+    final int length = Math.max(myComponents.length, o.myComponents.length);
+    for (int i = 0; i < length; i++) {
+      final int result = Integer.compare(component(i), o.component(i));
+      if (result != 0) {
+        return result;
+      }
+    }
+    // release is greater than any pre-release of the same numbers
+    if (!isPreRelease() || !o.isPreRelease()) {
+      return Boolean.compare(!isPreRelease(), !o.isPreRelease());
+    }
+    final int labels = Math.min(myPreRelease.length, o.myPreRelease.length);
+    for (int i = 0; i < labels; i++) {
+      final int result = comparePreRelease(i, o);
+      if (result != 0) {
+        return result;
+      }
+    }
+    return Integer.compare(myPreRelease.length, o.myPreRelease.length);
+  }
+
+  private int comparePreRelease(int i, @NotNull final PowerShellVersion o) {
+    final int number = myPreReleaseNumbers[i];
+    final int otherNumber = o.myPreReleaseNumbers[i];
+    if (number >= 0 && otherNumber >= 0) {
+      return Integer.compare(number, otherNumber);
+    }
+    // numeric identifiers have lower precedence than alphanumeric ones
+    if (number >= 0 || otherNumber >= 0) {
+      return number >= 0 ? -1 : 1;
+    }
+    return myPreRelease[i].compareToIgnoreCase(o.myPreRelease[i]);
+  }
+
+  private int component(int i) {
+    return i < myComponents.length ? myComponents[i] : 0;
+  }
+
+  @NotNull
+  private static int[] parseComponents(@NotNull final String numbers) {
+    if (numbers.isEmpty()) {
+      return NO_NUMBERS;
+    }
+    final String[] parts = numbers.split("\\.");
+    final int[] result = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      result[i] = Math.max(0, parseNumber(parts[i]));
+    }
+    return result;
+  }
+
+  /**
+   * @return value of numeric string, {@code -1} if string is not a number
+   */
+  private static int parseNumber(@NotNull final String s) {
+    if (s.isEmpty() || s.length() > 9) {
+      return -1;
+    }
+    int result = 0;
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return this == o || o instanceof PowerShellVersion && compareTo((PowerShellVersion) o) == 0;
+  }
+
+  @Override
+  public int hashCode() {
+    int length = myComponents.length;
+    while (length > 0 && myComponents[length - 1] == 0) {
+      length--;
+    }
+    return 31 * Arrays.hashCode(Arrays.copyOf(myComponents, length)) + myPreRelease.length;
+  }
+
+  @Override
+  public String toString() {
+    return myText;
+  }
+}
@@ -5,7 +5,6 @@ package jetbrains.buildServer.powershell.server;
 import jetbrains.buildServer.parameters.ReferencesResolverUtil;
 import jetbrains.buildServer.powershell.common.*;
 import jetbrains.buildServer.requirements.Requirement;
-import jetbrains.buildServer.requirements.RequirementQualifier;
 import jetbrains.buildServer.requirements.RequirementType;
 import jetbrains.buildServer.serverSide.InvalidProperty;
 import jetbrains.buildServer.serverSide.PropertiesProcessor;
@@ -162,47 +161,28 @@ public class PowerShellRunType extends RunType {
   @NotNull
   @Override
   public List<Requirement> getRunnerSpecificRequirements(@NotNull final Map<String, String> runParameters) {
-    final List<Requirement> result = new ArrayList<>();
-
     final String minVersion = getMinimalVersion(runParameters);
     final PowerShellBitness bit = getBitness(runParameters);
     final PowerShellEdition edition = getEdition(runParameters);
 
-    // filter editions
-    final List<PowerShellEdition> editions = new ArrayList<>();
-    if (edition == null) { // for all editions
-      editions.addAll(Arrays.asList(PowerShellEdition.values()));
-    } else {
-      editions.add(edition);
-    }
-
-    final List<PowerShellBitness> bits = new ArrayList<>();
-    if (bit == null) {
-      bits.addAll(Arrays.asList(PowerShellBitness.values()));
-    } else {
-      bits.add(bit);
-    }
-
-    List<String> keys = new ArrayList<>();
-    for (PowerShellEdition e: editions) {
-      for (PowerShellBitness b: bits) {
-        keys.add(generateGeneralKey(e, b));
-      }
-    }
-
-    if (minVersion == null) { // EXISTS requirement type, as we have no specific version set
-      result.add(new Requirement(getRequirementPropertyName(keys), null, RequirementType.EXISTS));
-    } else { // VER_NO_LESS_THAN requirement type, as minimal version is set
-      result.add(new Requirement(getRequirementPropertyName(keys), minVersion, RequirementType.VER_NO_LESS_THAN));
-    }
+    final List<Requirement> result = new ArrayList<>();
+    result.add(createRequirement(edition, bit, minVersion));
     return result;
   }
 
-  private String getRequirementPropertyName(@NotNull final List<String> keys) {
-    if (keys.size() == 1) {
-      return keys.get(0);
-    } else {
-      return RequirementQualifier.EXISTS_QUALIFIER + "(" + String.join("|", keys) + ")";
+  /**
+   * Agent provides max version for each edition and bitness, as well as for any edition and/or bitness,
+   * so single parameter is checked regardless of how specific the runner settings are
+   */
+  @NotNull
+  private static Requirement createRequirement(@Nullable final PowerShellEdition edition,
+                                               @Nullable final PowerShellBitness bit,
+                                               @Nullable final String minVersion) {
+    final String propertyName = generateAggregateKey(edition, bit);
+    if (minVersion == null) { // EXISTS requirement type, as we have no specific version set
+      return new Requirement(propertyName, null, RequirementType.EXISTS);
+    } else { // VER_NO_LESS_THAN requirement type, as minimal version is set
+      return new Requirement(propertyName, minVersion, RequirementType.VER_NO_LESS_THAN);
     }
   }
 
@@ -1,19 +1,28 @@
 package jetbrains.buildServer.powershell.agent;
 
 import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import jetbrains.buildServer.ExtensionHolder;
 import jetbrains.buildServer.agent.AgentLifeCycleListener;
 import jetbrains.buildServer.agent.BuildAgent;
 import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.agent.detect.DetectionManifest;
+import jetbrains.buildServer.powershell.agent.detect.DetectionReport;
 import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.ShellRecord;
 import jetbrains.buildServer.powershell.agent.detect.cmd.CommandLinePowerShellDetector;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionRunner;
+import jetbrains.buildServer.powershell.agent.detect.metadata.MetadataPowerShellDetector;
 import jetbrains.buildServer.powershell.agent.detect.registry.RegistryPowerShellDetector;
 import jetbrains.buildServer.powershell.common.PowerShellBitness;
 import jetbrains.buildServer.powershell.common.PowerShellConstants;
 import jetbrains.buildServer.powershell.common.PowerShellEdition;
 import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -44,6 +53,16 @@ public class PowerShellInfoProviderTest extends BasePowerShellUnitTest {
   private File myTempHome;
   private EventDispatcher<AgentLifeCycleListener> myDispatcher;
 
+  private RegistryPowerShellDetector myRegistryDetector;
+
+  private CommandLinePowerShellDetector myCommandLineDetector;
+
+  private MetadataPowerShellDetector myMetadataDetector;
+
+  private StartupLatencies myLatencies;
+
+  private Map<String, String> myLatencyParams;
+
   @Override
   @BeforeMethod
   public void setUp() throws Exception {
@@ -53,15 +72,28 @@ public class PowerShellInfoProviderTest extends BasePowerShellUnitTest {
     }};
     myExtensionHolder = m.mock(ExtensionHolder.class);
     myConfig = m.mock(BuildAgentConfiguration.class);
-    RegistryPowerShellDetector registryPowerShellDetector = m.mock(RegistryPowerShellDetector.class);
-    CommandLinePowerShellDetector commandLinePowerShellDetector = m.mock(CommandLinePowerShellDetector.class);
+    myRegistryDetector = m.mock(RegistryPowerShellDetector.class);
+    myCommandLineDetector = m.mock(CommandLinePowerShellDetector.class);
+    myMetadataDetector = m.mock(MetadataPowerShellDetector.class);
     myHolder = new ShellInfoHolder();
+    final BuildAgentConfiguration latencyConfig = m.mock(BuildAgentConfiguration.class, "latencyConfig");
+    final DetectionRunner runner = m.mock(DetectionRunner.class);
+    final File latencyCacheDir = createTempDir();
+    myLatencyParams = new HashMap<>();
     m.checking(new Expectations() {{
       allowing(myExtensionHolder);
+      allowing(latencyConfig).getConfigurationParameters();
+      will(returnValue(myLatencyParams));
+      allowing(latencyConfig).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(latencyCacheDir));
+      allowing(latencyConfig).addConfigurationParameter(with(any(String.class)), with(any(String.class)));
+      allowing(runner).measureStartup(with(any(String.class)));
+      will(returnValue(100L));
     }});
+    myLatencies = new StartupLatencies(latencyConfig, runner);
     myTempHome = createTempDir();
     myDispatcher = EventDispatcher.create(AgentLifeCycleListener.class);
-    myProvider = new PowerShellInfoProvider(myExtensionHolder, registryPowerShellDetector, commandLinePowerShellDetector, myDispatcher, myHolder);
+    myProvider = new PowerShellInfoProvider(myExtensionHolder, myConfig, myRegistryDetector, myCommandLineDetector, myMetadataDetector, myDispatcher, myHolder, myLatencies);
   }
 
   @Test
@@ -219,6 +251,29 @@ public class PowerShellInfoProviderTest extends BasePowerShellUnitTest {
     assertEquals(PowerShellBitness.x64, info.getBitness());
   }
 
+  @Test
+  public void testSelectExact_OnAgentStartFromShellRecord() {
+    final Map<String, PowerShellInfo> shells = new HashMap<>();
+    shells.put(myTempHome.getAbsolutePath(), new PowerShellInfo(PowerShellBitness.x64, myTempHome, "7.5.0_custom", PowerShellEdition.CORE, "pwsh-preview"));
+    final Map<String, String> params = new HashMap<>();
+    params.put(ShellRecord.PARAM_NAME, ShellRecord.encode(shells));
+
+    BuildAgent buildAgent = m.mock(BuildAgent.class);
+    m.checking(new Expectations() {{
+      allowing(buildAgent).getConfiguration();
+      will(returnValue(myConfig));
+
+      allowing(myConfig).getConfigurationParameters();
+      will(returnValue(params));
+    }});
+
+    myDispatcher.getMulticaster().agentStarted(buildAgent);
+    final PowerShellInfo info = myProvider.selectTool(null, null, null);
+    assertNotNull(info);
+    assertEquals("7.5.0_custom", info.getVersion());
+    assertEquals("pwsh-preview", info.getExecutable());
+  }
+
   @Test
   public void testSelectExact_OnAgenStartWithWrongBadKey() {
     final Map<String, String> params = new HashMap<>();
@@ -238,6 +293,157 @@ public class PowerShellInfoProviderTest extends BasePowerShellUnitTest {
     assertNull(info);
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testRefreshPublishesChangedShells() throws Exception {
+    final File cacheDir = createTempDir();
+    final Map<String, PowerShellInfo> detected = new HashMap<>();
+    m.checking(new Expectations() {{
+      allowing(myConfig).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(cacheDir));
+      allowing(myConfig).getConfigurationParameters();
+      will(returnValue(new HashMap<>()));
+      allowing(myRegistryDetector).findShells();
+      will(returnValue(new HashMap<>()));
+      allowing(myMetadataDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(detected));
+      allowing(myCommandLineDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+    }});
+    assertFalse(myProvider.refresh());
+    assertNull(myProvider.selectTool(null, null, null));
+
+    final PowerShellInfo info = getMockPowershellInfo(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE);
+    detected.put(myTempHome.getAbsolutePath(), info);
+    m.checking(new Expectations() {{
+      oneOf(myConfig).addConfigurationParameter(PowerShellConstants.generateGeneralKey(PowerShellEdition.CORE, PowerShellBitness.x64), "7.4.1");
+      oneOf(myConfig).addConfigurationParameter(with(equal(DetectionReport.PARAM_TOTAL)), with(any(String.class)));
+      allowing(myConfig).addConfigurationParameter(with(any(String.class)), with(any(String.class)));
+    }});
+    assertTrue(myProvider.refresh());
+    assertEquals(info, myProvider.selectTool(null, null, null));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSelectForBuildDetectsNewlyInstalledShell() throws Exception {
+    final File cacheDir = createTempDir();
+    final PowerShellInfo info = getMockPowershellInfo(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE);
+    m.checking(new Expectations() {{
+      allowing(myConfig).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(cacheDir));
+      oneOf(myMetadataDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(Collections.singletonMap(myTempHome.getAbsolutePath(), info)));
+      oneOf(myCommandLineDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      allowing(myConfig).addConfigurationParameter(with(any(String.class)), with(any(String.class)));
+    }});
+    assertNull(myProvider.selectTool(null, null, null));
+    assertEquals(info, myProvider.selectToolForBuild(null, null, null));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSelectForBuildRemembersNothingNewFound() throws Exception {
+    final File cacheDir = createTempDir();
+    m.checking(new Expectations() {{
+      allowing(myConfig).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(cacheDir));
+      exactly(2).of(myMetadataDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      exactly(2).of(myCommandLineDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      allowing(myMetadataDetector).findShells(with(any(Collection.class)), with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      allowing(myCommandLineDetector).findShells(with(any(Collection.class)), with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      allowing(myConfig).addConfigurationParameter(with(any(String.class)), with(any(String.class)));
+    }});
+    assertNull(myProvider.selectToolForBuild(null, null, null));
+    // search paths are not inspected again
+    assertNull(myProvider.selectToolForBuild(null, null, null));
+
+    // change in watched paths
+    myProvider.refresh(Collections.singletonList(myTempHome.getAbsolutePath()));
+    assertNull(myProvider.selectToolForBuild(null, null, null));
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testSelectForBuildRedetectsChangedShell() throws Exception {
+    final File cacheDir = createTempDir();
+    final File exe = new File(myTempHome, "powershell");
+    FileUtil.writeFile(exe, "old", "UTF-8");
+    final PowerShellInfo old = getMockPowershellInfo(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE);
+    final PowerShellInfo updated = getMockPowershellInfo(PowerShellBitness.x64, "7.5.0", PowerShellEdition.CORE);
+    m.checking(new Expectations() {{
+      allowing(myConfig).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(cacheDir));
+      allowing(myConfig).getConfigurationParameters();
+      will(returnValue(new HashMap<>()));
+      allowing(myRegistryDetector).findShells();
+      will(returnValue(new HashMap<>()));
+      oneOf(myMetadataDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(Collections.singletonMap(myTempHome.getAbsolutePath(), old)));
+      allowing(myCommandLineDetector).findShells(with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      oneOf(myMetadataDetector).findShells(with(any(Collection.class)), with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(Collections.singletonMap(myTempHome.getAbsolutePath(), updated)));
+      allowing(myCommandLineDetector).findShells(with(any(Collection.class)), with(any(Set.class)), with(any(DetectionReport.class)));
+      will(returnValue(new HashMap<>()));
+      allowing(myConfig).addConfigurationParameter(with(any(String.class)), with(any(String.class)));
+    }});
+    myProvider.refresh();
+    assertEquals(old, myProvider.selectToolForBuild(null, null, null));
+
+    FileUtil.writeFile(exe, "new binary", "UTF-8");
+    assertEquals(updated, myProvider.selectToolForBuild(null, null, null));
+  }
+
+  @Test
+  public void testRefreshUsesManifest() throws Exception {
+    final File cacheDir = createTempDir();
+    FileUtil.writeFile(new File(myTempHome, "powershell"), "binary", "UTF-8");
+    final PowerShellInfo info = getMockPowershellInfo(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE);
+    final File manifest = new File(createTempDir(), "manifest.properties");
+    DetectionManifest.write(manifest, Collections.singletonMap(myTempHome.getAbsolutePath(), info));
+    m.checking(new Expectations() {{
+      allowing(myConfig).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(cacheDir));
+      allowing(myConfig).getConfigurationParameters();
+      will(returnValue(Collections.singletonMap(DetectionManifest.PARAM_MANIFEST_PATH, manifest.getAbsolutePath())));
+      never(myRegistryDetector);
+      never(myMetadataDetector);
+      never(myCommandLineDetector);
+      allowing(myConfig).addConfigurationParameter(with(any(String.class)), with(any(String.class)));
+    }});
+    assertTrue(myProvider.refresh());
+    final PowerShellInfo selected = myProvider.selectTool(null, null, null);
+    assertNotNull(selected);
+    assertEquals(info.getExecutablePath(), selected.getExecutablePath());
+    assertEquals("7.4.1", selected.getVersion());
+  }
+
+  @Test
+  public void testLatencyPolicySelectsFastestShell() throws Exception {
+    final PowerShellInfo desktop = new PowerShellInfo(PowerShellBitness.x64, createTempDir(), "5.1", PowerShellEdition.DESKTOP, "powershell.exe");
+    final PowerShellInfo core = new PowerShellInfo(PowerShellBitness.x64, createTempDir(), "7.4.1", PowerShellEdition.CORE, "pwsh");
+    myHolder.addShellInfo("desktop", desktop);
+    myHolder.addShellInfo("core", core);
+    myLatencies.record(desktop, 2000);
+    myLatencies.record(core, 400);
+
+    // policy is opt-in
+    assertEquals(desktop, myProvider.selectTool(null, null, null));
+
+    myLatencyParams.put(StartupLatencies.PARAM_SELECTION_POLICY, StartupLatencies.POLICY_LATENCY);
+    // policy is read on detection
+    myLatencies.readPolicy();
+    assertEquals(core, myProvider.selectTool(null, null, null));
+    assertEquals(desktop, myProvider.selectTool(null, null, PowerShellEdition.DESKTOP));
+    assertNull(myProvider.selectTool(null, "8.0", null));
+  }
 
   private void mock32Bit(@NotNull final String version, @NotNull final PowerShellEdition edition) {
     mockInstance(PowerShellBitness.x86, version, edition);
@@ -1,11 +1,13 @@
 package jetbrains.buildServer.powershell.agent;
 
 import jetbrains.buildServer.RunBuildException;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
 import jetbrains.buildServer.powershell.common.PowerShellConstants;
 import jetbrains.buildServer.powershell.common.PowerShellExecutionMode;
 import jetbrains.buildServer.powershell.common.PowerShellScriptMode;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.TestFor;
+import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.testng.annotations.AfterMethod;
@@ -13,6 +15,8 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -34,6 +38,8 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
 
   private File myWorkingDir;
 
+  private Map<String, String> myAgentParameters;
+
   private File myCheckoutDir;
 
   @Override
@@ -46,7 +52,12 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     myTempDir = createTempDir();
     myCheckoutDir = createTempDir();
     myWorkingDir = createTempDir();
-    myGenerator = new ScriptGenerator();
+    myAgentParameters = new HashMap<>();
+    final BuildAgentConfiguration conf = m.mock(BuildAgentConfiguration.class);
+    m.checking(new Expectations() {{
+      allowing(conf).getConfigurationParameters(); will(returnValue(myAgentParameters));
+    }});
+    myGenerator = new ScriptGenerator(new ScriptStore(conf));
   }
 
   @Override
@@ -63,7 +74,7 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_CODE, "");
     runnerParams.put(PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.STDIN.getValue());
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.CODE.getValue());
-    myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir);
+    myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir, true);
   }
 
   /**
@@ -80,7 +91,7 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     runnerParams.put(PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.STDIN.getValue());
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.CODE.getValue());
 
-    assertTrue(ScriptGenerator.shouldRemoveGeneratedScript(runnerParams));
+    assertTrue(myGenerator.shouldRemoveGeneratedScript(runnerParams, new File(myTempDir, "powershell.ps1")));
   }
 
   /**
@@ -95,7 +106,41 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     runnerParams.put(PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.STDIN.getValue());
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.FILE.getValue());
 
-    assertFalse(ScriptGenerator.shouldRemoveGeneratedScript(runnerParams));
+    assertFalse(myGenerator.shouldRemoveGeneratedScript(runnerParams, new File(myCheckoutDir, "script.ps1")));
+  }
+
+  @Test
+  public void testStoredScriptIsNotRemoved() throws Exception {
+    myAgentParameters.put("teamcity.powershell.script.store.enabled", "true");
+    myAgentParameters.put("teamcity.powershell.script.store.dir", createTempDir().getAbsolutePath());
+    final Map<String, String> runnerParams = new HashMap<>();
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_CODE, SAMPLE_SCRIPT);
+    runnerParams.put(PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.PS1.getValue());
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.CODE.getValue());
+
+    final File stored = myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir, true);
+    assertFalse(myTempDir.equals(stored.getParentFile()));
+    assertFalse(myGenerator.shouldRemoveGeneratedScript(runnerParams, stored));
+
+    final File notStored = myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir, false);
+    assertEquals(myTempDir, notStored.getParentFile());
+    assertTrue(myGenerator.shouldRemoveGeneratedScript(runnerParams, notStored));
+  }
+
+  @Test
+  public void testStoredBatchFileIsReused() throws Exception {
+    myAgentParameters.put("teamcity.powershell.script.store.enabled", "true");
+    myAgentParameters.put("teamcity.powershell.script.store.dir", createTempDir().getAbsolutePath());
+
+    final File first = myGenerator.generateBatchFile(myTempDir, "powershell.exe -File script.ps1", true);
+    final File second = myGenerator.generateBatchFile(myTempDir, "powershell.exe -File script.ps1", true);
+    assertEquals(first, second);
+    assertTrue(myGenerator.isStored(first));
+    assertEquals("@powershell.exe -File script.ps1", FileUtil.readText(first));
+
+    final File notStored = myGenerator.generateBatchFile(myTempDir, "powershell.exe -File script.ps1", false);
+    assertEquals(myTempDir, notStored.getParentFile());
+    assertFalse(myGenerator.isStored(notStored));
   }
 
   @Test(expectedExceptions = RunBuildException.class)
@@ -106,7 +151,7 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     runnerParams.put(PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.PS1.getValue());
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.FILE.getValue());
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_FILE, "non_existent_script.ps1");
-    myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir);
+    myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir, true);
   }
 
   @Test
@@ -121,7 +166,7 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     registerAsTempFile(scriptFile);
     FileUtil.writeFile(scriptFile, "Write-Output \"works\"", "UTF-8");
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_FILE, fileName);
-    final File resultingScript = myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir);
+    final File resultingScript = myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir, true);
     assertEquals(scriptFile.getAbsolutePath(), resultingScript.getAbsolutePath());
   }
 
@@ -138,7 +183,38 @@ public class ScriptGeneratorTest extends BasePowerShellUnitTest {
     registerAsTempFile(scriptFile);
     FileUtil.writeFile(scriptFile, "Write-Output \"works\"", "UTF-8");
     runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_FILE, fileName);
-    final File resultingScript = myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir);
+    final File resultingScript = myGenerator.generateScript(runnerParams, myCheckoutDir, myTempDir, myWorkingDir, true);
     assertEquals(scriptFile.getAbsolutePath(), resultingScript.getAbsolutePath());
   }
+
+  @Test
+  public void testGenerateEncodedCommand_CODE() throws Exception {
+    final Map<String, String> runnerParams = new HashMap<>();
+    runnerParams.put(PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.STDIN.getValue());
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.CODE.getValue());
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_CODE, "Write-Output 'Привет'\nexit 1");
+    final String encoded = myGenerator.generateEncodedCommand(runnerParams);
+    assertNotNull(encoded);
+    assertEquals("Write-Output 'Привет'\r\nexit 1", new String(Base64.getDecoder().decode(encoded), StandardCharsets.UTF_16LE));
+  }
+
+  @Test
+  public void testGenerateEncodedCommand_TooLong() throws Exception {
+    final StringBuilder script = new StringBuilder();
+    while (script.length() * 8 / 3 <= ScriptGenerator.MAX_ENCODED_COMMAND_LENGTH) {
+      script.append("Write-Output 'line'\n");
+    }
+    final Map<String, String> runnerParams = new HashMap<>();
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.CODE.getValue());
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_CODE, script.toString());
+    assertNull(myGenerator.generateEncodedCommand(runnerParams));
+  }
+
+  @Test
+  public void testGenerateEncodedCommand_FILE() throws Exception {
+    final Map<String, String> runnerParams = new HashMap<>();
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_MODE, PowerShellScriptMode.FILE.getValue());
+    runnerParams.put(PowerShellConstants.RUNNER_SCRIPT_FILE, "script.ps1");
+    assertNull(myGenerator.generateEncodedCommand(runnerParams));
+  }
 }
\ No newline at end of file
@@ -0,0 +1,131 @@
+package jetbrains.buildServer.powershell.agent;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import jetbrains.buildServer.util.FileUtil;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class ScriptStoreTest extends BaseTestCase {
+
+  private ScriptStore myStore;
+
+  private File myCacheDir;
+
+  private Map<String, String> myParameters;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myCacheDir = createTempDir();
+    myParameters = new HashMap<>();
+    final Mockery m = new Mockery();
+    final BuildAgentConfiguration conf = m.mock(BuildAgentConfiguration.class);
+    m.checking(new Expectations() {{
+      allowing(conf).getCacheDirectory(PowerShellConstants.PLUGIN_NAME); will(returnValue(myCacheDir));
+      allowing(conf).getConfigurationParameters(); will(returnValue(myParameters));
+    }});
+    myStore = new ScriptStore(conf);
+    myParameters.put("teamcity.powershell.script.store.enabled", "true");
+  }
+
+  @Test
+  public void testSameContentIsStoredOnce() throws Exception {
+    final File first = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Host".getBytes(StandardCharsets.UTF_8))));
+    assertTrue(first.setLastModified(first.lastModified() - TimeUnit.HOURS.toMillis(1)));
+    final long modified = first.lastModified();
+
+    final File second = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Host".getBytes(StandardCharsets.UTF_8))));
+    final File other = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Date".getBytes(StandardCharsets.UTF_8))));
+
+    assertEquals(first, second);
+    assertTrue(second.lastModified() > modified);
+    assertFalse(first.equals(other));
+    assertTrue(first.getName().endsWith(".ps1"));
+    assertEquals("Get-Host", FileUtil.readText(first, "UTF-8"));
+    assertTrue(myStore.contains(first));
+    assertFalse(myStore.contains(new File(createTempDir(), first.getName())));
+  }
+
+  @Test
+  public void testBatchFilesAreStoredSeparately() throws Exception {
+    final File script = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Host".getBytes(StandardCharsets.UTF_8))));
+    final File bat = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Host".getBytes(StandardCharsets.UTF_8))), ".bat");
+
+    assertTrue(bat.getName().endsWith(".bat"));
+    assertEquals(script.getParentFile(), bat.getParentFile());
+    assertFalse(script.equals(bat));
+    assertTrue(myStore.contains(bat));
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    myParameters.remove("teamcity.powershell.script.store.enabled");
+    assertFalse(myStore.isEnabled());
+  }
+
+  @Test
+  public void testScriptsAreAccessibleToOwnerOnly() throws Exception {
+    if (SystemInfo.isWindows) {
+      throw new SkipException("POSIX permissions are not supported");
+    }
+    final File file = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Host".getBytes(StandardCharsets.UTF_8))));
+
+    assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.getParentFile().toPath())));
+    assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file.toPath())));
+  }
+
+  @Test
+  public void testEvictsOldScripts() throws Exception {
+    myParameters.put("teamcity.powershell.script.store.max.age.hours", "2");
+    final File old = myStore.store(channel -> channel.write(ByteBuffer.wrap("old".getBytes(StandardCharsets.UTF_8))));
+    final File recent = myStore.store(channel -> channel.write(ByteBuffer.wrap("recent".getBytes(StandardCharsets.UTF_8))));
+    final long now = System.currentTimeMillis();
+    assertTrue(old.setLastModified(now - TimeUnit.HOURS.toMillis(3)));
+    assertTrue(recent.setLastModified(now - TimeUnit.HOURS.toMillis(1)));
+
+    final File added = myStore.store(channel -> channel.write(ByteBuffer.wrap("new".getBytes(StandardCharsets.UTF_8))));
+
+    assertFalse(old.exists());
+    assertTrue(recent.exists());
+    assertTrue(added.exists());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedScriptsOverSizeLimit() throws Exception {
+    myParameters.put("teamcity.powershell.script.store.max.size.mb", "1");
+    final byte[] chunk = new byte[400 * 1024];
+    final File[] files = new File[3];
+    for (int i = 0; i < files.length; i++) {
+      final byte marker = (byte) i;
+      files[i] = myStore.store(channel -> {
+        Arrays.fill(chunk, marker);
+        channel.write(ByteBuffer.wrap(chunk));
+      });
+      assertTrue(files[i].setLastModified(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(10 - i)));
+    }
+
+    final File added = myStore.store(channel -> channel.write(ByteBuffer.wrap("Get-Host".getBytes(StandardCharsets.UTF_8))));
+
+    assertFalse(files[0].exists());
+    assertTrue(files[1].exists());
+    assertTrue(files[2].exists());
+    assertTrue(added.exists());
+  }
+}
@@ -0,0 +1,73 @@
+package jetbrains.buildServer.powershell.agent;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.openapi.util.text.StringUtil.convertLineSeparators;
+
+public class ScriptWriterTest extends BaseTestCase {
+
+  @Test
+  public void testConvertsLineSeparators() throws Exception {
+    assertEquals("a\r\nb\r\nc\r\n\r\nd\r\n", write("a\nb\r\nc\r\rd\r", false));
+  }
+
+  @Test
+  public void testAddsBom() throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ScriptWriter.write("Get-Host", true, Channels.newChannel(out));
+    final byte[] bytes = out.toByteArray();
+    assertEquals((byte) 0xEF, bytes[0]);
+    assertEquals((byte) 0xBB, bytes[1]);
+    assertEquals((byte) 0xBF, bytes[2]);
+    assertEquals("Get-Host", new String(bytes, 3, bytes.length - 3, StandardCharsets.UTF_8));
+  }
+
+  @Test
+  public void testLargeScriptIsWrittenInChunks() throws Exception {
+    final StringBuilder script = new StringBuilder();
+    while (script.length() < ScriptWriter.CHUNK_SIZE * 3) {
+      // separators and surrogate pairs end up on chunk boundaries
+      script.append("Write-Output 'Привет 😀'\r\n$x = 1\n\r");
+    }
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final List<Integer> writes = new ArrayList<>();
+    final WritableByteChannel channel = Channels.newChannel(out);
+    ScriptWriter.write(script, false, new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer src) throws java.io.IOException {
+        writes.add(src.remaining());
+        return channel.write(src);
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+
+    assertEquals(convertLineSeparators(script.toString(), "\r\n"), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    assertTrue(writes.size() > 1);
+    for (int size : writes) {
+      assertTrue(size <= ScriptWriter.CHUNK_SIZE);
+    }
+  }
+
+  private static String write(String text, boolean addBom) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ScriptWriter.write(text, addBom, Channels.newChannel(out));
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+}
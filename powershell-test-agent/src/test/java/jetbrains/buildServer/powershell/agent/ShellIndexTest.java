@@ -0,0 +1,115 @@
+package jetbrains.buildServer.powershell.agent;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.util.VersionComparatorUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ShellIndexTest extends BaseTestCase {
+
+  @Test
+  public void testSelectMaxVersionInPreferredCell() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("a", info(PowerShellBitness.x64, "7.10.0", PowerShellEdition.CORE));
+    shells.put("b", info(PowerShellBitness.x64, "7.2.0", PowerShellEdition.CORE));
+    shells.put("c", info(PowerShellBitness.x86, "7.12.0", PowerShellEdition.CORE));
+    final ShellIndex index = ShellIndex.of(shells);
+
+    assertSame(shells.get("a"), index.select(null, null, null));
+    assertSame(shells.get("c"), index.select(null, "7.11", null));
+    assertSame(shells.get("a"), index.select(PowerShellBitness.x64, "7.2", PowerShellEdition.CORE));
+    assertNull(index.select(null, "8.0", null));
+    assertNull(index.select(null, null, PowerShellEdition.DESKTOP));
+  }
+
+  @Test
+  public void testFirstDetectedShellWinsOnSameVersion() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("first", info(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE));
+    shells.put("second", info(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE));
+    assertSame(shells.get("first"), ShellIndex.of(shells).select(null, null, null));
+  }
+
+  @Test
+  public void testShellsOfUnknownEditionAreSelectedLast() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("legacy1", info(PowerShellBitness.x64, "5.0", null));
+    shells.put("legacy2", info(PowerShellBitness.x64, "4.0", null));
+    assertSame(shells.get("legacy1"), ShellIndex.of(shells).select(null, null, null));
+
+    shells.put("core", info(PowerShellBitness.x86, "6.0", PowerShellEdition.CORE));
+    assertSame(shells.get("core"), ShellIndex.of(shells).select(null, null, null));
+    assertNull(ShellIndex.of(shells).select(null, null, PowerShellEdition.DESKTOP));
+  }
+
+  @Test
+  public void testPreviewPrecedesRelease() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("release", info(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE));
+    shells.put("preview", info(PowerShellBitness.x64, "7.5.0-preview.3", PowerShellEdition.CORE));
+    final ShellIndex index = ShellIndex.of(shells);
+    assertSame(shells.get("preview"), index.select(null, null, null));
+  }
+
+  @Test
+  public void testMinVersionIsCheckedAsServerRequirement() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("release", info(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE));
+    shells.put("preview", info(PowerShellBitness.x64, "7.5.0-preview.3", PowerShellEdition.CORE));
+    final ShellIndex index = ShellIndex.of(shells);
+
+    // server matches VER_NO_LESS_THAN requirement against published max version
+    for (String min : new String[]{"7.5", "7.4", "7.5.0", "7.6"}) {
+      final PowerShellInfo max = index.selectMaxVersion(null, null);
+      assertNotNull(max);
+      final boolean serverMatches = VersionComparatorUtil.compare(max.getVersion(), min) >= 0;
+      assertEquals("min version " + min, serverMatches, index.select(null, min, null) != null);
+      assertEquals("min version " + min, serverMatches, index.select(PowerShellBitness.x64, min, PowerShellEdition.CORE) != null);
+    }
+  }
+
+  @Test
+  public void testSelectMaxVersionAcrossEditions() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("desktop", info(PowerShellBitness.x64, "5.1", PowerShellEdition.DESKTOP));
+    shells.put("core", info(PowerShellBitness.x86, "7.4.1", PowerShellEdition.CORE));
+    final ShellIndex index = ShellIndex.of(shells);
+
+    // selection prefers Desktop, aggregate reports max version
+    assertSame(shells.get("desktop"), index.select(null, null, null));
+    assertSame(shells.get("core"), index.selectMaxVersion(null, null));
+    assertSame(shells.get("desktop"), index.selectMaxVersion(PowerShellBitness.x64, null));
+    assertSame(shells.get("core"), index.selectMaxVersion(null, PowerShellEdition.CORE));
+    assertNull(index.selectMaxVersion(PowerShellBitness.x86, PowerShellEdition.DESKTOP));
+  }
+
+  @Test
+  public void testSelectFastest() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("desktop", info(PowerShellBitness.x64, "5.1", PowerShellEdition.DESKTOP));
+    shells.put("core", info(PowerShellBitness.x64, "7.4.1", PowerShellEdition.CORE));
+    shells.put("old core", info(PowerShellBitness.x64, "6.2.0", PowerShellEdition.CORE));
+    shells.put("unmeasured", info(PowerShellBitness.x86, "7.4.1", PowerShellEdition.CORE));
+    final ShellIndex index = ShellIndex.of(shells);
+    final Map<PowerShellInfo, Long> latencies = new HashMap<>();
+    latencies.put(shells.get("desktop"), 2100L);
+    latencies.put(shells.get("core"), 450L);
+    latencies.put(shells.get("old core"), 300L);
+
+    assertSame(shells.get("old core"), index.selectFastest(null, null, null, info -> latencies.getOrDefault(info, -1L)));
+    assertSame(shells.get("core"), index.selectFastest(null, "7.0", null, info -> latencies.getOrDefault(info, -1L)));
+    assertSame(shells.get("desktop"), index.selectFastest(null, null, PowerShellEdition.DESKTOP, info -> latencies.getOrDefault(info, -1L)));
+    assertNull(index.selectFastest(PowerShellBitness.x86, null, null, info -> latencies.getOrDefault(info, -1L)));
+  }
+
+  private static PowerShellInfo info(PowerShellBitness bitness, String version, PowerShellEdition edition) {
+    return new PowerShellInfo(bitness, new File("home_" + version), version, edition, "pwsh");
+  }
+}
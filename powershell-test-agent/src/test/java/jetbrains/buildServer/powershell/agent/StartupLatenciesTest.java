@@ -0,0 +1,85 @@
+package jetbrains.buildServer.powershell.agent;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionRunner;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+public class StartupLatenciesTest extends BaseTestCase {
+
+  private BuildAgentConfiguration myConf;
+
+  private DetectionRunner myRunner;
+
+  private Map<String, String> myParams;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    final File cacheDir = createTempDir();
+    final Mockery m = new Mockery() {{
+      setImposteriser(ClassImposteriser.INSTANCE);
+    }};
+    myConf = m.mock(BuildAgentConfiguration.class);
+    myRunner = m.mock(DetectionRunner.class);
+    myParams = new HashMap<>();
+    m.checking(new Expectations() {{
+      allowing(myConf).getCacheDirectory(PowerShellConstants.PLUGIN_NAME);
+      will(returnValue(cacheDir));
+      allowing(myConf).getConfigurationParameters();
+      will(returnValue(myParams));
+    }});
+  }
+
+  @Test
+  public void testRunningEstimate() throws Exception {
+    final StartupLatencies latencies = new StartupLatencies(myConf, myRunner);
+    final PowerShellInfo info = new PowerShellInfo(PowerShellBitness.x64, createTempDir(), "7.4.1", PowerShellEdition.CORE, "pwsh");
+    assertEquals(-1, latencies.getMillis(info));
+    assertTrue(latencies.toParameters(Collections.singletonList(info)).isEmpty());
+
+    latencies.record(info, 1000);
+    assertEquals(1000, latencies.getMillis(info));
+    latencies.record(info, 500);
+    // single slow or fast start does not replace the estimate
+    assertEquals(850, latencies.getMillis(info));
+
+    final Map<String, String> params = latencies.toParameters(Collections.singletonList(info));
+    assertEquals("850", params.get("powershell.detection.startup.powershell_Core_7.4.1_x64"));
+  }
+
+  @Test
+  public void testMeasurementIsOptIn() throws Exception {
+    final StartupLatencies latencies = new StartupLatencies(myConf, myRunner);
+    assertFalse(latencies.isPolicyEnabled());
+    // runner is not expected to be called
+    latencies.measureInBackground(Collections.singletonList(
+            new PowerShellInfo(PowerShellBitness.x64, createTempDir(), "7.4.1", PowerShellEdition.CORE, "pwsh")),
+                                  command -> fail("Measurement is not enabled"));
+  }
+
+  @Test
+  public void testPolicyIsReadOncePerDetection() throws Exception {
+    final StartupLatencies latencies = new StartupLatencies(myConf, myRunner);
+    assertFalse(latencies.isPolicyEnabled());
+    myParams.put(StartupLatencies.PARAM_SELECTION_POLICY, StartupLatencies.POLICY_LATENCY);
+    assertFalse(latencies.isPolicyEnabled());
+
+    latencies.measureInBackground(Collections.emptyList(), command -> fail("Nothing to measure"));
+    assertTrue(latencies.isPolicyEnabled());
+  }
+}
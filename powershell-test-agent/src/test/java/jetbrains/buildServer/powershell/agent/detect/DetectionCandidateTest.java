@@ -0,0 +1,50 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+public class DetectionCandidateTest extends BaseTestCase {
+
+  @Test
+  public void testSymlinkedExecutableIsCollectedOnce() throws Exception {
+    if (SystemInfo.isWindows) {
+      throw new SkipException("Symlinks are not available");
+    }
+    final File home = createTempDir();
+    final File bin = createTempDir();
+    final File exe = new File(home, "pwsh");
+    FileUtil.writeFile(exe, "binary", "UTF-8");
+    Files.createSymbolicLink(new File(bin, "pwsh").toPath(), exe.toPath());
+
+    final List<DetectionCandidate> candidates = DetectionCandidate.collect(
+            Arrays.asList(bin.getAbsolutePath(), home.getAbsolutePath()),
+            Collections.singletonList("pwsh"),
+            Collections.emptySet(),
+            new HashSet<>());
+    assertEquals(1, candidates.size());
+    assertEquals(new File(bin, "pwsh"), candidates.get(0).getExecutable());
+    assertEquals(FileUtil.getCanonicalFile(home).getPath(), candidates.get(0).getHomeKey());
+    assertEquals(FileUtil.getCanonicalFile(exe), candidates.get(0).getRealExecutable());
+  }
+
+  @Test
+  public void testSkipDetectedHomes() throws Exception {
+    final File home = createTempDir();
+    FileUtil.writeFile(new File(home, "pwsh"), "binary", "UTF-8");
+    final Set<String> skip = Collections.singleton(FileUtil.getCanonicalFile(home).getPath());
+    assertTrue(DetectionCandidate.collect(Collections.singletonList(home.getAbsolutePath()), Collections.singletonList("pwsh"), skip, new HashSet<>()).isEmpty());
+  }
+
+  @Test
+  public void testMissingExecutablesAreIgnored() throws Exception {
+    final File home = createTempDir();
+    assertTrue(DetectionCandidate.collect(Collections.singletonList(home.getAbsolutePath()), Collections.singletonList("pwsh"), Collections.emptySet(), new HashSet<>()).isEmpty());
+  }
+}
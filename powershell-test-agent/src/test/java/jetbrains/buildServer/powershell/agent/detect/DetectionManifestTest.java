@@ -0,0 +1,52 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+
+public class DetectionManifestTest extends BaseTestCase {
+
+  @Test
+  public void testLoadWrittenManifest() throws Exception {
+    final File home = createTempDir();
+    FileUtil.writeFile(new File(home, "pwsh"), "binary", "UTF-8");
+    final File manifest = new File(createTempDir(), "manifest.properties");
+    DetectionManifest.write(manifest, Collections.singletonMap(home.getAbsolutePath(),
+            new PowerShellInfo(PowerShellBitness.x64, home, "7.4.1", PowerShellEdition.CORE, "pwsh")));
+
+    final Map<String, PowerShellInfo> loaded = DetectionManifest.load(manifest);
+    assertNotNull(loaded);
+    final PowerShellInfo info = loaded.get(home.getAbsolutePath());
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    assertEquals(PowerShellEdition.CORE, info.getEdition());
+    assertEquals(PowerShellBitness.x64, info.getBitness());
+  }
+
+  @Test
+  public void testChangedExecutableMakesManifestStale() throws Exception {
+    final File home = createTempDir();
+    final File exe = new File(home, "pwsh");
+    FileUtil.writeFile(exe, "binary", "UTF-8");
+    final File manifest = new File(createTempDir(), "manifest.properties");
+    DetectionManifest.write(manifest, Collections.singletonMap(home.getAbsolutePath(),
+            new PowerShellInfo(PowerShellBitness.x64, home, "7.4.1", PowerShellEdition.CORE, "pwsh")));
+
+    FileUtil.writeFile(exe, "upgraded binary", "UTF-8");
+    assertNull(DetectionManifest.load(manifest));
+
+    FileUtil.delete(exe);
+    assertNull(DetectionManifest.load(manifest));
+  }
+
+  @Test
+  public void testMissingManifest() throws Exception {
+    assertNull(DetectionManifest.load(new File(createTempDir(), "missing.properties")));
+  }
+}
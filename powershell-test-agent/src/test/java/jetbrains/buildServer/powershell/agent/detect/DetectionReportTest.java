@@ -0,0 +1,63 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.util.FileUtil;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.*;
+
+public class DetectionReportTest extends BaseTestCase {
+
+  @Test
+  public void testSummaryParameters() throws Exception {
+    final File home = createTempDir();
+    FileUtil.writeFile(new File(home, "pwsh"), "binary", "UTF-8");
+    final DetectionCandidate candidate = DetectionCandidate.collect(
+            Collections.singletonList(home.getAbsolutePath()),
+            Collections.singletonList("pwsh"),
+            Collections.emptySet(),
+            new HashSet<>()).get(0);
+
+    final DetectionReport report = new DetectionReport();
+    // metadata was not conclusive, command line probe needed two attempts
+    report.startProbe("metadata", candidate).finished(null);
+    final DetectionReport.ProbeTiming timing = report.startProbe("cmd", candidate);
+    timing.started();
+    timing.spawned(System.nanoTime());
+    timing.timedOut();
+    timing.spawned(System.nanoTime());
+    timing.firstOutput();
+    timing.answered();
+    final PowerShellInfo info = new PowerShellInfo(PowerShellBitness.x64, home, "7.4.1", PowerShellEdition.CORE, "pwsh");
+    timing.finished(info);
+    report.finish();
+
+    final Map<String, String> parameters = report.toParameters();
+    assertEquals("1", parameters.get(DetectionReport.PARAM_CANDIDATES));
+    assertEquals("2", parameters.get(DetectionReport.PARAM_PROCESSES));
+    assertNotNull(parameters.get(DetectionReport.PARAM_TOTAL));
+    final String key = PowerShellConstants.generateFullKey(PowerShellEdition.CORE, PowerShellBitness.x64, "7.4.1");
+    assertNotNull(parameters.get(DetectionReport.PARAM_INSTALL_TIME_PREFIX + key));
+    assertEquals(4, parameters.size());
+
+    final String line = report.toLogLine();
+    assertFalse(line.contains("\n"));
+    assertTrue(line.contains("timeouts=1"));
+    // answer was read before process exited
+    assertFalse(line.contains("answer=-1"));
+    assertTrue(line.contains("exit=-1"));
+    assertTrue(line.contains("result=7.4.1"));
+  }
+
+  @Test
+  public void testParametersDoNotLookLikeShells() {
+    // restoring shells from configuration parameters relies on powershell_ prefix
+    for (String key : new DetectionReport().toParameters().keySet()) {
+      assertFalse(key.startsWith(PowerShellConstants.POWERSHELL_PREFIX));
+    }
+  }
+}
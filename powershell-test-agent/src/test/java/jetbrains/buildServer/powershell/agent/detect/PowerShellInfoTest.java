@@ -1,6 +1,7 @@
 package jetbrains.buildServer.powershell.agent.detect;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,6 +41,41 @@ public class PowerShellInfoTest extends BaseTestCase {
     assertEquals(info.getHome().getAbsolutePath(), confParams.get(propertyName + "_Path"));
   }
 
+  @Test
+  public void testSaveCapabilities() throws IOException {
+    final PowerShellInfo info = new PowerShellInfo(PowerShellBitness.x64, createTempDir(), "7.4.1", PowerShellEdition.CORE, "pwsh", false,
+            new PowerShellCapabilities("8.0.1", null, "Arm64", null, Arrays.asList("PSSubsystemPluginModel", "PSFeedbackProvider")));
+    final Map<String, String> params = new HashMap<>();
+    info.saveInfo(params);
+    final String key = "powershell_Core_7.4.1_x64";
+    assertEquals("8.0.1", params.get(key + "_DotNet"));
+    assertEquals("Arm64", params.get(key + "_Arch"));
+    assertEquals("PSFeedbackProvider,PSSubsystemPluginModel", params.get(key + "_ExperimentalFeatures"));
+    assertFalse(params.containsKey(key + "_OS"));
+    assertFalse(params.containsKey(key + "_PSHome"));
+  }
+
+  @Test
+  public void testOsIsPublishedAsFamily() throws IOException {
+    final Map<String, String> params = new HashMap<>();
+    shellOn("Microsoft Windows 10.0.22631").saveInfo(params);
+    assertEquals("Windows", params.get("powershell_Core_7.4.1_x64_OS"));
+
+    params.clear();
+    shellOn("Linux 6.5.0-1016-azure #16~22.04.1-Ubuntu SMP Fri Feb 16 15:42:02 UTC 2024").saveInfo(params);
+    assertEquals("Linux", params.get("powershell_Core_7.4.1_x64_OS"));
+
+    params.clear();
+    shellOn("Darwin 23.1.0 Darwin Kernel Version 23.1.0").saveInfo(params);
+    assertEquals("macOS", params.get("powershell_Core_7.4.1_x64_OS"));
+  }
+
+  @NotNull
+  private PowerShellInfo shellOn(@NotNull final String os) throws IOException {
+    return new PowerShellInfo(PowerShellBitness.x64, createTempDir(), "7.4.1", PowerShellEdition.CORE, "pwsh", false,
+            new PowerShellCapabilities(null, os, null, null, Collections.emptyList()));
+  }
+
   @DataProvider(name = "editionProvider")
   public Object[][] editionProvider() {
     Object[][] result = new Object[2][];
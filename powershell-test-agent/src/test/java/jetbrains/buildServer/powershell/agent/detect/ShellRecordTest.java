@@ -0,0 +1,65 @@
+package jetbrains.buildServer.powershell.agent.detect;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class ShellRecordTest extends BaseTestCase {
+
+  @Test
+  public void testRoundTrip() {
+    final Map<String, PowerShellInfo> shells = new LinkedHashMap<>();
+    shells.put("C:\\Program Files\\PowerShell\\7", new PowerShellInfo(
+            PowerShellBitness.x64, new File("C:\\Program Files\\PowerShell\\7"), "7.4.1", PowerShellEdition.CORE, "pwsh.exe"));
+    shells.put("/opt/ps,;:%_1", new PowerShellInfo(
+            PowerShellBitness.x86, new File("/opt/ps,;:%_1"), "6.0.0_beta", null, "powershell"));
+    shells.put("virtual", new PowerShellInfo(
+            PowerShellBitness.x64, new File("."), "7.2", PowerShellEdition.CORE, "pwsh", true));
+    shells.put("/opt/microsoft/powershell/7", new PowerShellInfo(
+            PowerShellBitness.x64, new File("/opt/microsoft/powershell/7"), "7.4.1", PowerShellEdition.CORE, "pwsh", false,
+            new PowerShellCapabilities("8.0.1", "Ubuntu 22.04.3 LTS", "X64", "/opt/microsoft/powershell/7", Arrays.asList("PSFeedbackProvider", "PSSubsystemPluginModel"))));
+
+    final Map<String, PowerShellInfo> decoded = ShellRecord.decode(ShellRecord.encode(shells));
+
+    assertNotNull(decoded);
+    assertEquals(shells.keySet(), decoded.keySet());
+    for (Map.Entry<String, PowerShellInfo> entry : shells.entrySet()) {
+      final PowerShellInfo expected = entry.getValue();
+      final PowerShellInfo actual = decoded.get(entry.getKey());
+      assertEquals(expected.getBitness(), actual.getBitness());
+      assertEquals(expected.getEdition(), actual.getEdition());
+      assertEquals(expected.getVersion(), actual.getVersion());
+      assertEquals(expected.getExecutable(), actual.getExecutable());
+      assertEquals(expected.getHome(), actual.getHome());
+      assertEquals(expected.isVirtual(), actual.isVirtual());
+      assertEquals(expected.getCapabilities(), actual.getCapabilities());
+    }
+  }
+
+  @Test
+  public void testDecodeWithoutCapabilities() {
+    final Map<String, PowerShellInfo> decoded = ShellRecord.decode("1:key,x64,Core,7.4.1,pwsh,0,%2Fopt%2Fpwsh");
+    assertNotNull(decoded);
+    final PowerShellInfo info = decoded.get("key");
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    assertTrue(info.getCapabilities().isEmpty());
+  }
+
+  @Test
+  public void testUnknownFormat() {
+    assertNull(ShellRecord.decode(null));
+    assertNull(ShellRecord.decode("3:whatever"));
+    assertNull(ShellRecord.decode("2:broken"));
+    assertNull(ShellRecord.decode("1:broken"));
+    final Map<String, PowerShellInfo> empty = ShellRecord.decode("1:");
+    assertNotNull(empty);
+    assertTrue(empty.isEmpty());
+  }
+}
@@ -0,0 +1,166 @@
+package jetbrains.buildServer.powershell.agent.detect.cache;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellConstants;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.util.FileUtil;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class DetectionCacheTest extends BaseTestCase {
+
+  private BuildAgentConfiguration myConf;
+
+  private File myHome;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    final File cacheDir = createTempDir();
+    myHome = createTempDir();
+    final Mockery m = new Mockery();
+    myConf = m.mock(BuildAgentConfiguration.class);
+    m.checking(new Expectations() {{
+      allowing(myConf).getCacheDirectory(PowerShellConstants.PLUGIN_NAME); will(returnValue(cacheDir));
+    }});
+  }
+
+  @Test
+  public void testRestoreAfterRestart() throws Exception {
+    final File exe = new File(myHome, "pwsh");
+    FileUtil.writeFile(exe, "binary", "UTF-8");
+
+    final DetectionCache cache = new DetectionCache(myConf);
+    cache.load();
+    assertNull(cache.get(exe));
+    cache.put(exe, new PowerShellInfo(PowerShellBitness.x64, myHome, "7.4.1", PowerShellEdition.CORE, "pwsh"));
+    cache.save();
+
+    final DetectionCache restored = new DetectionCache(myConf);
+    restored.load();
+    final PowerShellInfo info = restored.get(exe);
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    assertEquals(PowerShellEdition.CORE, info.getEdition());
+    assertEquals(PowerShellBitness.x64, info.getBitness());
+    assertEquals("pwsh", info.getExecutable());
+  }
+
+  @Test
+  public void testChangedExecutableIsNotRestored() throws Exception {
+    final File exe = new File(myHome, "pwsh");
+    FileUtil.writeFile(exe, "binary", "UTF-8");
+
+    final DetectionCache cache = new DetectionCache(myConf);
+    cache.load();
+    cache.put(exe, new PowerShellInfo(PowerShellBitness.x64, myHome, "7.4.1", PowerShellEdition.CORE, "pwsh"));
+    cache.save();
+
+    FileUtil.writeFile(exe, "upgraded binary", "UTF-8");
+
+    final DetectionCache restored = new DetectionCache(myConf);
+    restored.load();
+    assertNull(restored.get(exe));
+  }
+
+  @Test
+  public void testPartialDetectionKeepsOtherEntries() throws Exception {
+    final File pwsh = new File(myHome, "pwsh");
+    FileUtil.writeFile(pwsh, "binary", "UTF-8");
+    final File otherHome = createTempDir();
+    final File preview = new File(otherHome, "pwsh-preview");
+    FileUtil.writeFile(preview, "preview binary", "UTF-8");
+
+    final DetectionCache cache = new DetectionCache(myConf);
+    cache.load();
+    cache.put(pwsh, new PowerShellInfo(PowerShellBitness.x64, myHome, "7.4.1", PowerShellEdition.CORE, "pwsh"));
+    cache.put(preview, new PowerShellInfo(PowerShellBitness.x64, otherHome, "7.5.0", PowerShellEdition.CORE, "pwsh-preview"));
+    cache.save();
+
+    // partial refresh probes only one of the shells
+    final DetectionCache refreshed = new DetectionCache(myConf);
+    refreshed.load();
+    assertNotNull(refreshed.get(pwsh));
+    refreshed.save();
+
+    final DetectionCache restored = new DetectionCache(myConf);
+    restored.load();
+    final PowerShellInfo info = restored.get(pwsh);
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    final PowerShellInfo previewInfo = restored.get(preview);
+    assertNotNull(previewInfo);
+    assertEquals("7.5.0", previewInfo.getVersion());
+  }
+
+  @Test
+  public void testSharedBetweenAgents() throws Exception {
+    setInternalProperty("teamcity.powershell.detector.cache.shared.dir", createTempDir().getAbsolutePath());
+    final File exe = new File(myHome, "pwsh");
+    FileUtil.writeFile(exe, "binary", "UTF-8");
+    final FileFingerprint fingerprint = FileFingerprint.of(exe);
+    assertNotNull(fingerprint);
+    final AtomicInteger probes = new AtomicInteger();
+
+    final DetectionCache first = new DetectionCache(myConf);
+    first.load();
+    assertNotNull(first.getOrDetect(exe, fingerprint, () -> {
+      probes.incrementAndGet();
+      return new PowerShellInfo(PowerShellBitness.x64, myHome, "7.4.1", PowerShellEdition.CORE, "pwsh");
+    }));
+
+    final Mockery m = new Mockery();
+    final BuildAgentConfiguration otherConf = m.mock(BuildAgentConfiguration.class);
+    final File otherCacheDir = createTempDir();
+    m.checking(new Expectations() {{
+      allowing(otherConf).getCacheDirectory(PowerShellConstants.PLUGIN_NAME); will(returnValue(otherCacheDir));
+    }});
+    final DetectionCache second = new DetectionCache(otherConf);
+    second.load();
+    final PowerShellInfo info = second.getOrDetect(exe, fingerprint, () -> {
+      probes.incrementAndGet();
+      return null;
+    });
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    assertEquals(PowerShellEdition.CORE, info.getEdition());
+    assertEquals(1, probes.get());
+
+    FileUtil.writeFile(exe, "upgraded binary", "UTF-8");
+    final FileFingerprint upgraded = FileFingerprint.of(exe);
+    assertNotNull(upgraded);
+    assertNull(second.getOrDetect(exe, upgraded, () -> {
+      probes.incrementAndGet();
+      return null;
+    }));
+    assertEquals(2, probes.get());
+  }
+
+  @Test
+  public void testSharedLockHeldInSameProcess() throws Exception {
+    setInternalProperty("teamcity.powershell.detector.cache.shared.dir", createTempDir().getAbsolutePath());
+    final File exe = new File(myHome, "pwsh");
+    FileUtil.writeFile(exe, "binary", "UTF-8");
+    final FileFingerprint fingerprint = FileFingerprint.of(exe);
+    assertNotNull(fingerprint);
+
+    final DetectionCache first = new DetectionCache(myConf);
+    final DetectionCache second = new DetectionCache(myConf);
+    first.load();
+    second.load();
+    // the second cache asks for the lock, while the first one holds it
+    final PowerShellInfo info = first.getOrDetect(exe, fingerprint, () -> second.getOrDetect(exe, fingerprint,
+            () -> new PowerShellInfo(PowerShellBitness.x64, myHome, "7.4.1", PowerShellEdition.CORE, "pwsh")));
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+  }
+}
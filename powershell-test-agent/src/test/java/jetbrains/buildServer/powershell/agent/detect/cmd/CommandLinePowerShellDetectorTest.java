@@ -0,0 +1,71 @@
+package jetbrains.buildServer.powershell.agent.detect.cmd;
+
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class CommandLinePowerShellDetectorTest extends BaseTestCase {
+
+  @Test
+  public void testParseVersionOutput() {
+    assertEquals("7.4.1", CommandLinePowerShellDetector.parseVersionOutput("PowerShell 7.4.1"));
+    assertEquals("7.5.0-preview.2", CommandLinePowerShellDetector.parseVersionOutput("PowerShell 7.5.0-preview.2\r"));
+    assertEquals("6.0.0", CommandLinePowerShellDetector.parseVersionOutput("PowerShell v6.0.0"));
+  }
+
+  @Test
+  public void testParseProbeOutput() {
+    final File exe = new File("/opt/microsoft/powershell/7/pwsh");
+    final PowerShellInfo info = CommandLinePowerShellDetector.parseProbeOutput(exe, Arrays.asList(
+            "WARNING: something unrelated",
+            "{\"version\":\"7.4.1\",\"edition\":\"Core\",\"x64\":true,\"dotnet\":\"8.0.1\",\"os\":\"Ubuntu \\\"22.04\\\"\"," +
+            "\"arch\":\"X64\",\"home\":\"/opt/microsoft/powershell/7\",\"experimentalFeatures\":[\"PSFeedbackProvider\"]}"
+    ));
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    assertEquals(PowerShellEdition.CORE, info.getEdition());
+    assertEquals(PowerShellBitness.x64, info.getBitness());
+    assertEquals("pwsh", info.getExecutable());
+    assertEquals("8.0.1", info.getCapabilities().getDotNetVersion());
+    assertEquals("Ubuntu \"22.04\"", info.getCapabilities().getOs());
+    assertEquals("X64", info.getCapabilities().getArchitecture());
+    assertEquals("/opt/microsoft/powershell/7", info.getCapabilities().getPsHome());
+    assertEquals(Collections.singletonList("PSFeedbackProvider"), info.getCapabilities().getExperimentalFeatures());
+  }
+
+  @Test
+  public void testParseDesktopProbeOutput() {
+    final PowerShellInfo info = CommandLinePowerShellDetector.parseProbeOutput(new File("WindowsPowerShell/v1.0/powershell.exe"), Collections.singletonList(
+            "{\"version\":\"5.1.19041.1\",\"edition\":\"Desktop\",\"x64\":false,\"dotnet\":\"4.0.30319.42000\",\"os\":\"\"," +
+            "\"arch\":\"X86\",\"home\":\"C:\\\\Windows\",\"experimentalFeatures\":[]}"
+    ));
+    assertNotNull(info);
+    assertEquals(PowerShellEdition.DESKTOP, info.getEdition());
+    assertEquals(PowerShellBitness.x86, info.getBitness());
+    assertNull(info.getCapabilities().getOs());
+    assertEquals("C:\\Windows", info.getCapabilities().getPsHome());
+    assertTrue(info.getCapabilities().getExperimentalFeatures().isEmpty());
+  }
+
+  @Test
+  public void testParseIncompleteProbeOutput() {
+    final File exe = new File("pwsh");
+    assertNull(CommandLinePowerShellDetector.parseProbeOutput(exe, Collections.emptyList()));
+    assertNull(CommandLinePowerShellDetector.parseProbeOutput(exe, Collections.singletonList("{\"version\":\"7.4.1\",\"edition\":\"Core\"")));
+    assertNull(CommandLinePowerShellDetector.parseProbeOutput(exe, Collections.singletonList("{\"version\":\"7.4.1\",\"edition\":\"Unknown\",\"x64\":true}")));
+    assertNull(CommandLinePowerShellDetector.parseProbeOutput(exe, Arrays.asList("7.4.1", "Core", "True")));
+  }
+
+  @Test
+  public void testParseUnexpectedVersionOutput() {
+    assertNull(CommandLinePowerShellDetector.parseVersionOutput(""));
+    assertNull(CommandLinePowerShellDetector.parseVersionOutput("7.4.1"));
+    assertNull(CommandLinePowerShellDetector.parseVersionOutput("The term '-Version' is not recognized"));
+  }
+}
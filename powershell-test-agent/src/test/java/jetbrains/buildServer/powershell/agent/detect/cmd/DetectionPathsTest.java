@@ -31,4 +31,48 @@ public class DetectionPathsTest extends BaseTestCase {
     assertEquals(root.getAbsolutePath(), paths.get(0));
     assertEquals(child.getAbsolutePath(), paths.get(1));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testGlobPatternPaths() throws Exception {
+    final File root = createTempDir();
+    final File v1 = new File(root, "versions/7.4.1");
+    final File v2 = new File(root, "versions/7.5.0-preview.3");
+    final File other = new File(root, "other/7.4.1");
+    assertTrue(v1.mkdirs());
+    assertTrue(v2.mkdirs());
+    assertTrue(other.mkdirs());
+
+    final List<String> paths = new DetectionPaths(mockConfiguration(root.getAbsolutePath() + "/versions/7.*", null)).getPaths();
+    assertTrue(paths.contains(v1.getAbsolutePath()));
+    assertTrue(paths.contains(v2.getAbsolutePath()));
+    assertFalse(paths.contains(other.getAbsolutePath()));
+  }
+
+  @Test
+  public void testSearchDepth() throws Exception {
+    final File root = createTempDir();
+    final File child = new File(root, "child");
+    final File grandChild = new File(child, "grandChild");
+    assertTrue(grandChild.mkdirs());
+
+    assertFalse(new DetectionPaths(mockConfiguration(root.getAbsolutePath(), null)).getPaths().contains(grandChild.getAbsolutePath()));
+    final List<String> paths = new DetectionPaths(mockConfiguration(root.getAbsolutePath(), "2")).getPaths();
+    assertEquals(root.getAbsolutePath(), paths.get(0));
+    assertEquals(child.getAbsolutePath(), paths.get(1));
+    assertEquals(grandChild.getAbsolutePath(), paths.get(2));
+  }
+
+  private BuildAgentConfiguration mockConfiguration(String searchPaths, String depth) {
+    final Mockery m = new Mockery();
+    final BuildAgentConfiguration conf = m.mock(BuildAgentConfiguration.class);
+    final Map<String, String> confParams = new HashMap<>();
+    confParams.put("teamcity.powershell.detector.search.paths", searchPaths);
+    if (depth != null) {
+      confParams.put("teamcity.powershell.detector.search.depth", depth);
+    }
+    m.checking(new Expectations(){{
+      allowing(conf).getConfigurationParameters(); will(returnValue(Collections.unmodifiableMap(confParams)));
+    }});
+    return conf;
+  }
+}
@@ -0,0 +1,55 @@
+package jetbrains.buildServer.powershell.agent.detect.cmd;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+public class ProbeOutputTest extends BaseTestCase {
+
+  @Test
+  public void testParsesValues() {
+    final Map<String, Object> result = ProbeOutput.parse(
+            "{ \"version\": \"7.4.1\", \"bits\": 64, \"core\": true, \"desktop\": false, \"home\": null, " +
+            "\"features\": [\"PSFeedbackProvider\", \"PSSubsystemPluginModel\"], \"empty\": [] }");
+    assertNotNull(result);
+    assertEquals("7.4.1", result.get("version"));
+    assertEquals("64", result.get("bits"));
+    assertEquals(Boolean.TRUE, result.get("core"));
+    assertEquals(Boolean.FALSE, result.get("desktop"));
+    assertTrue(result.containsKey("home"));
+    assertNull(result.get("home"));
+    assertEquals(Arrays.asList("PSFeedbackProvider", "PSSubsystemPluginModel"), result.get("features"));
+    assertEquals(Collections.emptyList(), result.get("empty"));
+  }
+
+  @Test
+  public void testParsesEscapes() {
+    final Map<String, Object> result = ProbeOutput.parse(
+            "{\"home\":\"C:\\\\Program Files\\\\PowerShell\\\\7\",\"os\":\"Ubuntu \\\"22.04\\\"\",\"text\":\"a\\/b\\tc\\r\\nd\"}");
+    assertNotNull(result);
+    assertEquals("C:\\Program Files\\PowerShell\\7", result.get("home"));
+    assertEquals("Ubuntu \"22.04\"", result.get("os"));
+    assertEquals("a/b\tc\r\nd", result.get("text"));
+  }
+
+  @Test
+  public void testParsesUnicode() {
+    final Map<String, Object> result = ProbeOutput.parse(
+            "{\"escaped\":\"Z\\u00fcrich \\u0444\\ud83d\\ude00\",\"raw\":\"Zürich ф\"}");
+    assertNotNull(result);
+    assertEquals("Z\u00fcrich \u0444\uD83D\uDE00", result.get("escaped"));
+    assertEquals("Z\u00fcrich \u0444", result.get("raw"));
+  }
+
+  @Test
+  public void testRejectsMalformedOutput() {
+    assertNull(ProbeOutput.parse("7.4.1"));
+    assertNull(ProbeOutput.parse("{\"version\":\"7.4.1\""));
+    assertNull(ProbeOutput.parse("{\"version\":\"7.4.1\"} trailing"));
+    assertNull(ProbeOutput.parse("{\"text\":\"\\u00zz\"}"));
+    assertNull(ProbeOutput.parse("{\"version\":unknown}"));
+  }
+}
@@ -0,0 +1,149 @@
+package jetbrains.buildServer.powershell.agent.detect.metadata;
+
+import com.intellij.openapi.util.SystemInfo;
+import jetbrains.buildServer.BaseTestCase;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellCapabilities;
+import jetbrains.buildServer.powershell.agent.detect.PowerShellInfo;
+import jetbrains.buildServer.powershell.agent.detect.cmd.DetectionPaths;
+import jetbrains.buildServer.powershell.common.PowerShellBitness;
+import jetbrains.buildServer.powershell.common.PowerShellEdition;
+import jetbrains.buildServer.util.FileUtil;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class MetadataPowerShellDetectorTest extends BaseTestCase {
+
+  private static final byte[] ELF_64 = {0x7F, 'E', 'L', 'F', 2, 1, 1, 0};
+
+  private static final byte[] ELF_32 = {0x7F, 'E', 'L', 'F', 1, 1, 1, 0};
+
+  private MetadataPowerShellDetector myDetector;
+
+  private File myHome;
+
+  @Override
+  @BeforeMethod
+  public void setUp() throws Exception {
+    super.setUp();
+    myHome = createTempDir();
+    final Mockery m = new Mockery();
+    final BuildAgentConfiguration conf = m.mock(BuildAgentConfiguration.class);
+    m.checking(new Expectations() {{
+      allowing(conf).getConfigurationParameters();
+      will(returnValue(Collections.singletonMap("teamcity.powershell.detector.search.paths", myHome.getAbsolutePath())));
+    }});
+    myDetector = new MetadataPowerShellDetector(new DetectionPaths(conf));
+  }
+
+  @Test
+  public void testDetectFromDeps() throws Exception {
+    final File exe = writeExecutable(ELF_64);
+    writeDeps("linux-x64", "7.4.1");
+    final PowerShellInfo info = myDetector.detect(exe);
+    assertNotNull(info);
+    assertEquals("7.4.1", info.getVersion());
+    assertEquals(PowerShellEdition.CORE, info.getEdition());
+    assertEquals(PowerShellBitness.x64, info.getBitness());
+    assertEquals(exe.getName(), info.getExecutable());
+  }
+
+  @Test
+  public void testSymlinkedExecutableIsRegisteredWithCanonicalHome() throws Exception {
+    if (SystemInfo.isWindows) {
+      throw new SkipException("Symlinks are not available");
+    }
+    final File exe = writeExecutable(ELF_64);
+    writeDeps("linux-x64", "7.5.0-preview.3");
+    final File link = new File(createTempDir(), "pwsh-preview");
+    Files.createSymbolicLink(link.toPath(), exe.toPath());
+    final PowerShellInfo info = myDetector.detect(link);
+    assertNotNull(info);
+    // detected shells are keyed by canonical home, redetection looks them up by home
+    assertEquals(FileUtil.getCanonicalFile(myHome), info.getHome());
+    assertEquals("pwsh", info.getExecutable());
+  }
+
+  @Test
+  public void testPreviewVersion() throws Exception {
+    final File exe = writeExecutable(ELF_64);
+    writeDeps("linux-x64", "7.5.0-preview.3");
+    final PowerShellInfo info = myDetector.detect(exe);
+    assertNotNull(info);
+    assertEquals("7.5.0-preview.3", info.getVersion());
+  }
+
+  @Test
+  public void testNoDeps() throws Exception {
+    final File exe = writeExecutable(ELF_64);
+    assertNull(myDetector.detect(exe));
+  }
+
+  @Test
+  public void testInconsistentBitness() throws Exception {
+    final File exe = writeExecutable(ELF_32);
+    writeDeps("linux-x64", "7.4.1");
+    assertNull(myDetector.detect(exe));
+  }
+
+  @Test
+  public void testUnknownHeaderFallsBackToRuntimeTarget() throws Exception {
+    final File exe = writeExecutable(new byte[] {'#', '!', '/', 'b', 'i', 'n'});
+    writeDeps("osx-arm64", "7.4.1");
+    final PowerShellInfo info = myDetector.detect(exe);
+    assertNotNull(info);
+    assertEquals(PowerShellBitness.x64, info.getBitness());
+  }
+
+  @Test
+  public void testCapabilities() throws Exception {
+    final File exe = writeExecutable(ELF_64);
+    writeDeps("linux-arm64", "7.4.1");
+    FileUtil.writeFile(new File(myHome, "powershell.config.json"),
+            "{\"ExperimentalFeatures\": [\"PSFeedbackProvider\", \"PSCommandNotFoundSuggestion\"]}", "UTF-8");
+    final PowerShellInfo info = myDetector.detect(exe);
+    assertNotNull(info);
+    final PowerShellCapabilities capabilities = info.getCapabilities();
+    assertEquals("8.0", capabilities.getDotNetVersion());
+    assertEquals("Arm64", capabilities.getArchitecture());
+    assertEquals(FileUtil.getCanonicalFile(myHome).getPath(), capabilities.getPsHome());
+    assertEquals(Arrays.asList("PSCommandNotFoundSuggestion", "PSFeedbackProvider"), capabilities.getExperimentalFeatures());
+  }
+
+  private File writeExecutable(byte[] header) throws IOException {
+    final File exe = new File(myHome, "pwsh");
+    try (FileOutputStream out = new FileOutputStream(exe)) {
+      out.write(header);
+      out.write(new byte[64]);
+    }
+    return exe;
+  }
+
+  private void writeDeps(String rid, String version) throws IOException {
+    FileUtil.writeFile(new File(myHome, "pwsh.deps.json"),
+            "{\n" +
+            "  \"runtimeTarget\": {\n" +
+            "    \"name\": \".NETCoreApp,Version=v8.0/" + rid + "\",\n" +
+            "    \"signature\": \"\"\n" +
+            "  },\n" +
+            "  \"targets\": {\n" +
+            "    \".NETCoreApp,Version=v8.0/" + rid + "\": {\n" +
+            "      \"pwsh/" + version + "\": {}\n" +
+            "    }\n" +
+            "  },\n" +
+            "  \"libraries\": {\n" +
+            "    \"pwsh/" + version + "\": {\"type\": \"project\"}\n" +
+            "  }\n" +
+            "}", "UTF-8");
+  }
+}
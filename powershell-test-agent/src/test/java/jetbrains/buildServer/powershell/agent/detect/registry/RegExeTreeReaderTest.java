@@ -0,0 +1,48 @@
+package jetbrains.buildServer.powershell.agent.detect.registry;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.util.Map;
+
+public class RegExeTreeReaderTest extends BaseTestCase {
+
+  @Test
+  public void should_parse_reg_export_file() {
+    final String content = "Windows Registry Editor Version 5.00\r\n" +
+            "\r\n" +
+            "[HKEY_LOCAL_MACHINE\\SOFTWARE\\Microsoft\\PowerShell\\3]\r\n" +
+            "\"Install\"=dword:00000001\r\n" +
+            "\"PID\"=\"89383-100-0001260-04309\"\r\n" +
+            "\r\n" +
+            "[HKEY_LOCAL_MACHINE\\SOFTWARE\\Microsoft\\PowerShell\\3\\PowerShellEngine]\r\n" +
+            "\"ApplicationBase\"=\"C:\\\\Windows\\\\System32\\\\WindowsPowerShell\\\\v1.0\"\r\n" +
+            "\"PowerShellVersion\"=\"5.1.19041.1\"\r\n" +
+            "\"Empty\"=\"\"\r\n" +
+            "\"Quoted \\\"name\\\"\"=\"a \\\"b\\\"\"\r\n" +
+            "@=\"default\"\r\n" +
+            "\r\n" +
+            "[HKEY_LOCAL_MACHINE\\SOFTWARE\\Microsoft\\PowerShell\\3\\ShellIds]\r\n" +
+            "\"Size\"=hex(b):00,01,00,00,00,00,00,00\r\n" +
+            "\"Path\"=hex(2):43,00,3a,00,5c,00,c4,00,\\\r\n" +
+            "  00,00\r\n" +
+            "\"Binary\"=hex:01,02\r\n";
+
+    final Map<String, Map<String, String>> tree = RegExeTreeReader.parse(content);
+
+    assertEquals(3, tree.size());
+    final Map<String, String> root = tree.get("SOFTWARE\\Microsoft\\PowerShell\\3");
+    assertEquals("1", root.get("Install"));
+    assertEquals("89383-100-0001260-04309", root.get("PID"));
+    final Map<String, String> engine = tree.get("SOFTWARE\\Microsoft\\PowerShell\\3\\PowerShellEngine");
+    assertEquals("C:\\Windows\\System32\\WindowsPowerShell\\v1.0", engine.get("ApplicationBase"));
+    assertEquals("5.1.19041.1", engine.get("PowerShellVersion"));
+    assertEquals("", engine.get("Empty"));
+    assertEquals("a \"b\"", engine.get("Quoted \"name\""));
+    assertEquals("default", engine.get(""));
+    final Map<String, String> shellIds = tree.get("SOFTWARE\\Microsoft\\PowerShell\\3\\ShellIds");
+    assertEquals("256", shellIds.get("Size"));
+    assertEquals("C:\\\u00c4", shellIds.get("Path"));
+    assertFalse(shellIds.containsKey("Binary"));
+  }
+}
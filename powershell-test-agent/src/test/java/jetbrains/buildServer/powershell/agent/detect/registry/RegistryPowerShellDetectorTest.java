@@ -12,10 +12,8 @@ import org.testng.annotations.Test;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Collections.singletonList;
 import static jetbrains.buildServer.util.Bitness.BIT32;
@@ -193,6 +191,70 @@ public class RegistryPowerShellDetectorTest extends BaseTestCase {
     assertEquals(home, shell.getValue().getHome());
   }
 
+  @Test
+  public void should_read_each_subtree_once_per_view() throws IOException {
+    // arrange
+    final Map<String, Map<String, String>> desktop = new HashMap<>();
+    desktop.put("SOFTWARE\\Microsoft\\PowerShell", Collections.emptyMap());
+    desktop.put("SOFTWARE\\Microsoft\\PowerShell\\3", Collections.singletonMap("Install", "1"));
+    final Map<String, String> engine = new HashMap<>();
+    engine.put("PowerShellVersion", "5.1");
+    engine.put("ApplicationBase", createTempDir().getPath());
+    desktop.put("SOFTWARE\\Microsoft\\PowerShell\\3\\PowerShellEngine", engine);
+
+    final Map<String, Map<String, String>> core = new HashMap<>();
+    core.put("SOFTWARE\\Microsoft\\PowerShellCore\\InstalledVersions", Collections.emptyMap());
+    for (int i = 0; i < 5; i++) {
+      final File home = createTempDir();
+      assertTrue(new File(home, "pwsh.exe").createNewFile());
+      final Map<String, String> values = new HashMap<>();
+      values.put("InstallLocation", home.getPath());
+      values.put("SemanticVersion", "7." + i + ".0");
+      core.put("SOFTWARE\\Microsoft\\PowerShellCore\\InstalledVersions\\" + UUID.randomUUID(), values);
+    }
+
+    setInternalProperty(RegistryPowerShellDetector.PARAM_TREE_READER_ENABLED, "true");
+    final AtomicInteger reads = new AtomicInteger();
+    final RegistryTreeReader reader = (bitness, path) -> {
+      reads.incrementAndGet();
+      return path.endsWith("InstalledVersions") ? core : desktop;
+    };
+
+    // act
+    Map<String, PowerShellInfo> shells = new RegistryPowerShellDetector(acc, reader).findShells();
+
+    // assert
+    // both views point to the same homes
+    assertEquals(1 + 5, shells.size());
+    assertEquals(2 * 2, reads.get());
+    m.assertIsSatisfied();
+  }
+
+  @Test
+  public void should_read_each_value_once_without_tree_reader() throws IOException {
+    // arrange
+    final File home = createTempDir();
+    m.checking(new Expectations(){{
+      oneOf(acc).readRegistryText(LOCAL_MACHINE, BIT32, "SOFTWARE\\Microsoft\\PowerShell\\3", "Install");
+      will(returnValue("1"));
+      oneOf(acc).readRegistryText(LOCAL_MACHINE, BIT32, "SOFTWARE\\Microsoft\\PowerShell\\1", "Install");
+      will(returnValue(null));
+      oneOf(acc).readRegistryText(LOCAL_MACHINE, BIT32, "SOFTWARE\\Microsoft\\PowerShell\\3\\PowerShellEngine", "PowerShellVersion");
+      will(returnValue("5.1"));
+      oneOf(acc).readRegistryText(LOCAL_MACHINE, BIT32, "SOFTWARE\\Microsoft\\PowerShell\\3\\PowerShellEngine", "ApplicationBase");
+      will(returnValue(home.getPath()));
+    }});
+    givenNoDesktopEditionForBit64();
+    givenNoCoreEdition();
+
+    // act
+    Map<String, PowerShellInfo> shells = new RegistryPowerShellDetector(acc, (bitness, path) -> null).findShells();
+
+    // assert
+    assertEquals(1, shells.size());
+    m.assertIsSatisfied();
+  }
+
   private void given(Bitness bitness, String path, String key, Object value) {
     m.checking(new Expectations(){{
       allowing(acc).readRegistryText(LOCAL_MACHINE, bitness, path, key); will(returnValue(value));
@@ -220,4 +282,4 @@ public class RegistryPowerShellDetectorTest extends BaseTestCase {
       will(returnValue(Collections.emptySet()));
     }});
   }
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,53 @@
+package jetbrains.buildServer.powershell.common;
+
+import jetbrains.buildServer.BaseTestCase;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class PowerShellVersionTest extends BaseTestCase {
+
+  @Test
+  public void testOrdering() {
+    final List<String> expected = Arrays.asList(
+            "1.0",
+            "5.1.19041.1",
+            "6.2.0",
+            "7.4.0-preview.1",
+            "7.4.0-preview.10",
+            "7.4.0-rc.1",
+            "7.4.0",
+            "7.4.1",
+            "7.10.0"
+    );
+    final List<PowerShellVersion> versions = new ArrayList<>();
+    for (String v : expected) {
+      versions.add(PowerShellVersion.parse(v));
+    }
+    Collections.shuffle(versions);
+    Collections.sort(versions);
+    final List<String> actual = new ArrayList<>();
+    for (PowerShellVersion v : versions) {
+      actual.add(v.toString());
+    }
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testMissingComponentsAreZeros() {
+    assertEquals(PowerShellVersion.parse("7.4"), PowerShellVersion.parse("7.4.0"));
+    assertEquals(PowerShellVersion.parse("7.4").hashCode(), PowerShellVersion.parse("7.4.0").hashCode());
+    assertEquals(0, PowerShellVersion.parse("7.4.0+build.5").compareTo(PowerShellVersion.parse("7.4.0")));
+  }
+
+  @Test
+  public void testPreRelease() {
+    assertTrue(PowerShellVersion.parse("7.5.0-preview.3").isPreRelease());
+    assertFalse(PowerShellVersion.parse("7.5.0").isPreRelease());
+    assertTrue(PowerShellVersion.parse("7.5.0-preview").compareTo(PowerShellVersion.parse("7.5.0-preview.1")) < 0);
+    assertTrue(PowerShellVersion.parse("7.5.0-1").compareTo(PowerShellVersion.parse("7.5.0-alpha")) < 0);
+  }
+}
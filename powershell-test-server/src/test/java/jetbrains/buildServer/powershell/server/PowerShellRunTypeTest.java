@@ -59,7 +59,7 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     final Collection<Requirement> requirements = runType.getRunnerSpecificRequirements(parameters);
     assertEquals(1, requirements.size());
     final Requirement req = requirements.iterator().next();
-    assertEquals("Exists=>(powershell_Core_" + bitness.getValue() + "|powershell_Desktop_" + bitness.getValue() +")", req.getPropertyName());
+    assertEquals("powershell_Any_" + bitness.getValue(), req.getPropertyName());
     if (version == null) {
       assertEquals(RequirementType.EXISTS, req.getType());
     } else {
@@ -73,7 +73,7 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     final Collection<Requirement> requirements = runType.getRunnerSpecificRequirements(createDummyParameters(bit));
     assertEquals(1, requirements.size());
     final Requirement req = requirements.iterator().next();
-    assertEquals("Exists=>(powershell_Core_" + bit.getValue() + "|powershell_Desktop_" + bit.getValue() + ")", req.getPropertyName());
+    assertEquals("powershell_Any_" + bit.getValue(), req.getPropertyName());
   }
     
   @Test
@@ -83,7 +83,7 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     final Collection<Requirement> requirements = runType.getRunnerSpecificRequirements(input);
     assertEquals(1, requirements.size());
     final Requirement r = requirements.iterator().next();
-    assertEquals("Exists=>(powershell_Core_x86|powershell_Core_x64|powershell_Desktop_x86|powershell_Desktop_x64)", r.getPropertyName());
+    assertEquals("powershell_Any_Any", r.getPropertyName());
     assertNull(r.getPropertyValue());
     assertEquals(RequirementType.EXISTS, r.getType());
   }
@@ -98,7 +98,7 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     final Collection<Requirement> requirements = runType.getRunnerSpecificRequirements(input);
     assertEquals(1, requirements.size());
     final Requirement r = requirements.iterator().next();
-    assertEquals("Exists=>(powershell_Core_x86|powershell_Core_x64|powershell_Desktop_x86|powershell_Desktop_x64)", r.getPropertyName());
+    assertEquals("powershell_Any_Any", r.getPropertyName());
     assertEquals(version, r.getPropertyValue());
     if (version != null) {
       assertEquals(RequirementType.VER_NO_LESS_THAN, r.getType());
@@ -111,7 +111,7 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     final Collection<Requirement> requirements = runType.getRunnerSpecificRequirements(input);
     assertEquals(1, requirements.size());
     final Requirement r = requirements.iterator().next();
-    assertEquals("Exists=>(powershell_Core_" + bitness.getValue() + "|powershell_Desktop_" + bitness.getValue() +")", r.getPropertyName());
+    assertEquals("powershell_Any_" + bitness.getValue(), r.getPropertyName());
     assertEquals(RequirementType.EXISTS, r.getType());
   }
 
@@ -122,12 +122,12 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     final Collection<Requirement> requirements = runType.getRunnerSpecificRequirements(input);
     assertEquals(1, requirements.size());
     final Requirement r = requirements.iterator().next();
-    assertEquals("Exists=>(powershell_" + edition.getValue() + "_x86|powershell_" + edition.getValue() +"_x64)", r.getPropertyName());
+    assertEquals("powershell_" + edition.getValue() + "_Any", r.getPropertyName());
     assertEquals(RequirementType.EXISTS, r.getType());
   }
 
   /**
-   * Tests we provide single property requirement without {@code Exists} qualifier in case of fixed bitness and edition
+   * Tests we provide single property requirement of exact key in case of fixed bitness and edition
    */
   @Test(dataProvider = "versionProvider")
   public void testSingleMatchingRequirement(@Nullable final String version) {
@@ -152,6 +152,24 @@ public class PowerShellRunTypeTest extends BaseTestCase {
     }
   }
   
+  @Test
+  public void testRequirementIsNotShared() {
+    final Map<String, String> first = createDummyParameters(PowerShellBitness.x64);
+    first.put(PowerShellConstants.RUNNER_MIN_VERSION, "7.2");
+    final Map<String, String> second = createDummyParameters(PowerShellBitness.x64);
+    second.put(PowerShellConstants.RUNNER_MIN_VERSION, "7.2");
+    final Map<String, String> other = createDummyParameters(PowerShellBitness.x64);
+    other.put(PowerShellConstants.RUNNER_MIN_VERSION, "7.4");
+
+    final Requirement requirement = runType.getRunnerSpecificRequirements(first).get(0);
+    // requirements are mutable and belong to build type, every call creates its own one
+    final Requirement same = runType.getRunnerSpecificRequirements(second).get(0);
+    assertNotSame(requirement, same);
+    assertEquals(requirement.getPropertyName(), same.getPropertyName());
+    assertEquals(requirement.getPropertyValue(), same.getPropertyValue());
+    assertEquals("7.4", runType.getRunnerSpecificRequirements(other).get(0).getPropertyValue());
+  }
+
   private Map<String, String> createDummyParameters(@Nullable final PowerShellBitness bit) {
     final Map<String, String> result = CollectionsUtil.asMap(
         PowerShellConstants.RUNNER_EXECUTION_MODE, PowerShellExecutionMode.STDIN.getValue(),